@@ -28,19 +28,19 @@ import java.util.logging.LogRecord;
  */
 class CeylonLogFormatter extends Formatter {
     static final Formatter INSTANCE = new CeylonLogFormatter();
-    private static final String MESSAGE_PATTERN = "%s: %s %s\n";
 
     private CeylonLogFormatter() {
     }
 
     @Override
     public String format(LogRecord record) {
-        //noinspection ThrowableResultOfMethodCallIgnored
-        return String.format(
-                MESSAGE_PATTERN,
-                getErrorType(record.getLevel()),
-                record.getMessage(),
-                record.getThrown() == null ? "" : record.getThrown());
+        // called for every record, so avoid the overhead of String.format()
+        StringBuilder message = new StringBuilder(128);
+        message.append(getErrorType(record.getLevel())).append(": ").append(record.getMessage()).append(' ');
+        if (record.getThrown() != null) {
+            message.append(record.getThrown());
+        }
+        return message.append('\n').toString();
     }
 
     private static String getErrorType(Level level) {
@@ -2,11 +2,15 @@ package com.redhat.ceylon.launcher;
 
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.PrintStream;
 import java.lang.reflect.Method;
 import java.net.MalformedURLException;
 import java.net.URISyntaxException;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.ConsoleHandler;
 import java.util.logging.Handler;
 import java.util.logging.Level;
@@ -16,6 +20,12 @@ import com.redhat.ceylon.common.Constants;
 
 public class Launcher {
     private static volatile CeylonClassLoader ceylonClassLoader;
+    private static volatile PrintStream consoleStream;
+    private static volatile ToolHandles toolHandles;
+    // Guarded by CeylonClassLoader.class: tools currently running on the shared class loader and
+    // other users which acquired it, and whether it must be closed as soon as the last of them returns
+    private static int activeRuns;
+    private static boolean releasePending;
 
     public static void main(String[] args) throws Throwable {
         int exit = run(args);
@@ -25,50 +35,65 @@ public class Launcher {
     }
 
     public static int run(String... args) throws Throwable {
+        // The --sysrep and --ceylonversion options must be known before the class loader is set up
+        String ceylonSystemRepo = getArgument(args, "--sysrep", false);
+        String ceylonSystemVersion = getArgument(args, "--ceylonversion", false);
+        return runTool(ceylonSystemRepo, ceylonSystemVersion, args);
+    }
+
+    /**
+     * Runs a Ceylon tool like {@link #run(String...)}, with the system repository and version
+     * given directly instead of being looked up in the arguments.
+     *
+     * @param ceylonSystemRepo the system repository, or null for the default
+     * @param ceylonSystemVersion the system version, or null for the default
+     * @param args the tool name followed by its options and arguments
+     */
+    public static int runTool(String ceylonSystemRepo, String ceylonSystemVersion, String... args) throws Throwable {
         Java7Checker.check();
 
-        // If the --sysrep option was set on the command line we set the corresponding system property
-        String ceylonSystemRepo = getArgument(args, "--sysrep", false);
+        // If the system repository was given we set the corresponding system property
         if (ceylonSystemRepo != null) {
             System.setProperty(Constants.PROP_CEYLON_SYSTEM_REPO, ceylonSystemRepo);
         }
 
-        // If the --ceylonversion option was set on the command line we set the corresponding system property
-        String ceylonSystemVersion = getArgument(args, "--ceylonversion", false);
+        // If the system version was given we set the corresponding system property
         if (ceylonSystemVersion != null) {
             System.setProperty(Constants.PROP_CEYLON_SYSTEM_VERSION, ceylonSystemVersion);
         }
 
-        CeylonClassLoader loader = getClassLoader();
+        Thread currentThread = Thread.currentThread();
+        ClassLoader previousLoader = currentThread.getContextClassLoader();
+        CeylonClassLoader loader = acquireClassLoader();
+        try {
+            return run(loader, args);
+        } finally {
+            // Don't leave the Ceylon class loader behind as context class loader of the caller
+            currentThread.setContextClassLoader(previousLoader);
+            returnClassLoader();
+        }
+    }
+
+    private static int run(CeylonClassLoader loader, String... args) throws Throwable {
+        ToolHandles handles = getToolHandles(loader);
 
         // We actually need to construct and set a new class path for the compiler
         // which doesn't use the actual class path used by the JVM but it constructs
         // it's own list looking at the arguments passed on the command line or
         // at the system property "env.class.path" which we will be using here.
-        List<File> cp = CeylonClassLoader.getClassPath();
-        StringBuilder classPath = new StringBuilder();
-        for (File f : cp) {
-            if (classPath.length() > 0) {
-                classPath.append(File.pathSeparatorChar);
-            }
-            classPath.append(f.getAbsolutePath());
-        }
-        System.setProperty("env.class.path", classPath.toString());
+        System.setProperty("env.class.path", handles.classPath);
 
-        // Find the main tool class
-        String verbose = null;
-        Class<?> mainClass = loader.loadClass("com.redhat.ceylon.common.tools.CeylonTool");
-        
         // Set up the arguments for the tool
-        Object mainTool = mainClass.newInstance();
-        Method setupMethod = mainClass.getMethod("setup", args.getClass());
-        Integer result = (Integer)setupMethod.invoke(mainTool, (Object)args);
+        String verbose = null;
+        Object mainTool = handles.mainClass.newInstance();
+        Integer result = (Integer)handles.setupMethod.invoke(mainTool, (Object)args);
         if (result == 0 /* SC_OK */) {
             try {
-                Method toolGetter = mainClass.getMethod("getTool");
-                Object tool = toolGetter.invoke(mainTool);
-                Method verboseGetter = tool.getClass().getMethod("getVerbose");
-                verbose = (String)verboseGetter.invoke(tool);
+                Object tool = handles.toolGetter.invoke(mainTool);
+                Method verboseGetter = handles.getVerboseGetter(tool.getClass());
+                if (verboseGetter != null) {
+                    verbose = (String)verboseGetter.invoke(tool);
+                }
             } catch (Exception ex) {
                 // Probably doesn't have a --verbose option
             }
@@ -79,19 +104,31 @@ public class Launcher {
             if (hasVerboseFlag(verbose, "loader")) {
                 Logger log = Logger.getLogger("");
                 log.info("Ceylon home directory is '" + LauncherUtil.determineHome() + "'");
-                for (File f : cp) {
+                for (File f : handles.classPathFiles) {
                     log.info("path = " + f + " (" + (f.exists() ? "OK" : "Not found!") + ")");
                 }
             }
 
             // And finally execute the tool
-            Method execMethod = mainClass.getMethod("execute");
-            result = (Integer)execMethod.invoke(mainTool);
+            result = (Integer)handles.executeMethod.invoke(mainTool);
         }
         
         return result.intValue();
     }
 
+    /**
+     * Returns the reflective handles of the tool entry points for the given class loader,
+     * looking them up only once per class loader.
+     */
+    private static ToolHandles getToolHandles(CeylonClassLoader loader) throws Exception {
+        ToolHandles handles = toolHandles;
+        if (handles == null || handles.loader != loader) {
+            handles = new ToolHandles(loader);
+            toolHandles = handles;
+        }
+        return handles;
+    }
+
     public static CeylonClassLoader getClassLoader() throws MalformedURLException, FileNotFoundException, URISyntaxException {
         // Check if we need to create a CeylonClassLoader or if we can use the existing one
         synchronized (CeylonClassLoader.class) {
@@ -112,6 +149,70 @@ public class Launcher {
         return ceylonClassLoader;
     }
 
+    /**
+     * Returns the shared {@link CeylonClassLoader} for use outside of a tool run, e.g. to load
+     * libraries of the Ceylon distribution. Until it is given back with {@link #returnClassLoader()},
+     * {@link #releaseClassLoader()} defers closing it, like for a running tool.
+     */
+    public static CeylonClassLoader acquireClassLoader() throws MalformedURLException, FileNotFoundException, URISyntaxException {
+        synchronized (CeylonClassLoader.class) {
+            CeylonClassLoader loader = getClassLoader();
+            activeRuns++;
+            return loader;
+        }
+    }
+
+    /**
+     * Gives back a class loader obtained from {@link #acquireClassLoader()}, closing it if its
+     * release was requested in the meantime and it has no other users.
+     */
+    public static void returnClassLoader() throws IOException {
+        CeylonClassLoader released = null;
+        synchronized (CeylonClassLoader.class) {
+            activeRuns--;
+            if (activeRuns == 0 && releasePending) {
+                releasePending = false;
+                released = detachClassLoader();
+            }
+        }
+        closeClassLoader(released);
+    }
+
+    /**
+     * Closes the shared {@link CeylonClassLoader}, if any, releasing the open JAR files
+     * and allowing the compiler classes to be unloaded. A new class loader will be created
+     * on the next call to {@link #run(String...)}. If tools are still running on the class
+     * loader, or it has been acquired, it is closed when the last of them returns.
+     */
+    public static void releaseClassLoader() throws IOException {
+        CeylonClassLoader loader;
+        synchronized (CeylonClassLoader.class) {
+            if (activeRuns > 0) {
+                releasePending = true;
+                return;
+            }
+            loader = detachClassLoader();
+        }
+        closeClassLoader(loader);
+    }
+
+    private static CeylonClassLoader detachClassLoader() {
+        CeylonClassLoader loader = ceylonClassLoader;
+        ceylonClassLoader = null;
+        toolHandles = null;
+        return loader;
+    }
+
+    private static void closeClassLoader(CeylonClassLoader loader) throws IOException {
+        if (loader != null) {
+            Thread currentThread = Thread.currentThread();
+            if (currentThread.getContextClassLoader() == loader) {
+                currentThread.setContextClassLoader(loader.getParent());
+            }
+            loader.close();
+        }
+    }
+
     private static String getArgument(final String[] args, final String test, boolean optionalArgument) {
         for (int i=0; i < args.length; i++) {
             String arg = args[i];
@@ -137,9 +238,23 @@ public class Launcher {
             }
 
             boolean handlersExists = false;
-            for (Handler handler : Logger.getLogger("").getHandlers()) {
+            Logger root = Logger.getLogger("");
+            boolean rebindConsole = consoleStream != System.err;
+            consoleStream = System.err;
+            for (Handler handler : root.getHandlers()) {
                 handlersExists = true;
 
+                // A console handler writes to the System.err it was created with, recreate it
+                // if the caller has redirected System.err since
+                if (rebindConsole && handler instanceof ConsoleHandler) {
+                    ConsoleHandler replacement = new ConsoleHandler();
+                    replacement.setLevel(handler.getLevel());
+                    replacement.setFilter(handler.getFilter());
+                    root.removeHandler(handler);
+                    root.addHandler(replacement);
+                    handler = replacement;
+                }
+
                 //TODO Should we remove this hack? If handler are configured then levels should be too.
                 // This is a hack, but at least it works. With a property file our log
                 // formatter has to be in the boot class path. This way it doesn't.
@@ -181,4 +296,53 @@ public class Launcher {
         }
         return lst.contains(flag);
     }
+
+    /**
+     * The class path and the reflective entry points of the Ceylon tools of a class loader.
+     */
+    private static class ToolHandles {
+        final CeylonClassLoader loader;
+        final List<File> classPathFiles;
+        final String classPath;
+        final Class<?> mainClass;
+        final Method setupMethod;
+        final Method toolGetter;
+        final Method executeMethod;
+        private final Map<Class<?>, Method> verboseGetters = new ConcurrentHashMap<Class<?>, Method>();
+
+        ToolHandles(CeylonClassLoader loader) throws Exception {
+            this.loader = loader;
+            classPathFiles = CeylonClassLoader.getClassPath();
+            StringBuilder classPath = new StringBuilder();
+            for (File f : classPathFiles) {
+                if (classPath.length() > 0) {
+                    classPath.append(File.pathSeparatorChar);
+                }
+                classPath.append(f.getAbsolutePath());
+            }
+            this.classPath = classPath.toString();
+
+            // Find the main tool class
+            mainClass = loader.loadClass("com.redhat.ceylon.common.tools.CeylonTool");
+            setupMethod = mainClass.getMethod("setup", String[].class);
+            toolGetter = mainClass.getMethod("getTool");
+            executeMethod = mainClass.getMethod("execute");
+        }
+
+        /**
+         * Returns the getVerbose() method of the given tool class, or null if it has none.
+         */
+        Method getVerboseGetter(Class<?> toolClass) {
+            Method getter = verboseGetters.get(toolClass);
+            if (getter == null) {
+                try {
+                    getter = toolClass.getMethod("getVerbose");
+                } catch (NoSuchMethodException ex) {
+                    return null;
+                }
+                verboseGetters.put(toolClass, getter);
+            }
+            return getter;
+        }
+    }
 }
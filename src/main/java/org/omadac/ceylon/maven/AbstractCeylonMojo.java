@@ -0,0 +1,206 @@
+/*
+ * Copyright Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the authors tag. All rights reserved.
+ *
+ * This copyrighted material is made available to anyone wishing to use,
+ * modify, copy, or redistribute it subject to the terms and conditions
+ * of the GNU General Public License version 2.
+ * 
+ * This particular file is subject to the "Classpath" exception as provided in the 
+ * LICENSE file that accompanied this code.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT A
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License,
+ * along with this distribution; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ */
+package org.omadac.ceylon.maven;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import org.apache.maven.execution.MavenSession;
+import org.apache.maven.plugin.AbstractMojo;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugins.annotations.Component;
+import org.apache.maven.plugins.annotations.Parameter;
+import org.apache.maven.project.MavenProject;
+import org.codehaus.plexus.util.StringUtils;
+
+import com.redhat.ceylon.launcher.Launcher;
+
+/**
+ * Base class for goals running Ceylon tools through the {@link Launcher}.
+ */
+public abstract class AbstractCeylonMojo extends AbstractMojo {
+
+    /**
+     * Ceylon home directory.
+     */
+    @Parameter(property = "ceylon.home", defaultValue = "${env.CEYLON_HOME}")
+    protected String home;
+
+    /**
+     * The module repositories containing dependencies. Equivalent to the <code>--rep</code>
+     * option.
+     */
+    @Parameter(property = "ceylon.repositories")
+    protected List<String> repositories;
+
+    /**
+     * If <code>true</code>, disables the default module repositories. Equivalent to the
+     * <code>--no-default-repositories</code> option.
+     */
+    @Parameter(property = "ceylon.disableDefaultRepos", defaultValue = "false")
+    protected boolean disableDefaultRepos = false;
+
+    /**
+     * If <code>true</code>, the output repositories of the other <code>car</code> projects in the
+     * reactor are used as module repositories, so that modules built in the same reactor can be
+     * imported without being installed.
+     */
+    @Parameter(property = "ceylon.reactorRepositories", defaultValue = "true")
+    protected boolean reactorRepositories = true;
+
+    /**
+     * If <code>true</code>, the class loader holding the Ceylon tools is closed when this goal
+     * has finished, releasing its JAR files. By default, the class loader is retained and reused
+     * by subsequent Ceylon goals running in the same JVM.
+     */
+    @Parameter(property = "ceylon.releaseClassLoader", defaultValue = "false")
+    protected boolean releaseClassLoader;
+
+    /**
+     * If <code>true</code>, remote module repositories are accessed through a local mirror which
+     * caches module lookups on disk, so that only the first lookup of a module in a build
+     * contacts the remote repository. The mirror is shared by all modules of the build.
+     */
+    @Parameter(property = "ceylon.mirror", defaultValue = "false")
+    protected boolean mirror;
+
+    /**
+     * Cache directory of the repository mirror.
+     */
+    @Parameter(property = "ceylon.mirrorDirectory", defaultValue = "${session.executionRootDirectory}/target/ceylon-mirror")
+    protected File mirrorDirectory;
+
+    /**
+     * Time in seconds for which a module found in a remote repository is served from the
+     * mirror without contacting the repository.
+     */
+    @Parameter(property = "ceylon.mirrorTtl", defaultValue = "3600")
+    protected long mirrorTtl;
+
+    /**
+     * Time in seconds for which a module missing from a remote repository is reported as missing
+     * by the mirror without contacting the repository.
+     */
+    @Parameter(property = "ceylon.mirrorNegativeTtl", defaultValue = "600")
+    protected long mirrorNegativeTtl;
+
+    /**
+     * Token shared with the workers given as <code>host:port</code>, which they require before
+     * accepting a task (see {@link CompileWorker}).
+     */
+    @Parameter(property = "ceylon.workerToken")
+    protected String workerToken;
+
+    /**
+     * If <code>true</code>, the complete output of each tool invocation is written to a log file
+     * in <code>target/ceylon-logs</code>, and only the first <code>consoleLines</code> lines are
+     * logged. Requires <code>bufferedOutput</code>.
+     */
+    @Parameter(property = "ceylon.logFiles", defaultValue = "false")
+    protected boolean logFiles;
+
+    /**
+     * Maximum number of output lines logged per invocation if <code>logFiles</code> is set.
+     */
+    @Parameter(property = "ceylon.consoleLines", defaultValue = "50")
+    protected int consoleLines = 50;
+
+    @Component
+    protected MavenProject project;
+
+    @Component
+    protected MavenSession session;
+
+    /**
+     * Releases the class loader of the Ceylon tools if requested. Tools still running in other
+     * threads keep it open until the last of them has finished.
+     */
+    protected void releaseClassLoader() {
+        if (releaseClassLoader) {
+            try {
+                Launcher.releaseClassLoader();
+            }
+            catch (IOException e) {
+                getLog().warn("Cannot close Ceylon class loader", e);
+            }
+        }
+    }
+
+    /**
+     * Adds the module repositories to an invocation: the given repositories, accessed through the
+     * shared {@link RepositoryMirror} if <code>mirror</code> is set, followed by the output
+     * repositories of the reactor.
+     * 
+     * @param offline whether the mirror may contact remote repositories
+     */
+    protected void addRepositories(CeylonInvocation invocation, List<String> repositories, boolean offline)
+        throws MojoExecutionException {
+        invocation.noDefaultRepositories(disableDefaultRepos && !mirror);
+        if (mirror) {
+            try {
+                RepositoryMirror repositoryMirror = RepositoryMirror.getInstance(mirrorDirectory,
+                    mirrorTtl, mirrorNegativeTtl, offline, getLog());
+                invocation.options(repositoryMirror.buildRepositoryOptions(repositories, disableDefaultRepos));
+            }
+            catch (IOException e) {
+                throw new MojoExecutionException("Cannot start repository mirror", e);
+            }
+        }
+        else {
+            invocation.repositories(repositories);
+        }
+
+        if (reactorRepositories) {
+            invocation.repositories(ReactorRepositories.getRepositories(session, project));
+        }
+    }
+
+    /**
+     * Opens the output of a goal for the given modules, or returns <code>null</code> if the output
+     * is not buffered.
+     */
+    protected ModuleOutput openOutput(String goal, List<String> moduleNames, boolean buffered) throws IOException {
+        if (!buffered) {
+            return null;
+        }
+        String name = StringUtils.join(moduleNames.iterator(), ",");
+        if (goal.endsWith("-js")) {
+            name += " js";
+        }
+        File logFile = null;
+        if (logFiles) {
+            logFile = new File(new File(project.getBuild().getDirectory(), "ceylon-logs"), goal + "-" + name + ".log");
+        }
+        return new ModuleOutput(name, getLog(), logFile, consoleLines);
+    }
+
+    protected void closeOutput(ModuleOutput output) {
+        if (output == null) {
+            return;
+        }
+        try {
+            output.close();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the authors tag. All rights reserved.
+ *
+ * This copyrighted material is made available to anyone wishing to use,
+ * modify, copy, or redistribute it subject to the terms and conditions
+ * of the GNU General Public License version 2.
+ * 
+ * This particular file is subject to the "Classpath" exception as provided in the 
+ * LICENSE file that accompanied this code.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT A
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License,
+ * along with this distribution; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ */
+package org.omadac.ceylon.maven;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugins.annotations.Parameter;
+
+/**
+ * Base class for the goals running Ceylon modules, which can run in the Maven JVM or in a forked
+ * JVM, optionally with a Flight Recorder profile.
+ */
+public abstract class AbstractCeylonRunMojo extends AbstractCeylonMojo {
+
+    /**
+     * If <code>true</code>, the Ceylon tool runs in a separate JVM.
+     */
+    @Parameter(property = "ceylon.fork", defaultValue = "false")
+    protected boolean fork;
+
+    /**
+     * Options for the forked JVM, e.g. heap settings.
+     */
+    @Parameter
+    protected List<String> jvmArgs;
+
+    /**
+     * If <code>true</code>, the forked JVM records a Java Flight Recorder profile into the build
+     * directory, and a summary of hot methods, allocation sites and lock contention is logged at
+     * the end of the goal. Implies <code>fork</code>.
+     */
+    @Parameter(property = "ceylon.profile", defaultValue = "false")
+    protected boolean profile;
+
+    /**
+     * The Flight Recorder settings, either the name of a settings file of the JDK ("default" or
+     * "profile") or the path of a <code>.jfc</code> file, which must not contain commas.
+     */
+    @Parameter(property = "ceylon.profileSettings", defaultValue = "profile")
+    protected String profileSettings;
+
+    /**
+     * If <code>true</code>, forked JVMs use a Class Data Sharing archive of the Ceylon tools to
+     * start faster. The archive is created on first use by a training run (Java 13 or later).
+     */
+    @Parameter(property = "ceylon.cds", defaultValue = "true")
+    protected boolean classDataSharing = true;
+
+    /**
+     * Directory for the Class Data Sharing archives, which are shared by all builds.
+     */
+    @Parameter(property = "ceylon.cdsDirectory", defaultValue = "${user.home}/.m2/ceylon-cds")
+    protected File cdsDirectory;
+
+    protected ForkedLauncher createForkedLauncher(File recording) throws IOException, MojoExecutionException {
+        ForkedLauncher launcher = new ForkedLauncher(home, getLog());
+        if (classDataSharing) {
+            launcher.setClassDataSharing(cdsDirectory);
+        }
+        if (jvmArgs != null) {
+            for (String jvmArg : jvmArgs) {
+                launcher.addJvmArg(jvmArg);
+            }
+        }
+        if (profile) {
+            // the Flight Recorder options are separated by commas and cannot be quoted
+            if (profileSettings.indexOf(',') >= 0 || recording.getAbsolutePath().indexOf(',') >= 0) {
+                throw new MojoExecutionException("The Flight Recorder settings " + profileSettings
+                    + " and the recording " + recording + " must not contain commas");
+            }
+            recording.getParentFile().mkdirs();
+            launcher.addJvmArg("-XX:StartFlightRecording=settings=" + profileSettings + ",filename="
+                + recording.getAbsolutePath() + ",dumponexit=true");
+        }
+        launcher.setMeasurePeakHeap(true);
+        return launcher;
+    }
+}
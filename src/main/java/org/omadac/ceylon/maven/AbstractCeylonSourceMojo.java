@@ -0,0 +1,367 @@
+/*
+ * Copyright Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the authors tag. All rights reserved.
+ *
+ * This copyrighted material is made available to anyone wishing to use,
+ * modify, copy, or redistribute it subject to the terms and conditions
+ * of the GNU General Public License version 2.
+ * 
+ * This particular file is subject to the "Classpath" exception as provided in the 
+ * LICENSE file that accompanied this code.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT A
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License,
+ * along with this distribution; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ */
+package org.omadac.ceylon.maven;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugins.annotations.Parameter;
+
+import com.redhat.ceylon.common.Constants;
+
+/**
+ * Base class for the goals running a Ceylon tool on the source modules of the project: the
+ * compile goals and the doc goal. It runs the tool in-process or forked, records its metrics, and
+ * maintains the source fingerprints and the repository of Maven dependencies.
+ */
+public abstract class AbstractCeylonSourceMojo extends AbstractCeylonMojo {
+
+    /**
+     * The output repository, receiving the <code>.car</code> files or the documentation.
+     * Equivalent to the <code>--out</code> option.
+     */
+    @Parameter(property = "ceylon.out", defaultValue = "${project.build.directory}")
+    protected String out;
+
+    /**
+     * The directory containing ceylon source code. Equivalent to the <code>--source</code>
+     * option.
+     */
+    @Parameter(property = "ceylon.source", defaultValue = "${project.build.sourceDirectory}")
+    protected File source;
+
+    /**
+     * The directory containing ceylon resource code. Equivalent to the <code>--resource</code>
+     * option of "ceylon compile".
+     */
+    @Parameter(property = "ceylon.resource", defaultValue = "${project.build.resources[0].directory}")
+    protected File resource;
+
+    /**
+     * The modules to compile or document (without versions).
+     */
+    @Parameter(property = "ceylon.modules", required = true)
+    protected List<String> modules;
+
+    /**
+     * Whether the build should fail if there are errors
+     */
+    @Parameter(property = "ceylon.failOnError", defaultValue = "true")
+    protected boolean failOnError = true;
+
+    /**
+     * The user name to use for the output repository. Corresponds to the <code>--user</code>
+     * option.
+     */
+    @Parameter(property = "ceylon.username")
+    protected String username;
+
+    /**
+     * The password to use for the output repository. Corresponds to the <code>--pass</code>
+     * option.
+     */
+    @Parameter(property = "ceylon.password")
+    protected String password;
+
+    /**
+     * The source file character encoding.
+     * 
+     */
+    @Parameter(property = "project.build.sourceEncoding", defaultValue = "${file.encoding}")
+    protected String encoding;
+
+    /**
+     * Maximum number of concurrent tool invocations: compilations in parallel mode, or groups of
+     * modules documented by the doc goal. Defaults to the number of available processors.
+     */
+    @Parameter(property = "ceylon.threads", defaultValue = "0")
+    protected int threads;
+
+    /**
+     * If <code>true</code>, forked JVMs use a Class Data Sharing archive of the Ceylon tools to
+     * start faster. The archive is created on first use by a training run (Java 13 or later).
+     */
+    @Parameter(property = "ceylon.cds", defaultValue = "true")
+    protected boolean classDataSharing = true;
+
+    /**
+     * Directory for the Class Data Sharing archives, which are shared by all builds.
+     */
+    @Parameter(property = "ceylon.cdsDirectory", defaultValue = "${user.home}/.m2/ceylon-cds")
+    protected File cdsDirectory;
+
+    @Parameter(defaultValue = "${settings.offline}", readonly = true)
+    protected boolean settingsOffline;
+
+    /**
+     * If <code>true</code>, the resolved Maven dependencies of the project are made available to
+     * the Ceylon tools as Ceylon modules named <code>groupId.artifactId</code>, in a repository under
+     * the build directory. The JAR files are linked, not copied, into this repository.
+     */
+    @Parameter(property = "ceylon.mavenDependencies", defaultValue = "false")
+    protected boolean mavenDependencies;
+
+    /**
+     * How the Ceylon tool is run: <code>inProcess</code> in the Maven JVM, <code>forked</code>
+     * in a separate JVM, or <code>auto</code> to choose between the two based on the duration
+     * and heap usage of previous runs, recorded in the build directory, and the heap available.
+     * Ignored by the compile goal in <code>parallel</code> mode, which always forks.
+     */
+    @Parameter(property = "ceylon.executionMode", defaultValue = "inProcess")
+    protected String executionMode;
+
+    /**
+     * Heap in MB available to in-process invocations of the Ceylon tools running at the same time
+     * in the build, e.g. with <code>mvn -T</code>. Invocations which would exceed it wait for
+     * others to finish. Each invocation is assumed to use the heap it used last time, at least
+     * 128 MB, or an estimate based on the size of its sources. Defaults to 75% of the maximum
+     * heap. The first goal using the budget sets it for the whole build.
+     */
+    @Parameter(property = "ceylon.memoryBudget", defaultValue = "0")
+    protected long memoryBudget;
+
+    /**
+     * If <code>true</code>, the output of the tool is buffered and passed to the Maven log line
+     * by line, prefixed with the module names, so that the output of modules processed
+     * concurrently does not interleave.
+     */
+    @Parameter(property = "ceylon.bufferedOutput", defaultValue = "true")
+    protected boolean bufferedOutput = true;
+
+    /**
+     * If <code>true</code>, a compiler backend or the doc goal only processes the modules whose
+     * sources, imports or options have changed since it last processed them successfully, or
+     * whose output is missing from the output repository. The source fingerprints are recorded in
+     * the build directory.
+     */
+    @Parameter(property = "ceylon.incremental", defaultValue = "true")
+    protected boolean incremental = true;
+
+    private File updatedDependencyRepository;
+
+    /**
+     * Set while tools run concurrently within the goal, which cannot share the in-process
+     * {@link com.redhat.ceylon.launcher.Launcher}: it keeps its state in system properties and a
+     * static class loader.
+     */
+    protected volatile boolean forceFork;
+
+    /**
+     * Returns the source fingerprints of the modules, or <code>null</code> if compilation is not
+     * incremental.
+     */
+    protected SourceFingerprints createFingerprints() throws MojoExecutionException {
+        if (!incremental) {
+            return null;
+        }
+        List<String> reps = new ArrayList<String>();
+        reps.add(out);
+        if (repositories != null) {
+            reps.addAll(repositories);
+        }
+        if (reactorRepositories) {
+            reps.addAll(ReactorRepositories.getRepositories(session, project));
+        }
+        List<File> localRepositories = new ArrayList<File>();
+        for (String rep : reps) {
+            File dir = new File(rep);
+            if (dir.isDirectory()) {
+                localRepositories.add(dir);
+            }
+        }
+        try {
+            return new SourceFingerprints(project.getBuild().getDirectory(), Arrays.asList(source, resource),
+                localRepositories, encoding);
+        }
+        catch (IOException e) {
+            throw new MojoExecutionException("Cannot read source fingerprints", e);
+        }
+    }
+
+    protected void storeFingerprints(SourceFingerprints fingerprints) {
+        if (fingerprints == null) {
+            return;
+        }
+        try {
+            fingerprints.store();
+        }
+        catch (IOException e) {
+            getLog().warn("Cannot write source fingerprints", e);
+        }
+    }
+
+    /**
+     * Runs a Ceylon tool, on a worker if {@link #runRemote} accepts it, or else in-process or
+     * forked depending on the execution mode, and records its metrics.
+     * 
+     * @return exit code of the tool
+     */
+    protected int runTool(String goal, List<String> moduleNames, CeylonInvocation invocation)
+        throws MojoExecutionException {
+        ExecutionHistory history = new ExecutionHistory(project.getBuild().getDirectory(), getLog());
+        int sc = 0;
+        BuildMetrics.Sample sample;
+        ModuleOutput output = null;
+        try {
+            output = openToolOutput(goal, moduleNames);
+            long start = System.currentTimeMillis();
+            Integer remote = runRemote(invocation, output);
+            if (remote != null) {
+                if (isCancelled(output)) {
+                    return 1;
+                }
+                recordDuration(goal, moduleNames, start);
+                return remote;
+            }
+            if (forceFork || history.isForked(executionMode, goal, moduleNames)) {
+                sample = new BuildMetrics.Sample();
+                ForkedLauncher launcher = new ForkedLauncher(home, getLog());
+                if (classDataSharing) {
+                    launcher.setClassDataSharing(cdsDirectory);
+                }
+                launcher.setMeasurePeakHeap(true);
+                launcher.setOutput(output);
+                sc = launcher.run(invocation.toArgs());
+                if (isCancelled(output)) {
+                    return 1;
+                }
+                history.recordForked(goal, moduleNames, sample.getMillis(), launcher.getPeakHeap());
+            }
+            else {
+                long estimate = MemoryScheduler.estimate(history.getHeap(goal, moduleNames), getSourceDirectories(),
+                    moduleNames);
+                MemoryScheduler scheduler = MemoryScheduler.getInstance(memoryBudget, getLog());
+                scheduler.acquire(estimate, "'ceylon " + invocation.getTool() + "' of " + moduleNames, getLog());
+                if (output != null) {
+                    OutputBridge.attach(output);
+                }
+                sample = new BuildMetrics.Sample();
+                sample.startHeap();
+                try {
+                    System.setProperty(Constants.PROP_CEYLON_HOME_DIR, home);
+                    sc = invocation.run();
+                }
+                catch (Throwable e) {
+                    if (isCancelled(output)) {
+                        return 1;
+                    }
+                    throw e;
+                }
+                finally {
+                    sample.stopHeap();
+                    OutputBridge.detach();
+                    scheduler.release(estimate);
+                }
+                if (isCancelled(output)) {
+                    return 1;
+                }
+                history.record(goal, moduleNames, sample.getMillis(), sample.getHeapIncrease());
+            }
+            recordMetrics(goal, moduleNames, sample);
+        }
+        catch (MojoExecutionException e) {
+            throw e;
+        }
+        catch (Throwable e) {
+            throw new MojoExecutionException("'ceylon " + invocation.getTool() + "' returned an unexpected result", e);
+        }
+        finally {
+            closeOutput(output);
+            releaseClassLoader();
+        }
+        return sc;
+    }
+
+    /**
+     * Returns the source directories of the processed modules.
+     */
+    protected List<File> getSourceDirectories() {
+        return Collections.singletonList(source);
+    }
+
+    /**
+     * Updates the repository of Maven dependencies with the given name in the build directory.
+     * 
+     * @return the repository path
+     */
+    protected synchronized String updateDependencyRepository(String name) throws MojoExecutionException {
+        File repository = new File(project.getBuild().getDirectory(), name);
+        if (repository.equals(updatedDependencyRepository)) {
+            return repository.getPath();
+        }
+        try {
+            new DependencyRepository(repository, getLog()).update(project.getArtifacts());
+        }
+        catch (IOException e) {
+            throw new MojoExecutionException("Cannot create repository of Maven dependencies", e);
+        }
+        updatedDependencyRepository = repository;
+        return repository.getPath();
+    }
+
+    protected void recordDuration(String goal, List<String> moduleNames, long start) {
+        try {
+            BuildMetrics.recordDuration(project.getBuild().getDirectory(), goal, moduleNames,
+                System.currentTimeMillis() - start, session.getStartTime());
+        }
+        catch (IOException e) {
+            getLog().warn("Cannot record build metrics", e);
+        }
+    }
+
+    protected void recordMetrics(String goal, List<String> moduleNames, BuildMetrics.Sample sample) {
+        try {
+            BuildMetrics.record(project.getBuild().getDirectory(), goal, moduleNames, sample, session.getStartTime());
+        }
+        catch (IOException e) {
+            getLog().warn("Cannot record build metrics", e);
+        }
+    }
+
+    /**
+     * Opens the output of a tool invocation, or returns <code>null</code> if the output is not
+     * buffered.
+     */
+    protected ModuleOutput openToolOutput(String goal, List<String> moduleNames) throws IOException {
+        return openOutput(goal, moduleNames, bufferedOutput);
+    }
+
+    /**
+     * Runs the given invocation elsewhere, e.g. on a compile worker.
+     * 
+     * @return exit code of the tool, or <code>null</code> if it has to run locally
+     */
+    protected Integer runRemote(CeylonInvocation invocation, ModuleOutput output) throws MojoExecutionException,
+        InterruptedException {
+        return null;
+    }
+
+    /**
+     * Checks if the tool writing to the given output has been cancelled.
+     */
+    protected boolean isCancelled(ModuleOutput output) {
+        return output != null && output.isCancelled();
+    }
+}
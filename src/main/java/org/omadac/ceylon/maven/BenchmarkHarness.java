@@ -0,0 +1,153 @@
+/*
+ * Copyright Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the authors tag. All rights reserved.
+ *
+ * This copyrighted material is made available to anyone wishing to use,
+ * modify, copy, or redistribute it subject to the terms and conditions
+ * of the GNU General Public License version 2.
+ * 
+ * This particular file is subject to the "Classpath" exception as provided in the 
+ * LICENSE file that accompanied this code.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT A
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License,
+ * along with this distribution; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ */
+package org.omadac.ceylon.maven;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.codehaus.plexus.util.FileUtils;
+
+/**
+ * Generates a Ceylon module running the benchmark functions of another module. Benchmark
+ * functions are shared toplevel functions without parameters, annotated with an annotation named
+ * <code>benchmark</code> (which the benchmark module has to declare), or listed explicitly.
+ * <p>
+ * For each benchmark, the harness runs a number of warmup iterations and then prints one line
+ * <code>BENCHMARK &lt;name&gt; &lt;nanoseconds&gt;</code> per measurement iteration. Each
+ * iteration calls the function <code>batchSize</code> times. The results of the calls are stored
+ * in a shared toplevel value, so the JIT compiler cannot eliminate the calls as dead code.
+ */
+public class BenchmarkHarness {
+
+    public static final String MODULE = "benchmark.harness";
+
+    public static final String VERSION = "1.0.0";
+
+    public static final String RESULT_PREFIX = "BENCHMARK ";
+
+    private static final Pattern BENCHMARK = Pattern
+        .compile("\\bbenchmark\\s+(?:(?:shared|doc\\s*\\(\\s*\"[^\"]*\"\\s*\\))\\s+)*\\w+\\s+(\\w+)\\s*\\(\\s*\\)");
+
+    private static final Pattern COMMENT = Pattern.compile("(?s)/\\*.*?\\*/|//[^\\n]*");
+
+    private final String module;
+
+    private final String version;
+
+    private final List<String> benchmarks = new ArrayList<String>();
+
+    public BenchmarkHarness(String module, String version) {
+        this.module = module;
+        this.version = version;
+    }
+
+    public List<String> getBenchmarks() {
+        return benchmarks;
+    }
+
+    /**
+     * Adds a benchmark function by its qualified name <code>package::function</code>.
+     */
+    public void addBenchmark(String name) {
+        if (!benchmarks.contains(name)) {
+            benchmarks.add(name);
+        }
+    }
+
+    /**
+     * Adds the annotated benchmark functions found in the sources of the module.
+     */
+    public void discover(File sourceDir, String encoding) throws IOException {
+        discover(ModuleGraph.getModuleDir(sourceDir, module), module, encoding);
+    }
+
+    private void discover(File dir, String pkg, String encoding) throws IOException {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (file.isDirectory()) {
+                discover(file, pkg + "." + file.getName(), encoding);
+            }
+            else if (file.getName().endsWith(".ceylon")) {
+                String source = COMMENT.matcher(FileUtils.fileRead(file, encoding)).replaceAll("");
+                Matcher matcher = BENCHMARK.matcher(source);
+                while (matcher.find()) {
+                    addBenchmark(pkg + "::" + matcher.group(1));
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the sources of the harness module into the given source directory.
+     */
+    public void generate(File sourceDir, int warmupIterations, int measurementIterations,
+        int batchSize) throws IOException {
+        File dir = ModuleGraph.getModuleDir(sourceDir, MODULE);
+        FileUtils.deleteDirectory(dir);
+        dir.mkdirs();
+
+        write(new File(dir, "module.ceylon"), "module " + MODULE + " \"" + VERSION + "\" {\n"
+            + "    import " + module + " \"" + version + "\";\n" + "}\n");
+        write(new File(dir, "package.ceylon"), "package " + MODULE + ";\n");
+
+        StringBuilder run = new StringBuilder();
+        for (int i = 0; i < benchmarks.size(); i++) {
+            String[] name = benchmarks.get(i).split("::");
+            run.append("import ").append(name[0]).append(" { benchmark").append(i).append("=")
+                .append(name[1]).append(" }\n");
+        }
+        run.append("\n");
+        run.append("\"Consumes the benchmark results, a shared value the JIT compiler cannot ignore.\"\n");
+        run.append("shared variable Anything blackhole = null;\n\n");
+        run.append("void measure(String name, Anything() benchmark) {\n");
+        run.append("    variable Integer i = 0;\n");
+        run.append("    while (i < " + (warmupIterations + measurementIterations) + ") {\n");
+        run.append("        value start = system.nanoseconds;\n");
+        run.append("        variable Integer j = 0;\n");
+        run.append("        while (j < " + batchSize + ") {\n");
+        run.append("            blackhole = benchmark();\n");
+        run.append("            j++;\n");
+        run.append("        }\n");
+        run.append("        value time = system.nanoseconds - start;\n");
+        run.append("        if (i >= " + warmupIterations + ") {\n");
+        run.append("            print(\"" + RESULT_PREFIX + "``name`` ``time``\");\n");
+        run.append("        }\n");
+        run.append("        i++;\n");
+        run.append("    }\n");
+        run.append("}\n\n");
+        run.append("shared void run() {\n");
+        for (int i = 0; i < benchmarks.size(); i++) {
+            run.append("    measure(\"").append(benchmarks.get(i)).append("\", benchmark").append(i).append(");\n");
+        }
+        run.append("}\n");
+        write(new File(dir, "run.ceylon"), run.toString());
+    }
+
+    private static void write(File file, String content) throws IOException {
+        FileUtils.fileWrite(file.getAbsolutePath(), "UTF-8", content);
+    }
+}
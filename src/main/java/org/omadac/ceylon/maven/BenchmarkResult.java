@@ -0,0 +1,119 @@
+/*
+ * Copyright Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the authors tag. All rights reserved.
+ *
+ * This copyrighted material is made available to anyone wishing to use,
+ * modify, copy, or redistribute it subject to the terms and conditions
+ * of the GNU General Public License version 2.
+ * 
+ * This particular file is subject to the "Classpath" exception as provided in the 
+ * LICENSE file that accompanied this code.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT A
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License,
+ * along with this distribution; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ */
+package org.omadac.ceylon.maven;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Measurements of one benchmark: the duration of each measurement iteration, and statistics
+ * derived from them. Latencies are in nanoseconds per operation, throughput in operations per
+ * second.
+ * <p>
+ * Each sample is the mean over a batch of operations, so the distribution of single operations
+ * is unknown and only the mean latency and its standard error are reported.
+ */
+public class BenchmarkResult {
+
+    private final String name;
+
+    private final int batchSize;
+
+    private final List<Long> samples = new ArrayList<Long>();
+
+    public BenchmarkResult(String name, int batchSize) {
+        this.name = name;
+        this.batchSize = batchSize;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void addSample(long nanos) {
+        samples.add(nanos);
+    }
+
+    public List<Long> getSamples() {
+        return samples;
+    }
+
+    public double getThroughput() {
+        long total = 0;
+        for (long sample : samples) {
+            total += sample;
+        }
+        return (total == 0) ? 0 : samples.size() * (double) batchSize * 1e9 / total;
+    }
+
+    public double getMean() {
+        double total = 0;
+        for (long sample : samples) {
+            total += sample;
+        }
+        return samples.isEmpty() ? 0 : total / samples.size() / batchSize;
+    }
+
+    /**
+     * Returns the standard deviation of the per-operation latency of the iterations.
+     */
+    public double getStandardDeviation() {
+        if (samples.size() < 2) {
+            return 0;
+        }
+        double mean = getMean();
+        double squares = 0;
+        for (long sample : samples) {
+            double latency = (double) sample / batchSize;
+            squares += (latency - mean) * (latency - mean);
+        }
+        return Math.sqrt(squares / (samples.size() - 1));
+    }
+
+    /**
+     * Returns the standard error of the mean latency.
+     */
+    public double getError() {
+        return samples.isEmpty() ? 0 : getStandardDeviation() / Math.sqrt(samples.size());
+    }
+
+    public String toJson() {
+        StringBuilder json = new StringBuilder();
+        json.append("{\"name\": \"").append(name).append("\"");
+        json.append(", \"throughput\": ").append(format(getThroughput()));
+        json.append(", \"mean\": ").append(format(getMean()));
+        json.append(", \"error\": ").append(format(getError()));
+        json.append(", \"stddev\": ").append(format(getStandardDeviation()));
+        json.append(", \"samples\": ").append(samples);
+        json.append("}");
+        return json.toString();
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ROOT, "%s: %.1f ops/s, mean %.1f +/- %.1f ns (standard error, %d iterations)",
+            name, getThroughput(), getMean(), getError(), samples.size());
+    }
+
+    private static String format(double value) {
+        return String.format(Locale.ROOT, "%.3f", value);
+    }
+}
@@ -0,0 +1,335 @@
+/*
+ * Copyright Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the authors tag. All rights reserved.
+ *
+ * This copyrighted material is made available to anyone wishing to use,
+ * modify, copy, or redistribute it subject to the terms and conditions
+ * of the GNU General Public License version 2.
+ * 
+ * This particular file is subject to the "Classpath" exception as provided in the 
+ * LICENSE file that accompanied this code.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT A
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License,
+ * along with this distribution; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ */
+package org.omadac.ceylon.maven;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.OperatingSystemMXBean;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Properties;
+import java.util.Set;
+
+import org.codehaus.plexus.util.IOUtil;
+
+/**
+ * Metrics of a build, such as compile and test durations, stored as properties in the build
+ * directory. Metric names have the form <code>&lt;goal&gt;.&lt;modules&gt;.&lt;unit&gt;</code>.
+ * Goals measured with a {@link Sample} also record the CPU time of the Maven JVM
+ * (<code>cpu.millis</code>) and, if the heap was measured without overlapping measurements, its
+ * peak heap usage (<code>peakHeap.bytes</code>); work done in forked JVMs is not included in
+ * these. Benchmark latencies are recorded as <code>benchmark.&lt;function&gt;.nanos</code>, with
+ * their standard deviation and number of iterations in the <code>.stddev</code> and
+ * <code>.n</code> entries.
+ * <p>
+ * Each metric has a <code>.timestamp</code> entry. When a goal records metrics, the metrics it
+ * recorded before the current build started are removed, so metrics of module sets which are no
+ * longer compiled or tested do not linger.
+ */
+public class BuildMetrics {
+
+    public static final String FILE_NAME = "ceylon-metrics.properties";
+
+    public static final String BENCHMARK = "benchmark";
+
+    private static final String TIMESTAMP = ".timestamp";
+
+    private static final String[] SUFFIXES = { ".stddev", ".n", TIMESTAMP };
+
+    private static final String[] UNITS = { ".cpu.millis", ".peakHeap.bytes", ".millis", ".nanos" };
+
+    private BuildMetrics() {
+    }
+
+    public static File getFile(String buildDir) {
+        return new File(buildDir, FILE_NAME);
+    }
+
+    /**
+     * Records the duration of a goal execution for the given modules.
+     * 
+     * @param buildStart start of the current build, older metrics of the goal are removed
+     */
+    public static synchronized void recordDuration(String buildDir, String goal, Iterable<String> modules,
+        long millis, Date buildStart) throws IOException {
+        File file = getFile(buildDir);
+        Properties metrics = load(file);
+        prune(metrics, goal, buildStart);
+        String key = getKey(goal, modules);
+        metrics.setProperty(key + ".millis", Long.toString(millis));
+        metrics.setProperty(key + TIMESTAMP, Long.toString(System.currentTimeMillis()));
+        store(file, metrics);
+    }
+
+    /**
+     * Records the duration, CPU time and, if it was measured, the peak heap usage of a goal
+     * execution started when the given sample was taken.
+     * 
+     * @param buildStart start of the current build, older metrics of the goal are removed
+     */
+    public static synchronized void record(String buildDir, String goal, Iterable<String> modules, Sample sample,
+        Date buildStart) throws IOException {
+        String key = getKey(goal, modules);
+        File file = getFile(buildDir);
+        Properties metrics = load(file);
+        prune(metrics, goal, buildStart);
+        metrics.setProperty(key + TIMESTAMP, Long.toString(System.currentTimeMillis()));
+        metrics.setProperty(key + ".millis", Long.toString(sample.getMillis()));
+        long cpuMillis = sample.getCpuMillis();
+        if (cpuMillis >= 0) {
+            metrics.setProperty(key + ".cpu.millis", Long.toString(cpuMillis));
+        }
+        if (sample.getPeakHeap() >= 0) {
+            metrics.setProperty(key + ".peakHeap.bytes", Long.toString(sample.getPeakHeap()));
+        }
+        store(file, metrics);
+    }
+
+    /**
+     * Records the mean latencies of benchmarks, replacing all benchmark metrics recorded before the
+     * current build.
+     */
+    public static synchronized void recordBenchmarks(String buildDir, Iterable<BenchmarkResult> results,
+        Date buildStart) throws IOException {
+        File file = getFile(buildDir);
+        Properties metrics = load(file);
+        prune(metrics, BENCHMARK, buildStart);
+        String timestamp = Long.toString(System.currentTimeMillis());
+        for (BenchmarkResult result : results) {
+            String key = BENCHMARK + "." + result.getName();
+            metrics.setProperty(key + TIMESTAMP, timestamp);
+            metrics.setProperty(key + ".nanos", Double.toString(result.getMean()));
+            metrics.setProperty(key + ".nanos.stddev", Double.toString(result.getStandardDeviation()));
+            metrics.setProperty(key + ".nanos.n", Integer.toString(result.getSamples().size()));
+        }
+        store(file, metrics);
+    }
+
+    /**
+     * Checks if the given property is a metric value rather than its timestamp or statistics.
+     */
+    public static boolean isMetric(String name) {
+        for (String suffix : SUFFIXES) {
+            if (name.endsWith(suffix)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Removes the metrics of the given goal which were recorded before the build start, or which
+     * have no timestamp.
+     */
+    private static void prune(Properties metrics, String goal, Date buildStart) {
+        if (buildStart == null) {
+            return;
+        }
+        String prefix = goal + ".";
+        for (String name : metrics.stringPropertyNames()) {
+            if (!name.startsWith(prefix)) {
+                continue;
+            }
+            String timestamp = metrics.getProperty(getBaseKey(name) + TIMESTAMP);
+            if (timestamp == null || Long.parseLong(timestamp) < buildStart.getTime()) {
+                metrics.remove(name);
+            }
+        }
+    }
+
+    /**
+     * Returns the <code>&lt;goal&gt;.&lt;modules&gt;</code> part of a property name.
+     */
+    private static String getBaseKey(String name) {
+        for (String suffix : SUFFIXES) {
+            if (name.endsWith(suffix)) {
+                name = name.substring(0, name.length() - suffix.length());
+                break;
+            }
+        }
+        for (String unit : UNITS) {
+            if (name.endsWith(unit)) {
+                return name.substring(0, name.length() - unit.length());
+            }
+        }
+        return name;
+    }
+
+    private static String getKey(String goal, Iterable<String> modules) {
+        StringBuilder key = new StringBuilder(goal).append('.');
+        String separator = "";
+        for (String module : modules) {
+            key.append(separator).append(module);
+            separator = ",";
+        }
+        return key.toString();
+    }
+
+    public static Properties load(File file) throws IOException {
+        Properties properties = new Properties();
+        if (file.isFile()) {
+            InputStream is = new FileInputStream(file);
+            try {
+                properties.load(is);
+            }
+            finally {
+                IOUtil.close(is);
+            }
+        }
+        return properties;
+    }
+
+    /**
+     * Writes the properties to a temporary file, which then atomically replaces the given file, so
+     * that concurrent builds and killed builds never leave a partial file behind.
+     */
+    public static void store(File file, Properties properties) throws IOException {
+        File dir = file.getAbsoluteFile().getParentFile();
+        dir.mkdirs();
+        File tmpFile = File.createTempFile(file.getName(), ".tmp", dir);
+        try {
+            OutputStream os = new FileOutputStream(tmpFile);
+            try {
+                properties.store(os, null);
+            }
+            finally {
+                IOUtil.close(os);
+            }
+            Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        }
+        finally {
+            tmpFile.delete();
+        }
+    }
+
+    /**
+     * Wall clock and CPU time at the start of a goal execution, and optionally the heap used by
+     * in-process work between {@link #startHeap()} and {@link #stopHeap()}. The peak usage of the
+     * heap memory pools is global to the JVM, so the heap is only measured if no other measurement
+     * in the JVM overlaps with it; otherwise it is unknown.
+     */
+    public static class Sample {
+
+        private static final Set<Sample> measuring = new HashSet<Sample>();
+
+        private final long startNanos = System.nanoTime();
+
+        private final long startCpuNanos = getCpuNanos();
+
+        private long startHeap;
+
+        private long peakHeap = -1;
+
+        private boolean overlapped;
+
+        public long getMillis() {
+            return (System.nanoTime() - startNanos) / 1000000;
+        }
+
+        /**
+         * Returns the CPU time of the JVM since the sample was taken, or -1 if not supported.
+         */
+        public long getCpuMillis() {
+            long cpuNanos = getCpuNanos();
+            return (cpuNanos < 0 || startCpuNanos < 0) ? -1 : (cpuNanos - startCpuNanos) / 1000000;
+        }
+
+        /**
+         * Starts measuring the heap. If no other measurement is running, the peak usage of the heap
+         * memory pools is reset; otherwise this and the running measurements are invalidated.
+         * Must be followed by {@link #stopHeap()}, usually in a <code>finally</code> block.
+         */
+        public void startHeap() {
+            synchronized (Sample.class) {
+                if (measuring.isEmpty()) {
+                    startHeap = 0;
+                    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+                        if (pool.getType() == MemoryType.HEAP && pool.isValid()) {
+                            pool.resetPeakUsage();
+                            startHeap += pool.getUsage().getUsed();
+                        }
+                    }
+                }
+                else {
+                    overlapped = true;
+                    for (Sample sample : measuring) {
+                        sample.overlapped = true;
+                    }
+                }
+                measuring.add(this);
+            }
+        }
+
+        /**
+         * Stops measuring the heap.
+         */
+        public void stopHeap() {
+            synchronized (Sample.class) {
+                if (measuring.remove(this) && !overlapped) {
+                    peakHeap = readPeakHeap();
+                }
+            }
+        }
+
+        /**
+         * Returns the sum of the peak usages of the heap memory pools while the heap was measured,
+         * or -1 if it was not measured or another measurement overlapped with it.
+         */
+        public long getPeakHeap() {
+            return peakHeap;
+        }
+
+        /**
+         * Returns the increase of the peak heap usage over the heap usage when the measurement
+         * started, an estimate of the heap used by the work done in between, or -1 if the heap was
+         * not measured or another measurement overlapped with it.
+         */
+        public long getHeapIncrease() {
+            return (peakHeap < 0) ? -1 : Math.max(0, peakHeap - startHeap);
+        }
+
+        private static long readPeakHeap() {
+            long peak = 0;
+            for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+                if (pool.getType() == MemoryType.HEAP && pool.isValid()) {
+                    peak += pool.getPeakUsage().getUsed();
+                }
+            }
+            return peak;
+        }
+
+        private static long getCpuNanos() {
+            OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+            if (os instanceof com.sun.management.OperatingSystemMXBean) {
+                return ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuTime();
+            }
+            return -1;
+        }
+    }
+}
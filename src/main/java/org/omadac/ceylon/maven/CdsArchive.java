@@ -0,0 +1,181 @@
+/*
+ * Copyright Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the authors tag. All rights reserved.
+ *
+ * This copyrighted material is made available to anyone wishing to use,
+ * modify, copy, or redistribute it subject to the terms and conditions
+ * of the GNU General Public License version 2.
+ * 
+ * This particular file is subject to the "Classpath" exception as provided in the 
+ * LICENSE file that accompanied this code.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT A
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License,
+ * along with this distribution; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ */
+package org.omadac.ceylon.maven;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.maven.plugin.logging.Log;
+import org.codehaus.plexus.util.FileUtils;
+
+import com.redhat.ceylon.launcher.LauncherUtil;
+
+/**
+ * Class Data Sharing archive for JVMs forked by the plugin. The archive is created by a training
+ * run of "ceylon compile" on a tiny module, using <code>-XX:ArchiveClassesAtExit</code> (Java 13
+ * and later), and reused by all forked JVMs with the same Java installation, Ceylon home, Ceylon
+ * version and plugin JAR.
+ */
+public class CdsArchive {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static boolean unsupportedLogged;
+
+    private final File cacheDir;
+
+    private final String home;
+
+    private final Log log;
+
+    public CdsArchive(File cacheDir, String home, Log log) {
+        this.cacheDir = cacheDir;
+        this.home = home;
+        this.log = log;
+    }
+
+    /**
+     * Returns the JVM options for using the archive, creating it first if required. Returns an
+     * empty list if the JVM does not support dynamic archives or the archive cannot be created.
+     * A failed training run is remembered, so it is not repeated for every forked JVM.
+     */
+    public List<String> getJvmArgs() {
+        if (!isSupported()) {
+            synchronized (CdsArchive.class) {
+                if (!unsupportedLogged) {
+                    unsupportedLogged = true;
+                    log.info("Class data sharing is not available on Java "
+                        + System.getProperty("java.specification.version") + ", it requires Java 13 or later");
+                }
+            }
+            return Collections.emptyList();
+        }
+        try {
+            File archive = getArchive();
+            if (!archive.isFile()) {
+                if (getFailureMarker(archive).isFile()) {
+                    log.debug("Skipping class data sharing, the training run for " + archive + " failed before");
+                    return Collections.emptyList();
+                }
+                create(archive, home, log);
+            }
+            return archive.isFile() ? Collections.singletonList("-XX:SharedArchiveFile=" + archive.getPath())
+                : Collections.<String> emptyList();
+        }
+        catch (IOException e) {
+            log.warn("Cannot create class data sharing archive: " + e.getMessage());
+            return Collections.emptyList();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return Collections.emptyList();
+        }
+    }
+
+    static boolean isSupported() {
+        String version = System.getProperty("java.specification.version");
+        if (version.startsWith("1.")) {
+            return false;
+        }
+        try {
+            return Integer.parseInt(version) >= 13;
+        }
+        catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    private File getArchive() throws IOException {
+        File launcherJar = new File(ForkedLauncher.getLauncherClassPath());
+        String key = System.getProperty("java.home") + "|" + System.getProperty("java.vm.version") + "|"
+            + home + "|" + LauncherUtil.determineSystemVersion() + "|" + launcherJar.getAbsolutePath()
+            + "|" + launcherJar.length() + "|" + launcherJar.lastModified();
+        String hash = Hex.encodeHexString(Digester.getDigester("SHA-1").digest(key.getBytes(UTF8)));
+        return new File(cacheDir, "ceylon-" + hash + ".jsa");
+    }
+
+    /**
+     * The file recording that the training run for the archive failed. Like the archive, it is
+     * specific to the Java installation and the Ceylon home.
+     */
+    private static File getFailureMarker(File archive) {
+        return new File(archive.getParentFile(), archive.getName() + ".failed");
+    }
+
+    private static synchronized void create(File archive, String home, Log log) throws IOException,
+        InterruptedException {
+        File cacheDir = archive.getParentFile();
+        cacheDir.mkdirs();
+        RandomAccessFile lockFile = new RandomAccessFile(new File(cacheDir, archive.getName() + ".lock"), "rw");
+        try {
+            // other builds may be creating the same archive
+            FileLock lock = lockFile.getChannel().lock();
+            try {
+                File failureMarker = getFailureMarker(archive);
+                if (archive.isFile() || failureMarker.isFile()) {
+                    return;
+                }
+                log.info("Creating class data sharing archive " + archive);
+                File workDir = Files.createTempDirectory(cacheDir.toPath(), "training").toFile();
+                try {
+                    File sourceDir = new File(workDir, "source");
+                    File moduleDir = new File(sourceDir, "cds/training");
+                    moduleDir.mkdirs();
+                    write(new File(moduleDir, "module.ceylon"), "module cds.training \"1.0.0\" {}\n");
+                    write(new File(moduleDir, "package.ceylon"), "package cds.training;\n");
+                    write(new File(moduleDir, "run.ceylon"), "shared void run() {\n    print(\"Hello\");\n}\n");
+
+                    File tmpArchive = new File(workDir, "archive.jsa");
+                    ForkedLauncher launcher = new ForkedLauncher(home, log);
+                    launcher.addJvmArg("-XX:ArchiveClassesAtExit=" + tmpArchive.getPath());
+                    int sc = launcher.run("compile", "--source", sourceDir.getPath(), "--out",
+                        new File(workDir, "modules").getPath(), "cds.training");
+                    if (sc != 0 || !tmpArchive.isFile()) {
+                        failureMarker.createNewFile();
+                        throw new IOException("Training run failed, class data sharing is disabled for "
+                            + "this Java installation until " + failureMarker + " is deleted");
+                    }
+                    Files.move(tmpArchive.toPath(), archive.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                }
+                finally {
+                    FileUtils.deleteDirectory(workDir);
+                }
+            }
+            finally {
+                lock.release();
+            }
+        }
+        finally {
+            lockFile.close();
+        }
+    }
+
+    private static void write(File file, String content) throws IOException {
+        FileUtils.fileWrite(file.getAbsolutePath(), "UTF-8", content);
+    }
+}
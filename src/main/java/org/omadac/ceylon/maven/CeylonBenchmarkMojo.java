@@ -0,0 +1,275 @@
+/*
+ * Copyright Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the authors tag. All rights reserved.
+ *
+ * This copyrighted material is made available to anyone wishing to use,
+ * modify, copy, or redistribute it subject to the terms and conditions
+ * of the GNU General Public License version 2.
+ * 
+ * This particular file is subject to the "Classpath" exception as provided in the 
+ * LICENSE file that accompanied this code.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT A
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License,
+ * along with this distribution; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ */
+package org.omadac.ceylon.maven;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.maven.execution.MavenSession;
+import org.apache.maven.plugin.AbstractMojo;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.MojoFailureException;
+import org.apache.maven.plugins.annotations.Component;
+import org.apache.maven.plugins.annotations.Mojo;
+import org.apache.maven.plugins.annotations.Parameter;
+import org.codehaus.plexus.util.FileUtils;
+
+/**
+ * Runs the benchmark functions of a Ceylon module in a forked JVM, using the "ceylon compile" and
+ * "ceylon run" commands. The results are logged and written as JSON. See
+ * {@link BenchmarkHarness} for how benchmark functions are found.
+ * <p>
+ * The benchmark module has to be compiled beforehand, e.g. as test module.
+ */
+@Mojo(name = "benchmark")
+public class CeylonBenchmarkMojo extends AbstractMojo {
+
+    /**
+     * Ceylon home directory.
+     */
+    @Parameter(property = "ceylon.home", defaultValue = "${env.CEYLON_HOME}")
+    private String home;
+
+    /**
+     * Build directory.
+     */
+    @Parameter(defaultValue = "${project.build.directory}", readonly = true, required = true)
+    private String targetDir;
+
+    /**
+     * The repository containing the compiled benchmark module.
+     */
+    @Parameter(property = "ceylon.out", defaultValue = "${project.build.directory}")
+    private String out;
+
+    /**
+     * The directory containing the sources of the benchmark module.
+     */
+    @Parameter(property = "ceylon.benchmarkSource", defaultValue = "${project.build.testSourceDirectory}")
+    private File benchmarkSource;
+
+    /**
+     * The benchmark module (without version).
+     */
+    @Parameter(property = "ceylon.benchmarkModule", required = true)
+    private String benchmarkModule;
+
+    /**
+     * Benchmark functions to run in addition to the annotated ones, as
+     * <code>package::function</code>.
+     */
+    @Parameter
+    private List<String> benchmarks;
+
+    /**
+     * The module repositories containing dependencies. Equivalent to the <code>--rep</code> option
+     * of "ceylon run".
+     */
+    @Parameter(property = "ceylon.repositories")
+    private List<String> repositories;
+
+    /**
+     * If <code>true</code>, disables the default module repositories. Equivalent to the
+     * <code>--no-default-repositories</code> option of "ceylon run".
+     */
+    @Parameter(property = "ceylon.disableDefaultRepos", defaultValue = "false")
+    private boolean disableDefaultRepos = false;
+
+    /**
+     * Number of iterations run before measuring.
+     */
+    @Parameter(property = "ceylon.benchmark.warmupIterations", defaultValue = "5")
+    private int warmupIterations = 5;
+
+    /**
+     * Number of measured iterations.
+     */
+    @Parameter(property = "ceylon.benchmark.iterations", defaultValue = "10")
+    private int measurementIterations = 10;
+
+    /**
+     * Number of calls of the benchmark function per iteration.
+     */
+    @Parameter(property = "ceylon.benchmark.batchSize", defaultValue = "1000")
+    private int batchSize = 1000;
+
+    /**
+     * Options for the forked JVM, e.g. heap settings.
+     */
+    @Parameter
+    private List<String> jvmArgs;
+
+    /**
+     * If <code>true</code>, forked JVMs use a Class Data Sharing archive of the Ceylon tools to
+     * start faster. The archive is created on first use by a training run (Java 13 or later).
+     */
+    @Parameter(property = "ceylon.cds", defaultValue = "true")
+    private boolean classDataSharing = true;
+
+    /**
+     * Directory for the Class Data Sharing archives, which are shared by all builds.
+     */
+    @Parameter(property = "ceylon.cdsDirectory", defaultValue = "${user.home}/.m2/ceylon-cds")
+    private File cdsDirectory;
+
+    /**
+     * The file receiving the results in JSON format.
+     */
+    @Parameter(property = "ceylon.benchmark.resultFile", defaultValue = "${project.build.directory}/benchmark-results.json")
+    private File resultFile;
+
+    /**
+     * The source file character encoding.
+     */
+    @Parameter(property = "project.build.sourceEncoding", defaultValue = "${file.encoding}")
+    private String encoding;
+
+    @Component
+    private MavenSession session;
+
+    public void execute() throws MojoExecutionException, MojoFailureException {
+        File descriptor = ModuleGraph.findDescriptor(Collections.singletonList(benchmarkSource), benchmarkModule);
+        if (descriptor == null) {
+            throw new MojoExecutionException("Cannot find module descriptor of " + benchmarkModule
+                + " in " + benchmarkSource);
+        }
+
+        BenchmarkHarness harness;
+        try {
+            String version = ModuleGraph.parseVersion(FileUtils.fileRead(descriptor, encoding));
+            harness = new BenchmarkHarness(benchmarkModule, version);
+            harness.discover(benchmarkSource, encoding);
+            if (benchmarks != null) {
+                for (String benchmark : benchmarks) {
+                    harness.addBenchmark(benchmark);
+                }
+            }
+            if (harness.getBenchmarks().isEmpty()) {
+                getLog().info("No benchmarks found in module " + benchmarkModule);
+                return;
+            }
+            getLog().info("Running benchmarks " + harness.getBenchmarks());
+
+            File harnessDir = new File(targetDir, "benchmark-harness");
+            File harnessSource = new File(harnessDir, "source");
+            String harnessRepository = new File(harnessDir, "modules").getPath();
+            harness.generate(harnessSource, warmupIterations, measurementIterations, batchSize);
+
+            CeylonInvocation compile = new CeylonInvocation("compile");
+            compile.source(harnessSource);
+            compile.out(harnessRepository);
+            addRepositoryOptions(compile);
+            compile.modules(Collections.singletonList(BenchmarkHarness.MODULE));
+            if (createLauncher().run(compile.toArgs()) != 0) {
+                throw new MojoFailureException("Cannot compile benchmark harness");
+            }
+
+            CeylonInvocation run = new CeylonInvocation("run");
+            run.repository(harnessRepository);
+            addRepositoryOptions(run);
+            run.modules(Collections.singletonList(BenchmarkHarness.MODULE + "/" + BenchmarkHarness.VERSION));
+            Map<String, BenchmarkResult> results = runHarness(run);
+
+            StringBuilder json = new StringBuilder();
+            json.append("{\n  \"module\": \"").append(benchmarkModule).append("\",\n");
+            json.append("  \"version\": \"").append(version).append("\",\n");
+            json.append("  \"timestamp\": ").append(System.currentTimeMillis()).append(",\n");
+            json.append("  \"warmupIterations\": ").append(warmupIterations).append(",\n");
+            json.append("  \"measurementIterations\": ").append(measurementIterations).append(",\n");
+            json.append("  \"batchSize\": ").append(batchSize).append(",\n");
+            json.append("  \"benchmarks\": [");
+            String separator = "\n    ";
+            for (BenchmarkResult result : results.values()) {
+                getLog().info(result.toString());
+                json.append(separator).append(result.toJson());
+                separator = ",\n    ";
+            }
+            json.append("\n  ]\n}\n");
+            resultFile.getParentFile().mkdirs();
+            FileUtils.fileWrite(resultFile.getAbsolutePath(), "UTF-8", json.toString());
+            getLog().info("Benchmark results written to " + resultFile);
+            BuildMetrics.recordBenchmarks(targetDir, results.values(), session.getStartTime());
+        }
+        catch (IOException exc) {
+            throw new MojoExecutionException("Error running benchmarks", exc);
+        }
+        catch (InterruptedException exc) {
+            Thread.currentThread().interrupt();
+            throw new MojoExecutionException("Interrupted while running benchmarks", exc);
+        }
+    }
+
+    private ForkedLauncher createLauncher() {
+        ForkedLauncher launcher = new ForkedLauncher(home, getLog());
+        if (classDataSharing) {
+            launcher.setClassDataSharing(cdsDirectory);
+        }
+        if (jvmArgs != null) {
+            for (String jvmArg : jvmArgs) {
+                launcher.addJvmArg(jvmArg);
+            }
+        }
+        return launcher;
+    }
+
+    private void addRepositoryOptions(CeylonInvocation invocation) {
+        invocation.repository(out);
+        invocation.noDefaultRepositories(disableDefaultRepos);
+        invocation.repositories(repositories);
+    }
+
+    private Map<String, BenchmarkResult> runHarness(CeylonInvocation invocation) throws IOException,
+        InterruptedException, MojoFailureException {
+        Map<String, BenchmarkResult> results = new LinkedHashMap<String, BenchmarkResult>();
+        ForkedLauncher launcher = createLauncher();
+        launcher.setCaptureOutput(true);
+        Process process = launcher.start(invocation.toArgs());
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), "UTF-8"));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.startsWith(BenchmarkHarness.RESULT_PREFIX)) {
+                    getLog().info(line);
+                    continue;
+                }
+                String[] fields = line.substring(BenchmarkHarness.RESULT_PREFIX.length()).split(" ");
+                BenchmarkResult result = results.get(fields[0]);
+                if (result == null) {
+                    result = new BenchmarkResult(fields[0], batchSize);
+                    results.put(fields[0], result);
+                }
+                result.addSample(Long.parseLong(fields[1]));
+            }
+            if (process.waitFor() != 0) {
+                throw new MojoFailureException("Benchmark run failed");
+            }
+        }
+        finally {
+            process.destroy();
+        }
+        return results;
+    }
+}
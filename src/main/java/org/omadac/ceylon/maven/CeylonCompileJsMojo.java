@@ -0,0 +1,50 @@
+/*
+ * Copyright Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the authors tag. All rights reserved.
+ *
+ * This copyrighted material is made available to anyone wishing to use,
+ * modify, copy, or redistribute it subject to the terms and conditions
+ * of the GNU General Public License version 2.
+ * 
+ * This particular file is subject to the "Classpath" exception as provided in the 
+ * LICENSE file that accompanied this code.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT A
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License,
+ * along with this distribution; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ */
+package org.omadac.ceylon.maven;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.MojoFailureException;
+import org.apache.maven.plugins.annotations.LifecyclePhase;
+import org.apache.maven.plugins.annotations.Mojo;
+import org.apache.maven.plugins.annotations.ResolutionScope;
+
+/**
+ * Compiles Ceylon source code to JavaScript using the "ceylon compile-js" command. The JavaScript
+ * modules are written to the same output repository as the <code>.car</code> files. To compile
+ * with both backends at the same time, configure the <code>backends</code> of the compile goal
+ * instead.
+ */
+@Mojo(name = "compile-js", defaultPhase = LifecyclePhase.COMPILE, requiresDependencyResolution = ResolutionScope.COMPILE)
+public class CeylonCompileJsMojo extends CeylonCompileMojo {
+
+    public void execute() throws MojoExecutionException, MojoFailureException {
+        if (modules == null || modules.isEmpty()) {
+            getLog().info("No modules to compile");
+            return;
+        }
+
+        getLog().debug("ceylon.home = " + home);
+
+        SourceFingerprints fingerprints = createFingerprints();
+        int sc = compileBackend(SourceFingerprints.JS, fingerprints);
+        storeFingerprints(fingerprints);
+        checkResult(sc);
+    }
+}
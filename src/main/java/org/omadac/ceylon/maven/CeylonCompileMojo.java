@@ -20,105 +20,118 @@
 package org.omadac.ceylon.maven;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
 
-import org.apache.maven.plugin.AbstractMojo;
 import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugin.MojoFailureException;
 import org.apache.maven.plugins.annotations.Mojo;
 import org.apache.maven.plugins.annotations.Parameter;
-
-import com.redhat.ceylon.common.Constants;
-import com.redhat.ceylon.launcher.Launcher;
+import org.apache.maven.plugins.annotations.ResolutionScope;
 
 /**
  * Compiles Ceylon and Java source code using the "ceylon compile" command.
  * 
  */
-@Mojo(name = "compile")
-public class CeylonCompileMojo extends AbstractMojo {
+@Mojo(name = "compile", requiresDependencyResolution = ResolutionScope.COMPILE)
+public class CeylonCompileMojo extends AbstractCeylonSourceMojo {
 
-    /**
-     * Ceylon home directory.
-     */
-    @Parameter(property = "ceylon.home", defaultValue = "${env.CEYLON_HOME}")
-    protected String home;
+    private static final String SINGLE_PASS_OPTIONS = CeylonCompileMojo.class.getName() + ".singlePassOptions";
 
-    /**
-     * The repository in which to create the output <code>.car</code> file. Equivalent to the
-     * <code>--out</code> option of "ceylon compile".
-     */
-    @Parameter(property = "ceylon.out", defaultValue = "${project.build.directory}")
-    protected String out;
+    private static final List<String> PHASES_AFTER_TEST_COMPILE = Arrays.asList("test-compile",
+        "process-test-classes", "test", "prepare-package", "package", "pre-integration-test",
+        "integration-test", "post-integration-test", "verify", "install", "deploy");
 
     /**
-     * The directory containing ceylon source code. Equivalent to the <code>--source</code> option
-     * of "ceylon compile".
+     * If <code>true</code>, the compiler generates verbose output Equivalent to the
+     * <code>--verbose</code> option of "ceylon compile".
      */
-    @Parameter(property = "ceylon.source", defaultValue = "${project.build.sourceDirectory}")
-    protected File source;
+    @Parameter(property = "ceylon.verbose", defaultValue = "false")
+    protected boolean verbose;
 
-    /**
-     * The directory containing ceylon resource code. Equivalent to the <code>--resource</code>
-     * option of "ceylon compile".
-     */
-    @Parameter(property = "ceylon.resource", defaultValue = "${project.build.resources[0].directory}")
-    protected File resource;
 
     /**
-     * If <code>true</code>, disables the default module repositories. Equivalent to the
-     * <code>--no-default-repositories</code> option.
+     * If <code>true</code> and more than one module is configured, each module is compiled by a
+     * separate "ceylon compile" in a forked JVM. Modules not importing each other are compiled
+     * concurrently, a module importing other configured modules is compiled as soon as these have
+     * been written to the output repository. The compiler is not thread-safe, so the modules are
+     * always compiled forked, or on workers, whatever the <code>executionMode</code>.
      */
-    @Parameter(property = "ceylon.disableDefaultRepos", defaultValue = "false")
-    protected boolean disableDefaultRepos = false;
+    @Parameter(property = "ceylon.parallel", defaultValue = "false")
+    protected boolean parallel;
 
     /**
-     * If <code>true</code>, the compiler generates verbose output Equivalent to the
-     * <code>--verbose</code> option of "ceylon compile".
+     * If <code>true</code> and the build includes the test-compile phase, the compile goal does
+     * nothing and the testCompile goal compiles the main and test modules in a single "ceylon
+     * compile" invocation, so the compiler is only started and warmed up once and the test
+     * modules are type-checked against the model of the main modules in memory.
+     * <p>
+     * Single pass mode is only used when Maven is invoked with the test-compile phase or a later
+     * phase (e.g. <code>mvn test</code> or <code>mvn install</code>), and the test compilation is
+     * not skipped. Goals invoked directly, like <code>mvn ceylon:compile ceylon:testCompile</code>,
+     * are compiled separately. If the main modules are up to date, they are not recompiled with
+     * the test modules.
      */
-    @Parameter(property = "ceylon.verbose", defaultValue = "false")
-    protected boolean verbose;
+    @Parameter(property = "ceylon.singlePass", defaultValue = "false")
+    protected boolean singlePass;
 
     /**
-     * The module repositories containing dependencies. Equivalent to the <code>-rep</code> option
-     * of "ceylon compile".
+     * The test modules to compile (without versions). Only used by the compile goal to decide
+     * whether compilation can be deferred in single pass mode.
      */
-    @Parameter(property = "ceylon.repositories")
-    protected List<String> repositories;
+    @Parameter(property = "ceylon.testModules")
+    protected List<String> testModules;
 
-    /**
-     * The modules to compile (without versions).
-     */
-    @Parameter(property = "ceylon.modules", required = true)
-    protected List<String> modules;
+    @Parameter(property = "maven.test.skip", defaultValue = "false")
+    protected boolean skipTestCompile;
 
     /**
-     * Whether the build should fail if there are errors
+     * Maximum number of errors after which the compilation is cancelled, instead of letting the
+     * compiler report all follow-up errors. The errors are counted as the compiler reports them,
+     * an in-process compilation is aborted and a forked JVM is killed. <code>0</code> means no
+     * limit.
      */
-    @Parameter(property = "ceylon.failOnError", defaultValue = "true")
-    protected boolean failOnError = true;
+    @Parameter(property = "ceylon.maxErrors", defaultValue = "0")
+    protected int maxErrors;
 
     /**
-     * The user name to use for the output repository. Corresponds to the <code>--user</code> option
-     * of "ceylon compile".
+     * If <code>true</code>, the compilation is cancelled at the first error unless
+     * <code>maxErrors</code> is set, and in parallel mode the compilations of all modules are
+     * cancelled as soon as one of them fails.
      */
-    @Parameter(property = "ceylon.username")
-    protected String username;
+    @Parameter(property = "ceylon.failFast", defaultValue = "false")
+    protected boolean failFast;
 
     /**
-     * The password to use for the output repository Corresponds to the <code>--pass</code> option
-     * of "ceylon compile".
+     * The backends compiling the modules, <code>jvm</code> and/or <code>js</code>. Both write
+     * their archives to the output repository. If both are configured, the JVM and JavaScript
+     * compilations run at the same time, in forked JVMs.
      */
-    @Parameter(property = "ceylon.password")
-    protected String password;
+    @Parameter(property = "ceylon.backends", defaultValue = "jvm")
+    protected List<String> backends;
 
     /**
-     * The source file character encoding.
-     * 
+     * Compile workers to which the compilations are sent instead of running them locally, as
+     * <code>host:port</code> of {@link CompileWorker} processes, or <code>local:n</code> to start
+     * n worker processes on this machine. The sources and the archives of imported modules from
+     * local repositories are sent to an idle worker, which returns the compiled archives and the
+     * compiler output. If no worker can run a compilation, it runs locally.
      */
-    @Parameter(property = "project.build.sourceEncoding", defaultValue = "${file.encoding}")
-    protected String encoding;
+    @Parameter(property = "ceylon.workers")
+    protected List<String> workers;
 
     public void execute() throws MojoExecutionException, MojoFailureException {
         if (modules == null || modules.isEmpty()) {
@@ -126,19 +139,194 @@ public class CeylonCompileMojo extends AbstractMojo {
             return;
         }
 
-        String[] args = buildOptions();
+        boolean jvm = backends == null || backends.contains(SourceFingerprints.JVM);
+        boolean js = backends != null && backends.contains(SourceFingerprints.JS);
+        SourceFingerprints fingerprints = createFingerprints();
+        project.setContextValue(SINGLE_PASS_OPTIONS, null);
+        if (jvm && isSinglePass(fingerprints)) {
+            getLog().info("Main modules will be compiled together with the test modules");
+            jvm = false;
+        }
+        if (!jvm && !js) {
+            return;
+        }
+
+        if (jvm) {
+            detachOutput(modules);
+        }
 
         getLog().debug("ceylon.home = " + home);
-        getLog().debug("Invoking 'ceylon compile'");
 
-        int sc = 0;
+        int sc;
+        if (jvm && js) {
+            sc = compileConcurrently(fingerprints);
+        }
+        else {
+            sc = compileBackend(jvm ? SourceFingerprints.JVM : SourceFingerprints.JS, fingerprints);
+        }
+        storeFingerprints(fingerprints);
+        checkResult(sc);
+    }
+
+    /**
+     * Compiles the modules which have changed with the given backend.
+     * 
+     * @param fingerprints the source fingerprints, or <code>null</code> to compile all modules
+     * @return exit code of the compiler
+     */
+    protected int compileBackend(String backend, SourceFingerprints fingerprints) throws MojoExecutionException {
+        List<String> changed = modules;
+        List<String> options = buildInvocation(backend, modules).getOptions();
+        if (fingerprints != null) {
+            try {
+                changed = fingerprints.getChangedModules(backend, modules, options, new File(out));
+            }
+            catch (IOException e) {
+                throw new MojoExecutionException("Cannot compute source fingerprints", e);
+            }
+            if (changed.isEmpty()) {
+                getLog().info("All modules are up to date (" + backend + " backend)");
+                return 0;
+            }
+            if (changed.size() < modules.size()) {
+                getLog().info("Compiling changed modules " + changed + " (" + backend + " backend)");
+            }
+        }
+
+        int sc;
+        if (SourceFingerprints.JVM.equals(backend) && parallel && changed.size() > 1) {
+            sc = compileParallel(changed);
+        }
+        else {
+            getLog().debug("Invoking 'ceylon " + getTool(backend) + "'");
+            sc = runTool(getTool(backend), changed, buildInvocation(backend, changed));
+        }
+
+        if (fingerprints != null) {
+            try {
+                if (sc == 0) {
+                    fingerprints.record(backend, changed, options);
+                }
+                else {
+                    fingerprints.forget(backend, changed);
+                }
+            }
+            catch (IOException e) {
+                throw new MojoExecutionException("Cannot compute source fingerprints", e);
+            }
+        }
+        return sc;
+    }
+
+    /**
+     * Runs the JavaScript backend on a separate thread while the JVM backend runs on the current
+     * thread. Both are forked.
+     */
+    private int compileConcurrently(final SourceFingerprints fingerprints) throws MojoExecutionException {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        forceFork = true;
+        try {
+            Future<Integer> js = executor.submit(new Callable<Integer>() {
+
+                public Integer call() throws Exception {
+                    return compileBackend(SourceFingerprints.JS, fingerprints);
+                }
+            });
+            int sc = compileBackend(SourceFingerprints.JVM, fingerprints);
+            int result = js.get();
+            if (result != 0 && sc != 1) {
+                sc = result;
+            }
+            return sc;
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MojoExecutionException("Interrupted while compiling modules", e);
+        }
+        catch (ExecutionException e) {
+            if (e.getCause() instanceof MojoExecutionException) {
+                throw (MojoExecutionException) e.getCause();
+            }
+            throw new MojoExecutionException("The compiler returned an unexpected result", e.getCause());
+        }
+        finally {
+            forceFork = false;
+            executor.shutdownNow();
+        }
+    }
+
+    private static String getTool(String backend) {
+        return SourceFingerprints.JS.equals(backend) ? "compile-js" : "compile";
+    }
+
+    /**
+     * Runs the given invocation on a compile worker if workers are configured.
+     * 
+     * @return exit code of the tool, or <code>null</code> if it has to run locally
+     */
+    @Override
+    protected Integer runRemote(CeylonInvocation invocation, ModuleOutput output) throws MojoExecutionException,
+        InterruptedException {
+        if (workers == null || workers.isEmpty()) {
+            return null;
+        }
         try {
-            System.setProperty(Constants.PROP_CEYLON_HOME_DIR, home);
-            sc = Launcher.run(args);
+            WorkerPool pool = WorkerPool.getInstance(workers, workerToken, home, getLog());
+            Integer sc = pool.run(new RemoteTask(invocation, encoding), output, getLog());
+            if (sc == null) {
+                getLog().warn("No compile worker available, running 'ceylon " + invocation.getTool() + "' locally");
+            }
+            return sc;
         }
-        catch (Throwable e) {
-            throw new MojoExecutionException("The compiler returned an unexpected result", e);
+        catch (IOException e) {
+            getLog().warn("Cannot use compile workers, running 'ceylon " + invocation.getTool() + "' locally", e);
+            return null;
         }
+    }
+
+    /**
+     * Returns a buffered output for an invocation, or <code>null</code> if the output is not
+     * buffered. The output is always buffered if the number of errors is limited, since the
+     * errors are counted on it.
+     */
+    @Override
+    protected ModuleOutput openToolOutput(String goal, List<String> moduleNames) throws IOException {
+        int errorLimit = getErrorLimit();
+        ModuleOutput output = openOutput(goal, moduleNames, bufferedOutput || errorLimit > 0);
+        if (output != null) {
+            output.setMaxErrors(errorLimit);
+        }
+        return output;
+    }
+
+    /**
+     * Returns the number of errors after which a compilation is cancelled, or 0.
+     */
+    protected int getErrorLimit() {
+        if (maxErrors > 0) {
+            return maxErrors;
+        }
+        return failFast ? 1 : 0;
+    }
+
+    /**
+     * Checks if the compilation writing to the given output has been cancelled, and logs it.
+     */
+    @Override
+    protected boolean isCancelled(ModuleOutput output) {
+        if (!super.isCancelled(output)) {
+            return false;
+        }
+        if (output.getErrors() > 0) {
+            getLog().error("Compilation cancelled after " + output.getErrors() + " errors");
+        }
+        else {
+            getLog().error("Compilation cancelled due to errors in other modules");
+        }
+        return true;
+    }
+
+    protected void checkResult(int sc) throws MojoExecutionException, MojoFailureException {
         if (sc == 1) {
             getLog().info("-------------------------------------------------------------");
             getLog().error("COMPILATION ERRORS (see above)");
@@ -152,61 +340,231 @@ public class CeylonCompileMojo extends AbstractMojo {
         }
     }
 
-    private String[] buildOptions() throws MojoExecutionException {
-        List<String> args = new ArrayList<String>();
-        args.add("compile");
-        args.add("--out");
-        args.add(out);
-
-        args.add("--source");
-        args.add(source.getPath());
+    private int compileParallel(List<String> moduleNames) throws MojoExecutionException {
+        List<String> sortedModules;
+        final ModuleGraph graph;
+        try {
+            graph = new ModuleGraph(Collections.singletonList(source), moduleNames, encoding);
+            sortedModules = graph.sort();
+        }
+        catch (IOException e) {
+            throw new MojoExecutionException("Cannot read module descriptors", e);
+        }
+        catch (IllegalStateException e) {
+            throw new MojoExecutionException(e.getMessage(), e);
+        }
 
-        args.add("--resource");
-        args.add(resource.getPath());
+        int poolSize = (threads > 0) ? threads : Runtime.getRuntime().availableProcessors();
+        getLog().info("Compiling " + moduleNames.size() + " modules using " + poolSize + " threads");
+        ExecutorService executor = Executors.newFixedThreadPool(poolSize);
+        final Map<String, Future<Integer>> results = new HashMap<String, Future<Integer>>();
+        final Set<ModuleOutput> running = new HashSet<ModuleOutput>();
+        final AtomicBoolean failed = new AtomicBoolean();
+        try {
+            // Modules are submitted in import order, so a task only ever waits for tasks
+            // which have been started before it, and a bounded pool cannot deadlock.
+            for (final String module : sortedModules) {
+                final List<Future<Integer>> imported = new ArrayList<Future<Integer>>();
+                for (String dependency : graph.getImports(module)) {
+                    imported.add(results.get(dependency));
+                }
+                final CeylonInvocation invocation = buildInvocation(SourceFingerprints.JVM,
+                    Collections.singletonList(module));
+                results.put(module, executor.submit(new Callable<Integer>() {
+
+                    public Integer call() throws Exception {
+                        for (Future<Integer> dependency : imported) {
+                            if (dependency.get() != 0) {
+                                getLog().warn("Skipping module " + module + " due to errors in imported modules");
+                                return 1;
+                            }
+                        }
+                        ModuleOutput output = openToolOutput("compile", Collections.singletonList(module));
+                        synchronized (running) {
+                            if (failFast && failed.get()) {
+                                getLog().warn("Skipping module " + module + " due to errors in other modules");
+                                closeOutput(output);
+                                return 1;
+                            }
+                            if (output != null) {
+                                running.add(output);
+                            }
+                        }
+                        getLog().debug("Invoking 'ceylon compile' for module " + module);
+                        long start = System.currentTimeMillis();
+                        int result;
+                        try {
+                            Integer remote = runRemote(invocation, output);
+                            if (remote != null) {
+                                result = remote;
+                            }
+                            else {
+                                ForkedLauncher launcher = new ForkedLauncher(home, getLog());
+                                if (classDataSharing) {
+                                    launcher.setClassDataSharing(cdsDirectory);
+                                }
+                                launcher.setOutput(output);
+                                result = launcher.run(invocation.toArgs());
+                            }
+                        }
+                        finally {
+                            synchronized (running) {
+                                running.remove(output);
+                            }
+                            closeOutput(output);
+                        }
+                        if (isCancelled(output)) {
+                            result = 1;
+                        }
+                        else {
+                            recordDuration("compile", Collections.singletonList(module), start);
+                        }
+                        if (result != 0 && failFast) {
+                            synchronized (running) {
+                                failed.set(true);
+                                for (ModuleOutput other : running) {
+                                    other.cancel();
+                                }
+                            }
+                        }
+                        return result;
+                    }
+                }));
+            }
 
-        if (disableDefaultRepos) {
-            args.add("--no-default-repositories");
+            int sc = 0;
+            for (String module : sortedModules) {
+                int result = results.get(module).get();
+                if (result != 0 && sc != 1) {
+                    sc = result;
+                }
+            }
+            return sc;
         }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MojoExecutionException("Interrupted while compiling modules", e);
+        }
+        catch (ExecutionException e) {
+            throw new MojoExecutionException("The compiler returned an unexpected result", e.getCause());
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
 
-        if (verbose) {
-            args.add("--verbose");
+    private CeylonInvocation buildInvocation(String backend, List<String> moduleNames) throws MojoExecutionException {
+        if (moduleNames == null || moduleNames.isEmpty()) {
+            throw new MojoExecutionException("No modules to compile. Specify these using <modules>");
         }
+        CeylonInvocation invocation = new CeylonInvocation(getTool(backend));
+        invocation.out(out);
+        invocation.source(source);
+        addCompilerOptions(invocation, "maven-dependencies");
+        invocation.modules(moduleNames);
+
+        getLog().debug("Command line options to ceylon:");
+        getLog().debug(invocation.toString());
+
+        return invocation;
+    }
 
-        if (username != null) {
-            args.add("--user");
-            args.add(username);
+    /**
+     * Adds the options shared by the compile and testCompile goals, after the source directories.
+     * 
+     * @param dependencyRepository name of the repository of Maven dependencies
+     */
+    protected void addCompilerOptions(CeylonInvocation invocation, String dependencyRepository)
+        throws MojoExecutionException {
+        if ("compile".equals(invocation.getTool())) {
+            // resources are only supported by the JVM backend
+            invocation.resource(resource);
         }
+        invocation.verbose(verbose);
+        invocation.credentials(username, password);
+        addRepositories(invocation, repositories, settingsOffline);
 
-        if (password != null) {
-            args.add("--pass");
-            args.add(password);
+        if (mavenDependencies) {
+            invocation.repository(updateDependencyRepository(dependencyRepository));
         }
 
-        if (repositories != null) {
-            for (String rep : repositories) {
-                args.add("--rep");
-                args.add(rep);
+        invocation.encoding(encoding);
+    }
+
+    /**
+     * Breaks hard links from the output repository to installed copies of the given modules
+     * (see {@link CeylonInstallMojo}), since the compiler may rewrite existing archives in place.
+     */
+    protected void detachOutput(List<String> moduleNames) throws MojoExecutionException {
+        for (String module : moduleNames) {
+            File moduleDir = ModuleGraph.getModuleDir(new File(out), module);
+            try {
+                detachFiles(moduleDir);
+            }
+            catch (IOException e) {
+                throw new MojoExecutionException("Cannot prepare output repository " + moduleDir, e);
             }
         }
+    }
 
-        if (encoding != null) {
-            args.add("--encoding");
-            args.add(encoding);
+    private static void detachFiles(File dir) throws IOException {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
         }
+        for (File file : files) {
+            if (file.isDirectory()) {
+                detachFiles(file);
+            }
+            else {
+                FileLinker.detach(file);
+            }
+        }
+    }
 
-        if (modules != null && !modules.isEmpty()) {
-            for (String module : modules) {
-                args.add(module);
+    /**
+     * Checks if main and test modules are compiled together by the testCompile goal, which is the
+     * case in single pass mode if there are test modules, the build runs the test-compile phase
+     * and some main modules have changed. The decision is passed on to the testCompile goal with
+     * the options of the main compilation, see {@link #getSinglePassOptions()}.
+     */
+    private boolean isSinglePass(SourceFingerprints fingerprints) throws MojoExecutionException {
+        if (!singlePass || skipTestCompile || testModules == null || testModules.isEmpty()) {
+            return false;
+        }
+        List<String> goals = session.getGoals();
+        boolean testCompilePhase = false;
+        if (goals != null) {
+            for (String goal : goals) {
+                testCompilePhase |= PHASES_AFTER_TEST_COMPILE.contains(goal);
             }
         }
-        else {
-            throw new MojoExecutionException("No modules to compile. Specify these using <modules>");
+        if (!testCompilePhase) {
+            return false;
         }
 
-        getLog().debug("Command line options to ceylon:");
-        getLog().debug(args.toString());
+        List<String> options = buildInvocation(SourceFingerprints.JVM, modules).getOptions();
+        if (fingerprints != null) {
+            try {
+                if (fingerprints.getChangedModules(SourceFingerprints.JVM, modules, options, new File(out)).isEmpty()) {
+                    return false;
+                }
+            }
+            catch (IOException e) {
+                throw new MojoExecutionException("Cannot compute source fingerprints", e);
+            }
+        }
+        project.setContextValue(SINGLE_PASS_OPTIONS, options);
+        return true;
+    }
 
-        return args.toArray(new String[args.size()]);
+    /**
+     * Returns the options of the main compilation if the compile goal has left it to the
+     * testCompile goal, or <code>null</code> if the main modules have been compiled already.
+     */
+    @SuppressWarnings("unchecked")
+    protected List<String> getSinglePassOptions() {
+        return (List<String>) project.getContextValue(SINGLE_PASS_OPTIONS);
     }
 
 }
@@ -0,0 +1,321 @@
+/*
+ * Copyright Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the authors tag. All rights reserved.
+ *
+ * This copyrighted material is made available to anyone wishing to use,
+ * modify, copy, or redistribute it subject to the terms and conditions
+ * of the GNU General Public License version 2.
+ * 
+ * This particular file is subject to the "Classpath" exception as provided in the 
+ * LICENSE file that accompanied this code.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT A
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License,
+ * along with this distribution; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ */
+package org.omadac.ceylon.maven;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.maven.plugin.AbstractMojo;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.MojoFailureException;
+import org.apache.maven.plugins.annotations.Component;
+import org.apache.maven.plugins.annotations.LifecyclePhase;
+import org.apache.maven.plugins.annotations.Mojo;
+import org.apache.maven.plugins.annotations.Parameter;
+import org.apache.maven.project.MavenProject;
+import org.codehaus.plexus.util.FileUtils;
+import org.codehaus.plexus.util.IOUtil;
+
+import com.redhat.ceylon.common.Constants;
+
+/**
+ * Deploys the modules to a remote Ceylon repository over WebDAV. All files of each module
+ * version (CAR, source archive, checksums and documentation) are uploaded concurrently. Files
+ * whose remote SHA1 checksum matches the local one are skipped, failed uploads are retried, and
+ * uploads completed by an earlier, interrupted run are not repeated.
+ */
+@Mojo(name = "deploy", defaultPhase = LifecyclePhase.DEPLOY, requiresProject = true)
+public class CeylonDeployMojo extends AbstractMojo {
+
+    private static final String STATE_FILE = "ceylon-deploy.properties";
+
+    /**
+     * Ceylon home directory.
+     */
+    @Parameter(property = "ceylon.home", defaultValue = "${env.CEYLON_HOME}")
+    protected String home;
+
+    /**
+     * Output directory of the current build.
+     */
+    @Parameter(property = "ceylon.out", defaultValue = "${project.build.directory}")
+    protected String out;
+
+    /**
+     * The modules to deploy (without versions).
+     */
+    @Parameter(property = "ceylon.modules", required = true)
+    protected List<String> modules;
+
+    /**
+     * URL of the remote repository.
+     */
+    @Parameter(property = "ceylon.deployRepository", required = true)
+    protected String repository;
+
+    /**
+     * The user name for the remote repository.
+     */
+    @Parameter(property = "ceylon.username")
+    protected String username;
+
+    /**
+     * The password for the remote repository.
+     */
+    @Parameter(property = "ceylon.password")
+    protected String password;
+
+    /**
+     * Number of concurrent uploads.
+     */
+    @Parameter(property = "ceylon.deployThreads", defaultValue = "4")
+    protected int threads = 4;
+
+    /**
+     * Number of times a failed upload is retried.
+     */
+    @Parameter(property = "ceylon.deployRetries", defaultValue = "3")
+    protected int retries = 3;
+
+    @Component
+    private MavenProject project;
+
+    public void execute() throws MojoExecutionException, MojoFailureException {
+        if (modules == null || modules.isEmpty()) {
+            getLog().info("No module defined");
+            return;
+        }
+
+        final String baseUrl = repository.endsWith("/") ? repository : repository + "/";
+        final WebDavClient client;
+        try {
+            if (home != null) {
+                System.setProperty(Constants.PROP_CEYLON_HOME_DIR, home);
+            }
+            client = new WebDavClient(username, password);
+        }
+        catch (Exception exc) {
+            throw new MojoExecutionException("Cannot create WebDAV client", exc);
+        }
+        try {
+            deployModules(client, baseUrl);
+        }
+        finally {
+            try {
+                client.close();
+            }
+            catch (IOException exc) {
+                getLog().warn("Cannot close Ceylon class loader", exc);
+            }
+        }
+    }
+
+    private void deployModules(final WebDavClient client, final String baseUrl) throws MojoExecutionException {
+        final File stateFile = new File(project.getBuild().getDirectory(), STATE_FILE);
+        final Properties state = loadState(stateFile);
+
+        List<Upload> uploads = new ArrayList<Upload>();
+        for (String module : modules) {
+            String modulePath = module.replace('.', '/') + "/" + project.getVersion() + "/";
+            File versionDir = new File(out, modulePath);
+            if (!versionDir.isDirectory()) {
+                throw new MojoExecutionException(versionDir + " does not exist");
+            }
+            collectUploads(versionDir, baseUrl + modulePath, uploads);
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, threads));
+        try {
+            List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+            for (final Upload upload : uploads) {
+                results.add(executor.submit(new Callable<Boolean>() {
+
+                    public Boolean call() throws Exception {
+                        return deploy(client, baseUrl, upload, state, stateFile);
+                    }
+                }));
+            }
+            int uploaded = 0;
+            for (Future<Boolean> result : results) {
+                if (result.get()) {
+                    uploaded++;
+                }
+            }
+            getLog().info("Deployed " + uploaded + " files to " + baseUrl + ", "
+                + (uploads.size() - uploaded) + " already up to date");
+        }
+        catch (ExecutionException exc) {
+            throw new MojoExecutionException("Error deploying to " + baseUrl, exc.getCause());
+        }
+        catch (InterruptedException exc) {
+            Thread.currentThread().interrupt();
+            throw new MojoExecutionException("Interrupted while deploying", exc);
+        }
+        finally {
+            executor.shutdownNow();
+            saveState(stateFile, state);
+        }
+    }
+
+    /**
+     * Collects the files to upload. A checksum file is uploaded together with, and after, the
+     * file it belongs to, so that the remote checksum is never newer than the remote file.
+     */
+    private void collectUploads(File dir, String url, List<Upload> uploads) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (file.isDirectory()) {
+                collectUploads(file, url + file.getName() + "/", uploads);
+            }
+            else if (!file.getName().endsWith(".sha1")) {
+                File sha1File = new File(dir, file.getName() + ".sha1");
+                uploads.add(new Upload(file, sha1File.isFile() ? sha1File : null, url + file.getName()));
+            }
+        }
+    }
+
+    private boolean deploy(WebDavClient client, String baseUrl, Upload upload, Properties state,
+        File stateFile) throws Exception {
+        String checksum = upload.getChecksum();
+        synchronized (state) {
+            if (checksum.equals(state.getProperty(upload.url))) {
+                getLog().debug(upload.url + " has been deployed before");
+                return false;
+            }
+        }
+        for (int attempt = 0;; attempt++) {
+            try {
+                boolean uploaded = false;
+                if (upload.sha1File != null && checksum.equals(trim(client.getString(upload.url + ".sha1")))) {
+                    getLog().debug(upload.url + " is up to date");
+                }
+                else {
+                    getLog().info("Uploading " + upload.url);
+                    client.createDirectories(baseUrl, upload.url.substring(0, upload.url.lastIndexOf('/') + 1));
+                    client.put(upload.url, upload.file);
+                    if (upload.sha1File != null) {
+                        client.put(upload.url + ".sha1", upload.sha1File);
+                    }
+                    uploaded = true;
+                }
+                // save the state right away, so that a killed build does not repeat this upload
+                synchronized (state) {
+                    state.setProperty(upload.url, checksum);
+                    saveState(stateFile, state);
+                }
+                return uploaded;
+            }
+            catch (IOException exc) {
+                if (attempt >= retries) {
+                    throw exc;
+                }
+                getLog().warn("Upload of " + upload.url + " failed, retrying: " + exc.getMessage());
+                Thread.sleep(1000L << attempt);
+            }
+        }
+    }
+
+    private static String trim(String s) {
+        return (s == null) ? null : s.trim();
+    }
+
+    private Properties loadState(File stateFile) throws MojoExecutionException {
+        Properties state = new Properties();
+        if (stateFile.isFile()) {
+            InputStream is = null;
+            try {
+                is = new FileInputStream(stateFile);
+                state.load(is);
+            }
+            catch (IOException exc) {
+                throw new MojoExecutionException("Cannot read " + stateFile, exc);
+            }
+            finally {
+                IOUtil.close(is);
+            }
+        }
+        return state;
+    }
+
+    private void saveState(File stateFile, Properties state) {
+        synchronized (state) {
+            File tmpFile = null;
+            OutputStream os = null;
+            try {
+                stateFile.getParentFile().mkdirs();
+                tmpFile = File.createTempFile(STATE_FILE, ".tmp", stateFile.getParentFile());
+                os = new FileOutputStream(tmpFile);
+                state.store(os, "Files deployed by ceylon:deploy");
+                os.close();
+                Files.move(tmpFile.toPath(), stateFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            }
+            catch (IOException exc) {
+                getLog().warn("Cannot write " + stateFile, exc);
+            }
+            finally {
+                IOUtil.close(os);
+                if (tmpFile != null) {
+                    tmpFile.delete();
+                }
+            }
+        }
+    }
+
+    private static class Upload {
+
+        final File file;
+
+        final File sha1File;
+
+        final String url;
+
+        Upload(File file, File sha1File, String url) {
+            this.file = file;
+            this.sha1File = sha1File;
+            this.url = url;
+        }
+
+        String getChecksum() throws IOException, MojoExecutionException {
+            if (sha1File != null) {
+                return FileUtils.fileRead(sha1File, "UTF-8").trim();
+            }
+            Digester digester = new Digester();
+            digester.calculate(file);
+            return digester.getSha1();
+        }
+    }
+}
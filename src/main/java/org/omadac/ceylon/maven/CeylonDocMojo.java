@@ -0,0 +1,181 @@
+/*
+ * Copyright Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the authors tag. All rights reserved.
+ *
+ * This copyrighted material is made available to anyone wishing to use,
+ * modify, copy, or redistribute it subject to the terms and conditions
+ * of the GNU General Public License version 2.
+ * 
+ * This particular file is subject to the "Classpath" exception as provided in the 
+ * LICENSE file that accompanied this code.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT A
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License,
+ * along with this distribution; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ */
+package org.omadac.ceylon.maven;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.MojoFailureException;
+import org.apache.maven.plugins.annotations.LifecyclePhase;
+import org.apache.maven.plugins.annotations.Mojo;
+import org.apache.maven.plugins.annotations.Parameter;
+import org.apache.maven.plugins.annotations.ResolutionScope;
+
+/**
+ * Generates the API documentation of Ceylon modules using the "ceylon doc" command. The
+ * documentation of each module is written to <code>module-doc</code> next to its archive in the
+ * output repository. Only modules whose sources have changed since they were last documented are
+ * processed (see {@link SourceFingerprints}). The modules are split into up to
+ * <code>threads</code> groups which are documented concurrently, since the documentation of a
+ * module only depends on the compiled archives of the modules it imports. Concurrent groups are
+ * documented in forked JVMs, as in-process invocations of the Ceylon tools share global state.
+ */
+@Mojo(name = "doc", defaultPhase = LifecyclePhase.PACKAGE, requiresDependencyResolution = ResolutionScope.COMPILE)
+public class CeylonDocMojo extends AbstractCeylonSourceMojo {
+
+    /**
+     * If <code>true</code>, non-shared declarations are documented as well. Equivalent to the
+     * <code>--non-shared</code> option of "ceylon doc".
+     */
+    @Parameter(property = "ceylon.doc.nonShared", defaultValue = "false")
+    private boolean includeNonShared;
+
+    /**
+     * If <code>true</code>, the source code is included in the documentation. Equivalent to the
+     * <code>--source-code</code> option of "ceylon doc".
+     */
+    @Parameter(property = "ceylon.doc.sourceCode", defaultValue = "false")
+    private boolean includeSourceCode;
+
+    public void execute() throws MojoExecutionException, MojoFailureException {
+        if (modules == null || modules.isEmpty()) {
+            getLog().info("No modules to document");
+            return;
+        }
+
+        getLog().debug("ceylon.home = " + home);
+
+        SourceFingerprints fingerprints = createFingerprints();
+        List<String> options = buildInvocation(modules).getOptions();
+        List<String> changed = modules;
+        if (fingerprints != null) {
+            try {
+                changed = fingerprints.getChangedModules(SourceFingerprints.DOC, modules, options, new File(out));
+            }
+            catch (IOException e) {
+                throw new MojoExecutionException("Cannot compute source fingerprints", e);
+            }
+            if (changed.isEmpty()) {
+                getLog().info("Documentation of all modules is up to date");
+                return;
+            }
+        }
+
+        int poolSize = (threads > 0) ? threads : Runtime.getRuntime().availableProcessors();
+        List<List<String>> groups = new ArrayList<List<String>>();
+        for (int i = 0; i < Math.min(poolSize, changed.size()); i++) {
+            groups.add(new ArrayList<String>());
+        }
+        for (int i = 0; i < changed.size(); i++) {
+            groups.get(i % groups.size()).add(changed.get(i));
+        }
+        getLog().info("Documenting " + changed.size() + " modules using " + groups.size() + " threads");
+
+        int sc = 0;
+        ExecutorService executor = Executors.newFixedThreadPool(groups.size());
+        forceFork = groups.size() > 1;
+        try {
+            List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+            for (final List<String> group : groups) {
+                final CeylonInvocation invocation = buildInvocation(group);
+                results.add(executor.submit(new Callable<Integer>() {
+
+                    public Integer call() throws Exception {
+                        return runTool("doc", group, invocation);
+                    }
+                }));
+            }
+            for (int i = 0; i < groups.size(); i++) {
+                int result = results.get(i).get();
+                if (fingerprints != null) {
+                    if (result == 0) {
+                        fingerprints.record(SourceFingerprints.DOC, groups.get(i), options);
+                    }
+                    else {
+                        fingerprints.forget(SourceFingerprints.DOC, groups.get(i));
+                    }
+                }
+                if (result != 0 && sc != 1) {
+                    sc = result;
+                }
+            }
+        }
+        catch (IOException e) {
+            throw new MojoExecutionException("Cannot compute source fingerprints", e);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MojoExecutionException("Interrupted while documenting modules", e);
+        }
+        catch (ExecutionException e) {
+            if (e.getCause() instanceof MojoExecutionException) {
+                throw (MojoExecutionException) e.getCause();
+            }
+            throw new MojoExecutionException("The documentation tool returned an unexpected result", e.getCause());
+        }
+        finally {
+            forceFork = false;
+            executor.shutdownNow();
+            storeFingerprints(fingerprints);
+        }
+
+        if (sc == 1) {
+            getLog().info("-------------------------------------------------------------");
+            getLog().error("DOCUMENTATION ERRORS (see above)");
+            getLog().info("-------------------------------------------------------------");
+            if (failOnError) {
+                throw new MojoFailureException("Documentation Error");
+            }
+        }
+        else if (sc != 0) {
+            throw new MojoExecutionException("The documentation tool returned an unexpected result");
+        }
+    }
+
+    private CeylonInvocation buildInvocation(List<String> moduleNames) throws MojoExecutionException {
+        CeylonInvocation invocation = new CeylonInvocation("doc");
+        invocation.out(out);
+        invocation.source(source);
+        invocation.repository(out);
+        invocation.nonShared(includeNonShared);
+        invocation.sourceCode(includeSourceCode);
+        invocation.credentials(username, password);
+        addRepositories(invocation, repositories, settingsOffline);
+
+        if (mavenDependencies) {
+            invocation.repository(updateDependencyRepository("maven-dependencies"));
+        }
+
+        invocation.modules(moduleNames);
+
+        getLog().debug("Command line options to ceylon:");
+        getLog().debug(invocation.toString());
+
+        return invocation;
+    }
+}
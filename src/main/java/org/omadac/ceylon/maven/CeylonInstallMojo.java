@@ -0,0 +1,211 @@
+/*
+ * Copyright Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the authors tag. All rights reserved.
+ *
+ * This copyrighted material is made available to anyone wishing to use,
+ * modify, copy, or redistribute it subject to the terms and conditions
+ * of the GNU General Public License version 2.
+ * 
+ * This particular file is subject to the "Classpath" exception as provided in the 
+ * LICENSE file that accompanied this code.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT A
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License,
+ * along with this distribution; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ */
+package org.omadac.ceylon.maven;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.Locale;
+
+import org.apache.maven.RepositoryUtils;
+import org.apache.maven.artifact.Artifact;
+import org.apache.maven.plugin.AbstractMojo;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.MojoFailureException;
+import org.apache.maven.plugins.annotations.Component;
+import org.apache.maven.plugins.annotations.LifecyclePhase;
+import org.apache.maven.plugins.annotations.Mojo;
+import org.apache.maven.plugins.annotations.Parameter;
+import org.apache.maven.project.MavenProject;
+import org.codehaus.plexus.util.FileUtils;
+import org.eclipse.aether.RepositorySystem;
+import org.eclipse.aether.RepositorySystemSession;
+import org.eclipse.aether.artifact.DefaultArtifact;
+import org.eclipse.aether.installation.InstallRequest;
+import org.eclipse.aether.installation.InstallationException;
+
+/**
+ * Installs the CAR, its SHA1 checksum and the POM into the local Maven repository and into a
+ * local Ceylon repository. The Maven repository is written by the Maven repository system,
+ * like "mvn install" does, including its metadata. Files of the Ceylon repository are linked to
+ * the build output (see {@link FileLinker}), or copied if requested, and files already
+ * installed with the same stored SHA1 checksum are left alone.
+ */
+@Mojo(name = "install", defaultPhase = LifecyclePhase.INSTALL, requiresProject = true)
+public class CeylonInstallMojo extends AbstractMojo {
+
+    /**
+     * Output directory of the current build.
+     */
+    @Parameter(property = "ceylon.out", defaultValue = "${project.build.directory}")
+    protected String out;
+
+    /**
+     * The modules to install (without versions).
+     */
+    @Parameter(property = "ceylon.modules", required = true)
+    protected List<String> modules;
+
+    /**
+     * The local Ceylon repository to install the modules into.
+     */
+    @Parameter(property = "ceylon.localRepository", defaultValue = "${user.home}/.ceylon/repo")
+    protected File ceylonRepository;
+
+    /**
+     * If <code>false</code>, the modules are only installed into the local Maven repository.
+     */
+    @Parameter(property = "ceylon.installCeylon", defaultValue = "true")
+    protected boolean installCeylon = true;
+
+    /**
+     * If <code>true</code>, the files installed into the local Ceylon repository are hard-linked
+     * or symbolically linked to the build output, and only copied where the file system allows
+     * neither. A later build then changes the installed files as well. If <code>false</code>,
+     * they are always copied.
+     */
+    @Parameter(property = "ceylon.installLinks", defaultValue = "true")
+    protected boolean installLinks = true;
+
+    @Component
+    private RepositorySystem repositorySystem;
+
+    @Parameter(defaultValue = "${repositorySystemSession}", readonly = true, required = true)
+    private RepositorySystemSession repositorySession;
+
+    @Component
+    private MavenProject project;
+
+    public void execute() throws MojoExecutionException, MojoFailureException {
+        if (modules == null || modules.isEmpty()) {
+            getLog().info("No module defined");
+            return;
+        }
+
+        InstallRequest request = new InstallRequest();
+        Artifact artifact = project.getArtifact();
+        request.addArtifact(new DefaultArtifact(artifact.getGroupId(), artifact.getArtifactId(), "",
+            "pom", artifact.getVersion()).setFile(project.getFile()));
+        addArtifact(request, artifact);
+        for (Artifact attached : project.getAttachedArtifacts()) {
+            addArtifact(request, attached);
+        }
+        try {
+            repositorySystem.install(repositorySession, request);
+        }
+        catch (InstallationException exc) {
+            throw new MojoExecutionException("Error installing artifacts", exc);
+        }
+
+        if (installCeylon) {
+            try {
+                for (String module : modules) {
+                    installModule(module);
+                }
+            }
+            catch (IOException exc) {
+                throw new MojoExecutionException("Error installing modules", exc);
+            }
+        }
+    }
+
+    /**
+     * Adds the given artifact and its SHA1 checksum file, if any, to the install request. The
+     * checksum file is installed like a signature, with the extension of the artifact followed
+     * by <code>.sha1</code>.
+     */
+    private static void addArtifact(InstallRequest request, Artifact artifact) throws MojoExecutionException {
+        File file = artifact.getFile();
+        if (file == null || !file.isFile()) {
+            throw new MojoExecutionException("No file attached to artifact " + artifact.getId());
+        }
+        org.eclipse.aether.artifact.Artifact installed = RepositoryUtils.toArtifact(artifact);
+        request.addArtifact(installed);
+        File sha1File = getSha1File(file);
+        if (sha1File.isFile()) {
+            request.addArtifact(new DefaultArtifact(installed.getGroupId(), installed.getArtifactId(),
+                installed.getClassifier(), installed.getExtension() + ".sha1", installed.getVersion())
+                .setFile(sha1File));
+        }
+    }
+
+    private void installModule(String module) throws IOException {
+        String modulePath = module.replace('.', File.separatorChar) + File.separator + project.getVersion();
+        File sourceDir = new File(out, modulePath);
+        File targetDir = new File(ceylonRepository, modulePath);
+        String baseName = module + "-" + project.getVersion();
+        for (String extension : new String[] { ".car", ".car.sha1", ".src", ".src.sha1" }) {
+            File source = new File(sourceDir, baseName + extension);
+            if (source.isFile()) {
+                installFile(source, new File(targetDir, baseName + extension));
+            }
+        }
+    }
+
+    private void installFile(File source, File target) throws IOException {
+        if (isIdentical(source, target)) {
+            getLog().debug("Skipping " + target + ", it is up to date");
+            return;
+        }
+        getLog().info("Installing " + source + " to " + target);
+        if (installLinks) {
+            FileLinker.LinkType type = FileLinker.link(source, target);
+            getLog().debug("Installed " + target + " as " + type);
+        }
+        else {
+            Files.createDirectories(target.getAbsoluteFile().getParentFile().toPath());
+            Files.copy(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.COPY_ATTRIBUTES);
+        }
+    }
+
+    /**
+     * Checks if the target is a link to the source, or if both have the same size and the same
+     * checksum stored in their <code>.sha1</code> files. Files without a stored checksum are
+     * never considered identical; they are small enough to be installed again.
+     */
+    private static boolean isIdentical(File source, File target) throws IOException {
+        if (FileLinker.isSameFile(source.toPath(), target.toPath())) {
+            return true;
+        }
+        if (!target.isFile() || target.length() != source.length()) {
+            return false;
+        }
+        String checksum = readChecksum(source);
+        return checksum != null && checksum.equals(readChecksum(target));
+    }
+
+    private static String readChecksum(File file) throws IOException {
+        File sha1File = getSha1File(file);
+        if (!sha1File.isFile()) {
+            return null;
+        }
+        String content = FileUtils.fileRead(sha1File, "US-ASCII").trim();
+        // the checksum may be followed by the file name
+        int space = content.indexOf(' ');
+        return (space < 0 ? content : content.substring(0, space)).toLowerCase(Locale.ENGLISH);
+    }
+
+    private static File getSha1File(File file) {
+        return new File(file.getParentFile(), file.getName() + ".sha1");
+    }
+}
@@ -0,0 +1,260 @@
+/*
+ * Copyright Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the authors tag. All rights reserved.
+ *
+ * This copyrighted material is made available to anyone wishing to use,
+ * modify, copy, or redistribute it subject to the terms and conditions
+ * of the GNU General Public License version 2.
+ * 
+ * This particular file is subject to the "Classpath" exception as provided in the 
+ * LICENSE file that accompanied this code.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT A
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License,
+ * along with this distribution; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ */
+package org.omadac.ceylon.maven;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import com.redhat.ceylon.launcher.Launcher;
+
+/**
+ * Invocation of a Ceylon tool: the tool name, its options and the modules it processes. The goals
+ * build their command lines with it and run it in-process, where the system repository is passed
+ * to the {@link Launcher} directly instead of being parsed from the arguments, or pass
+ * {@link #toArgs()} to a {@link ForkedLauncher}.
+ */
+public class CeylonInvocation {
+
+    private final String tool;
+
+    private final List<String> options = new ArrayList<String>();
+
+    private final List<String> modules = new ArrayList<String>();
+
+    private String systemRepository;
+
+    public CeylonInvocation(String tool) {
+        this.tool = tool;
+    }
+
+    public String getTool() {
+        return tool;
+    }
+
+    /**
+     * Returns the options, without the tool name and the modules.
+     */
+    public List<String> getOptions() {
+        return Collections.unmodifiableList(options);
+    }
+
+    public List<String> getModules() {
+        return Collections.unmodifiableList(modules);
+    }
+
+    /**
+     * Sets the output repository (the <code>--out</code> option).
+     */
+    public CeylonInvocation out(String repository) {
+        return option("out", repository);
+    }
+
+    /**
+     * Adds a source directory (the <code>--source</code> option).
+     */
+    public CeylonInvocation source(File directory) {
+        return option("source", directory.getPath());
+    }
+
+    /**
+     * Adds a resource directory (the <code>--resource</code> option).
+     */
+    public CeylonInvocation resource(File directory) {
+        return option("resource", directory.getPath());
+    }
+
+    /**
+     * Adds a module repository (the <code>--rep</code> option).
+     */
+    public CeylonInvocation repository(String repository) {
+        return option("rep", repository);
+    }
+
+    /**
+     * Adds a <code>--rep</code> option for each of the given repositories, if any.
+     */
+    public CeylonInvocation repositories(Iterable<String> repositories) {
+        if (repositories != null) {
+            for (String repository : repositories) {
+                repository(repository);
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Disables the default module repositories (the <code>--no-default-repositories</code>
+     * option) if <code>disabled</code> is <code>true</code>.
+     */
+    public CeylonInvocation noDefaultRepositories(boolean disabled) {
+        return flag("no-default-repositories", disabled);
+    }
+
+    /**
+     * Prevents connections to remote repositories (the <code>--offline</code> option) if
+     * <code>offline</code> is <code>true</code>.
+     */
+    public CeylonInvocation offline(boolean offline) {
+        return flag("offline", offline);
+    }
+
+    /**
+     * Enables verbose output (the <code>--verbose</code> option) if <code>verbose</code> is
+     * <code>true</code>.
+     */
+    public CeylonInvocation verbose(boolean verbose) {
+        return flag("verbose", verbose);
+    }
+
+    /**
+     * Sets the credentials for the output repository (the <code>--user</code> and
+     * <code>--pass</code> options), if given.
+     */
+    public CeylonInvocation credentials(String user, String password) {
+        option("user", user);
+        return option("pass", password);
+    }
+
+    /**
+     * Sets the source file encoding (the <code>--encoding</code> option).
+     */
+    public CeylonInvocation encoding(String encoding) {
+        return option("encoding", encoding);
+    }
+
+    /**
+     * Sets the toplevel method or class to run (the <code>--run</code> option).
+     */
+    public CeylonInvocation runToplevel(String declaration) {
+        return option("run", declaration);
+    }
+
+    /**
+     * Sets the working directory of the program (the <code>--cwd</code> option).
+     */
+    public CeylonInvocation workingDirectory(String directory) {
+        return option("cwd", directory);
+    }
+
+    /**
+     * Sets the Maven overrides file (the <code>--maven-overrides</code> option).
+     */
+    public CeylonInvocation mavenOverrides(String file) {
+        return option("maven-overrides", file);
+    }
+
+    /**
+     * Selects the tests to run (the <code>--test</code> option).
+     */
+    public CeylonInvocation tests(String tests) {
+        return option("test", tests);
+    }
+
+    /**
+     * Documents non-shared declarations (the <code>--non-shared</code> option) if
+     * <code>included</code> is <code>true</code>.
+     */
+    public CeylonInvocation nonShared(boolean included) {
+        return flag("non-shared", included);
+    }
+
+    /**
+     * Includes the source code in the documentation (the <code>--source-code</code> option) if
+     * <code>included</code> is <code>true</code>.
+     */
+    public CeylonInvocation sourceCode(boolean included) {
+        return flag("source-code", included);
+    }
+
+    /**
+     * Sets the system repository (the <code>--sysrep</code> option).
+     */
+    public CeylonInvocation systemRepository(String repository) {
+        systemRepository = repository;
+        return option("sysrep", repository);
+    }
+
+    /**
+     * Adds a system property for the program run by the tool (the <code>-D</code> option).
+     */
+    public CeylonInvocation property(String name, String value) {
+        options.add("-D");
+        options.add(name + "=" + value);
+        return this;
+    }
+
+    /**
+     * Adds options as given, e.g. the repository options of a {@link RepositoryMirror}.
+     */
+    public CeylonInvocation options(List<String> args) {
+        options.addAll(args);
+        return this;
+    }
+
+    public CeylonInvocation modules(Iterable<String> moduleNames) {
+        for (String module : moduleNames) {
+            modules.add(module);
+        }
+        return this;
+    }
+
+    private CeylonInvocation flag(String name, boolean set) {
+        if (set) {
+            options.add("--" + name);
+        }
+        return this;
+    }
+
+    private CeylonInvocation option(String name, String value) {
+        if (value != null) {
+            options.add("--" + name);
+            options.add(value);
+        }
+        return this;
+    }
+
+    /**
+     * Returns the command line of the tool, without the "ceylon" command.
+     */
+    public String[] toArgs() {
+        List<String> args = new ArrayList<String>(1 + options.size() + modules.size());
+        args.add(tool);
+        args.addAll(options);
+        args.addAll(modules);
+        return args.toArray(new String[args.size()]);
+    }
+
+    /**
+     * Runs the tool in-process.
+     * 
+     * @return the exit code of the tool
+     */
+    public int run() throws Throwable {
+        return Launcher.runTool(systemRepository, null, toArgs());
+    }
+
+    @Override
+    public String toString() {
+        return Arrays.asList(toArgs()).toString();
+    }
+}
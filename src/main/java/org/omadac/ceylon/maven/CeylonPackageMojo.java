@@ -20,7 +20,15 @@
 package org.omadac.ceylon.maven;
 
 import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.Deflater;
 
 import org.apache.maven.archiver.MavenArchiveConfiguration;
 import org.apache.maven.archiver.MavenArchiver;
@@ -32,19 +40,29 @@ import org.apache.maven.plugins.annotations.Component;
 import org.apache.maven.plugins.annotations.Mojo;
 import org.apache.maven.plugins.annotations.Parameter;
 import org.apache.maven.project.MavenProject;
-import org.codehaus.plexus.archiver.Archiver;
+import org.apache.maven.project.MavenProjectHelper;
 import org.codehaus.plexus.archiver.UnArchiver;
 import org.codehaus.plexus.archiver.jar.JarArchiver;
 import org.codehaus.plexus.archiver.manager.ArchiverManager;
 import org.codehaus.plexus.util.FileUtils;
 
+import com.redhat.ceylon.common.Constants;
+
 /**
- * Repackages a Ceylon archive, adding missing directories and resources,
- * updating the SHA1 checksum.
+ * Repackages the Ceylon archives of all modules, adding missing directories and resources,
+ * updating the SHA1 checksum. The archive of the first module is the main artifact of the
+ * project and gets the project resources, the archives of further modules are attached with
+ * the module name as classifier.
  */
 @Mojo(name = "package", requiresProject = true)
 public class CeylonPackageMojo extends AbstractMojo {
 
+    /**
+     * Ceylon home directory.
+     */
+    @Parameter(property = "ceylon.home", defaultValue = "${env.CEYLON_HOME}")
+    protected String home;
+
     /**
      * Output directory of the current build.
      */
@@ -60,66 +78,212 @@ public class CeylonPackageMojo extends AbstractMojo {
     @Component
     private MavenProject project;
 
-    @Component(role = Archiver.class, hint = "jar")
-    private JarArchiver jarArchiver;
-
     @Component
     private ArchiverManager archiverManager;
 
     @Component
     private MavenSession session;
 
+    @Component
+    private MavenProjectHelper projectHelper;
+
     @Parameter
     private MavenArchiveConfiguration archive = new MavenArchiveConfiguration();
 
+    /**
+     * If <code>true</code>, the archive entries are compressed concurrently on several threads.
+     * The archive then contains a minimal manifest (unless there is one in the compiled module
+     * or the resources) and the Maven descriptor, but the <code>archive</code> configuration is
+     * not used.
+     */
+    @Parameter(property = "ceylon.parallelPackaging", defaultValue = "false")
+    private boolean parallelPackaging;
+
+    /**
+     * Maximum number of modules packaged concurrently, and number of compression threads shared by
+     * all modules for parallel packaging. Defaults to the number of available processors.
+     */
+    @Parameter(property = "ceylon.threads", defaultValue = "0")
+    private int threads;
+
+    /**
+     * Compression level of the archive, from 0 (store only, the fastest option for development
+     * builds) to 9 (best compression). The default level is -1. Parallel packaging supports all
+     * levels, otherwise only 0 or the default level can be selected.
+     */
+    @Parameter(property = "ceylon.compressionLevel", defaultValue = "-1")
+    private int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+
+    /**
+     * If <code>true</code>, a Jandex annotation index of the module classes is added to the archive
+     * as <code>META-INF/jandex.idx</code>, so that annotation scanning consumers of the module
+     * need not read every class file.
+     */
+    @Parameter(property = "ceylon.jandex", defaultValue = "true")
+    private boolean jandex = true;
+
+    private ExecutorService compressionExecutor;
+
     public void execute() throws MojoExecutionException, MojoFailureException {
         if (modules == null || modules.isEmpty()) {
             getLog().info("No module defined");
             return;
         }
 
-        File carFile = getCarFile();
-        if (carFile.exists()) {
-            getLog().debug("Repackaging artifact " + carFile);
-            project.getArtifact().setFile(carFile);
-            
-            File classesDir = new File(project.getBuild().getOutputDirectory());
-            classesDir.mkdirs();
-            
+        for (String module : modules) {
+            File carFile = getCarFile(module);
+            if (!carFile.exists()) {
+                throw new MojoExecutionException(carFile.toString() + " does not exist");
+            }
+        }
+        project.getArtifact().setFile(getCarFile(modules.get(0)));
+
+        // the first module is the main artifact and gets the resources, which have already
+        // been copied to the output directory
+        File classesDir = new File(project.getBuild().getOutputDirectory());
+        classesDir.mkdirs();
+
+        BuildMetrics.Sample sample = new BuildMetrics.Sample();
+        sample.startHeap();
+        int poolSize = (threads > 0) ? threads : Runtime.getRuntime().availableProcessors();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(poolSize, modules.size()));
+        // the module tasks only wait for the compression tasks, which all share one pool
+        compressionExecutor = parallelPackaging ? Executors.newFixedThreadPool(poolSize) : null;
+        try {
+            List<Future<File>> results = new ArrayList<Future<File>>();
+            for (int i = 0; i < modules.size(); i++) {
+                final String module = modules.get(i);
+                final File workDir = (i == 0) ? classesDir : getWorkDir(module);
+                final JarArchiver moduleArchiver = (JarArchiver) archiverManager.getArchiver("jar");
+                results.add(executor.submit(new Callable<File>() {
+
+                    public File call() throws Exception {
+                        return repackage(module, workDir, moduleArchiver);
+                    }
+                }));
+            }
+            for (int i = 0; i < modules.size(); i++) {
+                File carFile = results.get(i).get();
+                if (i > 0) {
+                    projectHelper.attachArtifact(project, "car", modules.get(i), carFile);
+                }
+            }
+            sample.stopHeap();
             try {
-                // unpack archive generated by "ceylon compile" into classesDir,
-                // which already contains filtered resources (from src/main/resource by default)
-                UnArchiver unArchiver = archiverManager.getUnArchiver("zip");
-                unArchiver.setSourceFile(carFile);
-                unArchiver.setDestDirectory(classesDir);
-                unArchiver.extract();
-
-                // recreate archive, containing additional resources and directory entries
-                // ("ceylon compile" does not create directory entries in 1.0.0.)
+                BuildMetrics.record(project.getBuild().getDirectory(), "package", modules, sample,
+                    session.getStartTime());
+            }
+            catch (IOException e) {
+                getLog().warn("Cannot record build metrics", e);
+            }
+        }
+        catch (ExecutionException exc) {
+            throw new MojoExecutionException("Error assembling CAR", exc.getCause());
+        }
+        catch (InterruptedException exc) {
+            Thread.currentThread().interrupt();
+            throw new MojoExecutionException("Interrupted while assembling CAR", exc);
+        }
+        catch (Exception exc) {
+            throw new MojoExecutionException("Error assembling CAR", exc);
+        }
+        finally {
+            sample.stopHeap();
+            executor.shutdownNow();
+            if (compressionExecutor != null) {
+                compressionExecutor.shutdownNow();
+                compressionExecutor = null;
+            }
+        }
+    }
+
+    private File getWorkDir(String module) throws IOException {
+        File workDir = new File(new File(project.getBuild().getDirectory(), "ceylon-package"), module);
+        FileUtils.deleteDirectory(workDir);
+        workDir.mkdirs();
+        return workDir;
+    }
+
+    private File repackage(String module, File classesDir, JarArchiver moduleArchiver) throws Exception {
+        File carFile = getCarFile(module);
+        getLog().debug("Repackaging artifact " + carFile);
+
+        // unpack archive generated by "ceylon compile" into classesDir,
+        // which already contains filtered resources (from src/main/resource by default)
+        UnArchiver unArchiver = archiverManager.getUnArchiver("zip");
+        unArchiver.setSourceFile(carFile);
+        unArchiver.setDestDirectory(classesDir);
+        unArchiver.extract();
+
+        if (jandex) {
+            createIndex(classesDir);
+        }
+
+        // the archive and its checksum may be hard-linked to installed copies
+        File carSha1File = new File(carFile.getParent(), carFile.getName() + ".sha1");
+        FileLinker.detach(carFile);
+        FileLinker.detach(carSha1File);
+
+        // recreate archive, containing additional resources and directory entries
+        // ("ceylon compile" does not create directory entries in 1.0.0.)
+        if (parallelPackaging) {
+            createArchiveInParallel(classesDir, carFile);
+        }
+        else {
+            // MavenArchiver reads and updates the shared project and archive configuration
+            synchronized (archive) {
                 MavenArchiver archiver = new MavenArchiver();
-                archiver.setArchiver(jarArchiver);
-                jarArchiver.addDirectory(classesDir);
+                archiver.setArchiver(moduleArchiver);
+                moduleArchiver.setCompress(compressionLevel != 0);
+                moduleArchiver.addDirectory(classesDir);
                 archiver.setOutputFile(carFile);
                 archiver.createArchive(session, project, archive);
-                
-                // update the SHA1 checksum
-                File carSha1File = new File(carFile.getParent(), carFile.getName() + ".sha1");
-                Digester digester = new Digester();
-                digester.calculate(carFile);
-                String checksum = digester.getSha1();
-                FileUtils.fileWrite(carSha1File.getAbsolutePath(), "UTF-8", checksum);
-            }
-            catch (Exception exc) {
-                throw new MojoExecutionException("Error assembling CAR", exc);
             }
         }
-        else {
-            throw new MojoExecutionException(carFile.toString() + " does not exist");
+
+        // update the SHA1 checksum
+        Digester digester = new Digester();
+        digester.calculate(carFile);
+        String checksum = digester.getSha1();
+        FileUtils.fileWrite(carSha1File.getAbsolutePath(), "UTF-8", checksum);
+        return carFile;
+    }
+
+    private void createIndex(File classesDir) throws Exception {
+        if (home == null) {
+            getLog().warn("Ceylon home directory not set, cannot create Jandex index");
+            return;
         }
+        System.setProperty(Constants.PROP_CEYLON_HOME_DIR, home);
+        JandexIndexer indexer = new JandexIndexer();
+        int count;
+        try {
+            count = indexer.createIndex(classesDir);
+        }
+        finally {
+            indexer.close();
+        }
+        getLog().debug("Indexed " + count + " classes in " + JandexIndexer.INDEX_FILE);
+    }
+
+    private void createArchiveInParallel(File classesDir, File carFile) throws IOException {
+        ParallelZipArchiver archiver = new ParallelZipArchiver(compressionExecutor, threads, compressionLevel);
+        archiver.addDirectory(classesDir);
+        if (!archiver.hasEntry(ParallelZipArchiver.MANIFEST)) {
+            String manifest = "Manifest-Version: 1.0\r\nCreated-By: ceylon-maven-plugin\r\n\r\n";
+            archiver.addEntry(ParallelZipArchiver.MANIFEST, manifest.getBytes("UTF-8"));
+        }
+
+        String descriptorDir = "META-INF/maven/" + project.getGroupId() + "/" + project.getArtifactId() + "/";
+        archiver.addFile(project.getFile(), descriptorDir + "pom.xml");
+        String pomProperties = "groupId=" + project.getGroupId() + "\nartifactId=" + project.getArtifactId()
+            + "\nversion=" + project.getVersion() + "\n";
+        archiver.addEntry(descriptorDir + "pom.properties", pomProperties.getBytes("UTF-8"));
+
+        archiver.createArchive(carFile);
     }
 
-    private File getCarFile() {
-        String module = modules.get(0);
+    private File getCarFile(String module) {
         String modulePath = module.replaceAll("\\.", File.separator);
         File moduleDir = new File(out, modulePath);
         File versionDir = new File(moduleDir, project.getVersion());
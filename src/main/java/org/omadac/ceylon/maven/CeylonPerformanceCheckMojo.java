@@ -0,0 +1,239 @@
+/*
+ * Copyright Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the authors tag. All rights reserved.
+ *
+ * This copyrighted material is made available to anyone wishing to use,
+ * modify, copy, or redistribute it subject to the terms and conditions
+ * of the GNU General Public License version 2.
+ * 
+ * This particular file is subject to the "Classpath" exception as provided in the 
+ * LICENSE file that accompanied this code.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT A
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License,
+ * along with this distribution; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ */
+package org.omadac.ceylon.maven;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+import org.apache.maven.plugin.AbstractMojo;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.MojoFailureException;
+import org.apache.maven.plugins.annotations.LifecyclePhase;
+import org.apache.maven.plugins.annotations.Mojo;
+import org.apache.maven.plugins.annotations.Parameter;
+import org.codehaus.plexus.util.FileUtils;
+
+/**
+ * Compares the metrics of the current build with a baseline and fails the build if a metric has
+ * regressed. The metrics are the durations, CPU times and peak heap usages recorded by the compile,
+ * testCompile, test and package goals (see {@link BuildMetrics}) and the mean latencies measured
+ * by the benchmark goal.
+ * <p>
+ * A metric has regressed if it exceeds the baseline by more than the tolerance and the difference
+ * is not explained by noise: for benchmarks, the difference must exceed twice its standard error,
+ * for durations, it must exceed <code>minDurationDelta</code>, and for peak heap usages
+ * <code>minHeapDelta</code>.
+ */
+@Mojo(name = "check-performance", defaultPhase = LifecyclePhase.VERIFY)
+public class CeylonPerformanceCheckMojo extends AbstractMojo {
+
+    /**
+     * Build directory.
+     */
+    @Parameter(defaultValue = "${project.build.directory}", readonly = true, required = true)
+    private String targetDir;
+
+    /**
+     * The baseline, a properties file mapping metric names to values. For a metric
+     * <code>m</code>, the optional entries <code>m.stddev</code> and <code>m.n</code> give the
+     * standard deviation and number of samples.
+     */
+    @Parameter(property = "ceylon.performance.baseline", defaultValue = "${project.basedir}/performance-baseline.properties")
+    private File baselineFile;
+
+    /**
+     * Allowed increase of a metric over the baseline, in percent.
+     */
+    @Parameter(property = "ceylon.performance.tolerance", defaultValue = "10")
+    private double tolerance = 10;
+
+    /**
+     * Allowed increase in percent for individual metrics, overriding <code>tolerance</code>.
+     */
+    @Parameter
+    private Map<String, String> tolerances;
+
+    /**
+     * Minimum increase of a duration in milliseconds to be considered a regression.
+     */
+    @Parameter(property = "ceylon.performance.minDurationDelta", defaultValue = "1000")
+    private long minDurationDelta = 1000;
+
+    /**
+     * Minimum increase of a peak heap usage in MB to be considered a regression.
+     */
+    @Parameter(property = "ceylon.performance.minHeapDelta", defaultValue = "32")
+    private long minHeapDelta = 32;
+
+    /**
+     * If <code>true</code>, the current metrics are written to the baseline file instead of being
+     * checked.
+     */
+    @Parameter(property = "ceylon.performance.updateBaseline", defaultValue = "false")
+    private boolean updateBaseline;
+
+    /**
+     * Whether the build should fail on regressions. Otherwise they are only reported.
+     */
+    @Parameter(property = "ceylon.performance.failOnRegression", defaultValue = "true")
+    private boolean failOnRegression = true;
+
+    public void execute() throws MojoExecutionException, MojoFailureException {
+        Map<String, Metric> current;
+        try {
+            current = loadCurrentMetrics();
+        }
+        catch (IOException exc) {
+            throw new MojoExecutionException("Cannot read metrics", exc);
+        }
+        if (current.isEmpty()) {
+            getLog().info("No metrics recorded");
+            return;
+        }
+
+        if (updateBaseline) {
+            writeBaseline(current);
+            return;
+        }
+        if (!baselineFile.isFile()) {
+            getLog().warn("No performance baseline " + baselineFile + ", use -Dceylon.performance.updateBaseline to create one");
+            return;
+        }
+
+        Map<String, Metric> baseline;
+        try {
+            baseline = loadMetrics(BuildMetrics.load(baselineFile));
+        }
+        catch (IOException exc) {
+            throw new MojoExecutionException("Cannot read " + baselineFile, exc);
+        }
+
+        StringBuilder report = new StringBuilder();
+        int regressions = 0;
+        for (Map.Entry<String, Metric> entry : baseline.entrySet()) {
+            String name = entry.getKey();
+            Metric base = entry.getValue();
+            Metric metric = current.get(name);
+            if (metric == null) {
+                continue;
+            }
+            double change = (base.value == 0) ? 0 : (metric.value - base.value) / base.value * 100;
+            boolean regressed = change > getTolerance(name) && !isNoise(name, base, metric);
+            String line = String.format(Locale.ROOT, "%-12s %s: %.1f -> %.1f (%+.1f%%)",
+                regressed ? "REGRESSION" : "ok", name, base.value, metric.value, change);
+            report.append(line).append('\n');
+            if (regressed) {
+                regressions++;
+                getLog().error(line);
+            }
+            else {
+                getLog().info(line);
+            }
+        }
+
+        try {
+            FileUtils.fileWrite(new File(targetDir, "performance-report.txt").getAbsolutePath(), "UTF-8",
+                report.toString());
+        }
+        catch (IOException exc) {
+            getLog().warn("Cannot write performance report", exc);
+        }
+        if (regressions > 0 && failOnRegression) {
+            throw new MojoFailureException(regressions + " performance regressions, see above");
+        }
+    }
+
+    private double getTolerance(String name) {
+        if (tolerances != null && tolerances.containsKey(name)) {
+            return Double.parseDouble(tolerances.get(name));
+        }
+        return tolerance;
+    }
+
+    private boolean isNoise(String name, Metric base, Metric metric) {
+        double delta = metric.value - base.value;
+        if (name.endsWith(".millis")) {
+            return delta <= minDurationDelta;
+        }
+        if (name.endsWith(".bytes")) {
+            return delta <= minHeapDelta * 1024 * 1024;
+        }
+        if (base.n > 1 && metric.n > 1) {
+            double standardError = Math.sqrt(base.stddev * base.stddev / base.n + metric.stddev
+                * metric.stddev / metric.n);
+            return delta <= 2 * standardError;
+        }
+        return false;
+    }
+
+    private Map<String, Metric> loadCurrentMetrics() throws IOException {
+        return loadMetrics(BuildMetrics.load(BuildMetrics.getFile(targetDir)));
+    }
+
+    private static Map<String, Metric> loadMetrics(Properties properties) {
+        Map<String, Metric> metrics = new TreeMap<String, Metric>();
+        for (String name : properties.stringPropertyNames()) {
+            if (!BuildMetrics.isMetric(name)) {
+                continue;
+            }
+            Metric metric = new Metric(Double.parseDouble(properties.getProperty(name)));
+            metric.stddev = Double.parseDouble(properties.getProperty(name + ".stddev", "0"));
+            metric.n = Integer.parseInt(properties.getProperty(name + ".n", "1"));
+            metrics.put(name, metric);
+        }
+        return metrics;
+    }
+
+    private void writeBaseline(Map<String, Metric> metrics) throws MojoExecutionException {
+        Properties properties = new Properties();
+        for (Map.Entry<String, Metric> entry : metrics.entrySet()) {
+            Metric metric = entry.getValue();
+            properties.setProperty(entry.getKey(), Double.toString(metric.value));
+            if (metric.n > 1) {
+                properties.setProperty(entry.getKey() + ".stddev", Double.toString(metric.stddev));
+                properties.setProperty(entry.getKey() + ".n", Integer.toString(metric.n));
+            }
+        }
+        try {
+            BuildMetrics.store(baselineFile, properties);
+        }
+        catch (IOException exc) {
+            throw new MojoExecutionException("Cannot write " + baselineFile, exc);
+        }
+        getLog().info("Performance baseline written to " + baselineFile);
+    }
+
+    private static class Metric {
+
+        double value;
+
+        double stddev;
+
+        int n = 1;
+
+        Metric(double value) {
+            this.value = value;
+        }
+    }
+}
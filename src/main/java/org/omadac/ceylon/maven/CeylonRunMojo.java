@@ -19,38 +19,24 @@
  */
 package org.omadac.ceylon.maven;
 
-import java.util.ArrayList;
+import java.io.File;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 
-import org.apache.maven.plugin.AbstractMojo;
 import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugin.MojoFailureException;
 import org.apache.maven.plugins.annotations.Mojo;
 import org.apache.maven.plugins.annotations.Parameter;
 
 import com.redhat.ceylon.common.Constants;
-import com.redhat.ceylon.launcher.Launcher;
 
 /**
  * Runs a Ceylon module using the "ceylon run" command.
  */
 @Mojo(name = "run")
-public class CeylonRunMojo extends AbstractMojo {
-
-    /**
-     * Ceylon home directory.
-     */
-    @Parameter(property = "ceylon.home", defaultValue = "${env.CEYLON_HOME}")
-    private String home;
-
-    /**
-     * If <code>true</code>, disables the default module repositories. Equivalent to the
-     * <code>--no-default-repositories</code> option of "ceylon run".
-     */
-    @Parameter(property = "ceylon.disableDefaultRepos", defaultValue = "false")
-    private boolean disableDefaultRepos = false;
+public class CeylonRunMojo extends AbstractCeylonRunMojo {
 
     /**
      * Ceylon working directory.
@@ -78,13 +64,6 @@ public class CeylonRunMojo extends AbstractMojo {
     @Parameter
     private String run;
 
-    /**
-     * The module repositories containing dependencies. Equivalent to the <code>--rep</code> option
-     * of "ceylon run".
-     */
-    @Parameter(property = "ceylon.repositories")
-    private List<String> repositories;
-
     @Parameter
     private String sysrep;
 
@@ -107,25 +86,93 @@ public class CeylonRunMojo extends AbstractMojo {
     @Parameter(property = "ceylon.failOnError", defaultValue = "true")
     private boolean failOnError = true;
 
+    /**
+     * How "ceylon run" is run: <code>inProcess</code> in the Maven JVM, <code>forked</code> in a
+     * separate JVM, or <code>auto</code> to choose between the two based on the duration and heap
+     * usage of previous runs, recorded in the build directory, and the heap available. The
+     * <code>fork</code> and <code>profile</code> options imply <code>forked</code>.
+     */
+    @Parameter(property = "ceylon.executionMode", defaultValue = "inProcess")
+    private String executionMode;
+
+    /**
+     * Heap in MB available to in-process invocations of the Ceylon tools running at the same time
+     * in the build, e.g. with <code>mvn -T</code>. Invocations which would exceed it wait for
+     * others to finish. Each invocation is assumed to use the heap it used last time, at least
+     * 128 MB. Defaults to 75% of the maximum heap. The first goal using the budget sets it for the
+     * whole build.
+     */
+    @Parameter(property = "ceylon.memoryBudget", defaultValue = "0")
+    private long memoryBudget;
+
+    /**
+     * If <code>true</code>, the output of the program is buffered and passed to the Maven log line by
+     * line, prefixed with the module names. Disabled by default, as it delays partial lines, e.g. prompts.
+     */
+    @Parameter(property = "ceylon.bufferedOutput", defaultValue = "false")
+    private boolean bufferedOutput;
+
     public void execute() throws MojoExecutionException, MojoFailureException {
-        String[] args = buildOptions();
+        CeylonInvocation invocation = buildInvocation();
 
         getLog().debug("Invoking 'ceylon run'");
 
+        List<String> modules = Collections.singletonList(module);
         int sc = 0;
+        ExecutionHistory history = new ExecutionHistory(project.getBuild().getDirectory(), getLog());
+        BuildMetrics.Sample sample;
+        ModuleOutput output = null;
         try {
-            System.setProperty(Constants.PROP_CEYLON_HOME_DIR, home);
-            sc = Launcher.run(args);
+            output = openOutput("run", modules, bufferedOutput);
+            if (fork || profile || history.isForked(executionMode, "run", modules)) {
+                sample = new BuildMetrics.Sample();
+                File recording = new File(project.getBuild().getDirectory(), "run-" + module + ".jfr");
+                ForkedLauncher launcher = createForkedLauncher(recording);
+                launcher.setOutput(output);
+                sc = launcher.run(invocation.toArgs());
+                history.recordForked("run", modules, sample.getMillis(), launcher.getPeakHeap());
+                if (profile) {
+                    JfrSummary.log(recording, getLog());
+                }
+            }
+            else {
+                long estimate = MemoryScheduler.estimate(history.getHeap("run", modules),
+                    Collections.<File> emptyList(), modules);
+                MemoryScheduler scheduler = MemoryScheduler.getInstance(memoryBudget, getLog());
+                scheduler.acquire(estimate, "'ceylon run' of " + modules, getLog());
+                if (output != null) {
+                    OutputBridge.attach(output);
+                }
+                sample = new BuildMetrics.Sample();
+                sample.startHeap();
+                try {
+                    System.setProperty(Constants.PROP_CEYLON_HOME_DIR, home);
+                    sc = invocation.run();
+                }
+                finally {
+                    sample.stopHeap();
+                    OutputBridge.detach();
+                    scheduler.release(estimate);
+                }
+                history.record("run", modules, sample.getMillis(), sample.getHeapIncrease());
+            }
+        }
+        catch (MojoExecutionException e) {
+            throw e;
         }
         catch (Throwable e) {
             throw new MojoExecutionException("The Ceylon runtime returned an unexpected result", e);
         }
+        finally {
+            closeOutput(output);
+            releaseClassLoader();
+        }
         if (sc == 1) {
             getLog().info("-------------------------------------------------------------");
             getLog().error("EXECUTION ERRORS (see above)");
             getLog().info("-------------------------------------------------------------");
             if (failOnError) {
-                throw new MojoFailureException("Compilation Error");
+                throw new MojoFailureException("Execution Error");
             }
         }
         else if (sc != 0) {
@@ -133,69 +180,37 @@ public class CeylonRunMojo extends AbstractMojo {
         }
     }
 
-    private String[] buildOptions() throws MojoExecutionException {
-        List<String> args = new ArrayList<String>();
-        args.add("run");
-
-        if (disableDefaultRepos) {
-            args.add("--no-default-repositories");
-        }
-
-        if (verbose != null) {
-            // arguments are not handled correctly, see
-            // https://github.com/ceylon/ceylon-runtime/issues/18
-            args.add("--verbose");
-        }
-
-        if (offline) {
-            args.add("--offline");
-        }
-
-        if (run != null) {
-            args.add("--run");
-            args.add(run);
-        }
-
-        if (sysrep != null) {
-            args.add("--sysrep");
-            args.add(sysrep);
+    private CeylonInvocation buildInvocation() throws MojoExecutionException {
+        if (module == null || module.isEmpty()) {
+            throw new MojoExecutionException("No module to run. Add <module> element");
         }
 
-        if (workingDirectory != null) {
-            args.add("--cwd");
-            args.add(workingDirectory);
-        }
+        CeylonInvocation invocation = new CeylonInvocation("run");
 
-        if (mavenOverrides != null) {
-            args.add("--maven-overrides");
-            args.add(mavenOverrides);
-        }
+        // arguments of --verbose are not handled correctly, see
+        // https://github.com/ceylon/ceylon-runtime/issues/18
+        invocation.verbose(verbose != null);
 
-        if (repositories != null) {
-            for (String repository : repositories) {
-                args.add("--rep");
-                args.add(repository);
-            }
-        }
+        invocation.offline(offline);
+        invocation.runToplevel(run);
+        invocation.systemRepository(sysrep);
+        invocation.workingDirectory(workingDirectory);
+        invocation.mavenOverrides(mavenOverrides);
+        addRepositories(invocation, repositories, offline);
 
         if (properties != null) {
             for (Entry<String, String> entry : properties.entrySet()) {
-                args.add("-D");
-                args.add(String.format("%s=%s", entry.getKey(), entry.getValue()));
+                invocation.property(entry.getKey(), entry.getValue());
             }
         }
 
-        if (module != null && !module.isEmpty()) {
-            args.add(module);
-        }
-        else {
-            throw new MojoExecutionException("No module to run. Add <module> element");
-        }
+        invocation.modules(Collections.singletonList(module));
 
         getLog().debug("Command line options to ceylon:");
-        getLog().debug(args.toString());
+        getLog().debug(invocation.toString());
 
-        return args.toArray(new String[args.size()]);
+        return invocation;
     }
 
+
 }
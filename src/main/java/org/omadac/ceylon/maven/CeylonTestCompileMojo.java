@@ -20,29 +20,22 @@
 package org.omadac.ceylon.maven;
 
 import java.io.File;
-import java.util.ArrayList;
+import java.io.IOException;
+import java.util.Collections;
 import java.util.List;
 
 import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugin.MojoFailureException;
 import org.apache.maven.plugins.annotations.Mojo;
 import org.apache.maven.plugins.annotations.Parameter;
-
-import com.redhat.ceylon.common.Constants;
-import com.redhat.ceylon.launcher.Launcher;
+import org.apache.maven.plugins.annotations.ResolutionScope;
 
 /**
  * Compiles Ceylon and Java test source code using the "ceylon compile" command.
  */
-@Mojo(name = "testCompile")
+@Mojo(name = "testCompile", requiresDependencyResolution = ResolutionScope.TEST)
 public class CeylonTestCompileMojo extends CeylonCompileMojo {
 
-    /**
-     * The modules to compile (without versions).
-     */
-    @Parameter(property = "ceylon.testModules", required = true)
-    protected List<String> testModules;
-
     /**
      * The directory containing ceylon source code. Equivalent to the <code>--source</code> option
      * of "ceylon compile".
@@ -56,81 +49,73 @@ public class CeylonTestCompileMojo extends CeylonCompileMojo {
             return;
         }
 
-        String[] args = buildOptions();
+        List<String> mainOptions = getSinglePassOptions();
+        detachOutput(testModules);
+        if (mainOptions != null) {
+            detachOutput(modules);
+        }
+
+        CeylonInvocation invocation = buildInvocation(mainOptions != null);
 
         getLog().debug("ceylon.home = " + home);
         getLog().debug("Invoking 'ceylon compile' for test sources");
 
-        int sc = 0;
-        try {
-            System.setProperty(Constants.PROP_CEYLON_HOME_DIR, home);
-            sc = Launcher.run(args);
+        int sc = runTool("testCompile", testModules, invocation);
+        if (mainOptions != null) {
+            recordMainModules(sc, mainOptions);
         }
-        catch (Throwable e) {
-            throw new MojoExecutionException("The compiler returned an unexpected result", e);
+        checkResult(sc);
+    }
+
+    /**
+     * Updates the fingerprints of the main modules compiled in single pass mode, as the compile
+     * goal would have done.
+     */
+    private void recordMainModules(int sc, List<String> mainOptions) throws MojoExecutionException {
+        SourceFingerprints fingerprints = createFingerprints();
+        if (fingerprints == null) {
+            return;
         }
-        if (sc == 1) {
-            getLog().info("-------------------------------------------------------------");
-            getLog().error("COMPILATION ERRORS (see above)");
-            getLog().info("-------------------------------------------------------------");
-            if (failOnError) {
-                throw new MojoFailureException("Compilation Error");
+        try {
+            if (sc == 0) {
+                fingerprints.record(SourceFingerprints.JVM, modules, mainOptions);
+            }
+            else {
+                fingerprints.forget(SourceFingerprints.JVM, modules);
             }
         }
-        else if (sc != 0) {
-            throw new MojoExecutionException("The compiler returned an unexpected result");
+        catch (IOException e) {
+            throw new MojoExecutionException("Cannot compute source fingerprints", e);
         }
+        storeFingerprints(fingerprints);
     }
 
-    private String[] buildOptions() throws MojoExecutionException {
-        List<String> args = new ArrayList<String>();
-        args.add("compile");
-        args.add("--out");
-        args.add(out);
-
-        args.add("--source");
-        args.add(testSource.getPath());
-
-        args.add("--resource");
-        args.add(resource.getPath());
-
-        if (disableDefaultRepos) {
-            args.add("--no-default-repositories");
-        }
-
-        if (verbose) {
-            args.add("--verbose");
-        }
+    @Override
+    protected List<File> getSourceDirectories() {
+        return Collections.singletonList(testSource);
+    }
 
-        if (username != null) {
-            args.add("--user");
-            args.add(username);
-        }
+    private CeylonInvocation buildInvocation(boolean includeMainModules) throws MojoExecutionException {
+        CeylonInvocation invocation = new CeylonInvocation("compile");
+        invocation.out(out);
+        invocation.source(testSource);
 
-        if (password != null) {
-            args.add("--pass");
-            args.add(password);
+        if (includeMainModules) {
+            getLog().info("Compiling main and test modules in a single pass");
+            invocation.source(source);
         }
 
-        if (repositories != null) {
-            for (String rep : repositories) {
-                args.add("--rep");
-                args.add(rep);
-            }
-        }
+        addCompilerOptions(invocation, "maven-test-dependencies");
 
-        if (encoding != null) {
-            args.add("--encoding");
-            args.add(encoding);
+        if (includeMainModules) {
+            invocation.modules(modules);
         }
+        invocation.modules(testModules);
 
-        for (String module : testModules) {
-            args.add(module);
-        }
         getLog().debug("Command line options to ceylon:");
-        getLog().debug(args.toString());
+        getLog().debug(invocation.toString());
 
-        return args.toArray(new String[args.size()]);
+        return invocation;
     }
 
 }
@@ -19,29 +19,27 @@
  */
 package org.omadac.ceylon.maven;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
-import org.apache.maven.plugin.AbstractMojo;
 import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugin.MojoFailureException;
 import org.apache.maven.plugins.annotations.Mojo;
 import org.apache.maven.plugins.annotations.Parameter;
 
 import com.redhat.ceylon.common.Constants;
-import com.redhat.ceylon.launcher.Launcher;
+import com.redhat.ceylon.launcher.LauncherUtil;
 
 /**
  * Tests one or more Ceylon modules using the "ceylon test" command.
  */
 @Mojo(name = "test", requiresProject = true)
-public class CeylonTestMojo extends AbstractMojo {
-
-    /**
-     * Ceylon home directory.
-     */
-    @Parameter(property = "ceylon.home", defaultValue = "${env.CEYLON_HOME}")
-    private String home;
+public class CeylonTestMojo extends AbstractCeylonRunMojo {
 
     /**
      * Build directory.
@@ -49,20 +47,6 @@ public class CeylonTestMojo extends AbstractMojo {
     @Parameter(defaultValue = "${project.build.directory}", readonly = true, required = true)
     private String targetDir;
 
-    /**
-     * The module repositories containing dependencies. Equivalent to the <code>ceylon</code>'s
-     * <code>-rep</code> option.
-     */
-    @Parameter(property = "ceylon.repositories")
-    private List<String> repositories;
-
-    /**
-     * If <code>true</code>, disables the default module repositories and source directory.
-     * Equivalent to the <code>ceylon</code>'s <code>-d</code> option.
-     */
-    @Parameter(property = "ceylon.disableDefaultRepos", defaultValue = "false")
-    private boolean disableDefaultRepos = false;
-
     /**
      * Enables offline mode that will prevent connections to remote repositories. Equivalent to the
      * <code>--offline</code> option of "ceylon run".
@@ -98,23 +82,109 @@ public class CeylonTestMojo extends AbstractMojo {
     @Parameter(property = "ceylon.failOnError", defaultValue = "true")
     private boolean failOnError = true;
 
+    /**
+     * If <code>true</code>, test modules are skipped if neither their archive, nor the archives of
+     * the modules they import, nor the test filter have changed since their tests last passed.
+     * With the cache, each module is tested in a run of its own, so its result is known, which
+     * makes a build testing many modules slower when nothing is cached.
+     */
+    @Parameter(property = "ceylon.testCache", defaultValue = "false")
+    private boolean testCache;
+
+    /**
+     * How "ceylon test" is run: <code>inProcess</code> in the Maven JVM, <code>forked</code> in a
+     * separate JVM, or <code>auto</code> to choose between the two based on the duration and heap
+     * usage of previous runs, recorded in the build directory, and the heap available. The
+     * <code>fork</code> and <code>profile</code> options imply <code>forked</code>.
+     */
+    @Parameter(property = "ceylon.executionMode", defaultValue = "inProcess")
+    private String executionMode;
+
+    /**
+     * Heap in MB available to in-process invocations of the Ceylon tools running at the same time
+     * in the build, e.g. with <code>mvn -T</code>. Invocations which would exceed it wait for
+     * others to finish. Each invocation is assumed to use the heap it used last time, at least
+     * 128 MB. Defaults to 75% of the maximum heap. The first goal using the budget sets it for the
+     * whole build.
+     */
+    @Parameter(property = "ceylon.memoryBudget", defaultValue = "0")
+    private long memoryBudget;
+
+    /**
+     * If <code>true</code>, the output of "ceylon test" is buffered and passed to the Maven log line by
+     * line, prefixed with the module names.
+     */
+    @Parameter(property = "ceylon.bufferedOutput", defaultValue = "true")
+    private boolean bufferedOutput = true;
+
+    /**
+     * Workers to which the test runs are sent instead of running them locally, as
+     * <code>host:port</code> of {@link CompileWorker} processes, or <code>local:n</code> to start
+     * n worker processes on this machine. The archives of the test modules and the modules they
+     * import from local repositories are sent to an idle worker. If no worker can run the tests,
+     * they run locally.
+     */
+    @Parameter(property = "ceylon.workers")
+    private List<String> workers;
+
     public void execute() throws MojoExecutionException, MojoFailureException {
         if (testModules == null || testModules.isEmpty()) {
             getLog().info("No modules to test");
             return;
         }
 
-        String[] args = buildOptions();
-
-        getLog().debug("Invoking ceylon test");
+        TestResultCache cache = null;
+        Map<String, String> keys = new HashMap<String, String>();
+        List<String> modulesToTest = testModules;
+        if (testCache && !profile) {
+            try {
+                String systemRepository = (sysrep != null || home == null) ? sysrep
+                    : new File(home, "repo").getAbsolutePath();
+                cache = new TestResultCache(targetDir, getLocalRepositories(), test,
+                    LauncherUtil.determineSystemVersion(), systemRepository, getLog());
+                modulesToTest = new ArrayList<String>();
+                for (String module : testModules) {
+                    String key = cache.computeKey(module);
+                    if (cache.isPassed(module, key)) {
+                        getLog().info(module + ": cached: passed");
+                    }
+                    else {
+                        keys.put(module, key);
+                        modulesToTest.add(module);
+                    }
+                }
+            }
+            catch (IOException e) {
+                throw new MojoExecutionException("Cannot read test result cache", e);
+            }
+            if (modulesToTest.isEmpty()) {
+                return;
+            }
+        }
 
         int sc = 0;
-        try {
-            System.setProperty(Constants.PROP_CEYLON_HOME_DIR, home);
-            sc = Launcher.run(args);
+        if (cache == null) {
+            sc = runTests(modulesToTest);
         }
-        catch (Throwable e) {
-            throw new MojoExecutionException("The Ceylon runtime returned an unexpected result", e);
+        else {
+            // one run per module, as the exit code does not tell which modules failed
+            try {
+                for (String module : modulesToTest) {
+                    int moduleSc = runTests(Collections.singletonList(module));
+                    cache.record(module, keys.get(module), moduleSc == 0);
+                    if (moduleSc != 0 && sc != 1) {
+                        sc = moduleSc;
+                    }
+                }
+            }
+            finally {
+                try {
+                    cache.store();
+                }
+                catch (IOException e) {
+                    getLog().warn("Cannot store test result cache", e);
+                }
+            }
         }
         if (sc == 1) {
             getLog().info("-------------------------------------------------------------");
@@ -129,53 +199,148 @@ public class CeylonTestMojo extends AbstractMojo {
         }
     }
 
-    private String[] buildOptions() throws MojoExecutionException {
-        List<String> args = new ArrayList<String>();
-        args.add("test");
+    /**
+     * Runs the tests of the given modules, returning the exit code of "ceylon test".
+     */
+    private int runTests(List<String> modules) throws MojoExecutionException {
+        CeylonInvocation invocation = buildInvocation(modules);
 
-        if (disableDefaultRepos) {
-            args.add("--no-default-repositories");
-        }
+        getLog().debug("Invoking ceylon test");
 
-        if (verbose) {
-            // arguments are not handled correctly, see
-            // https://github.com/ceylon/ceylon-runtime/issues/18
-            args.add("--verbose");
+        int sc = 0;
+        ExecutionHistory history = new ExecutionHistory(targetDir, getLog());
+        BuildMetrics.Sample sample;
+        ModuleOutput output = null;
+        try {
+            output = openOutput("test", modules, bufferedOutput);
+            sample = new BuildMetrics.Sample();
+            Integer remote = profile ? null : runRemote(invocation, output);
+            if (remote != null) {
+                sc = remote;
+            }
+            else if (fork || profile || history.isForked(executionMode, "test", modules)) {
+                sample = new BuildMetrics.Sample();
+                File recording = new File(targetDir, "test-" + modules.get(0) + ".jfr");
+                ForkedLauncher launcher = createForkedLauncher(recording);
+                launcher.setOutput(output);
+                sc = launcher.run(invocation.toArgs());
+                history.recordForked("test", modules, sample.getMillis(), launcher.getPeakHeap());
+                if (profile) {
+                    JfrSummary.log(recording, getLog());
+                }
+            }
+            else {
+                long estimate = MemoryScheduler.estimate(history.getHeap("test", modules),
+                    Collections.<File> emptyList(), modules);
+                MemoryScheduler scheduler = MemoryScheduler.getInstance(memoryBudget, getLog());
+                scheduler.acquire(estimate, "'ceylon test' of " + modules, getLog());
+                if (output != null) {
+                    OutputBridge.attach(output);
+                }
+                sample = new BuildMetrics.Sample();
+                sample.startHeap();
+                try {
+                    System.setProperty(Constants.PROP_CEYLON_HOME_DIR, home);
+                    sc = invocation.run();
+                }
+                finally {
+                    sample.stopHeap();
+                    OutputBridge.detach();
+                    scheduler.release(estimate);
+                }
+                history.record("test", modules, sample.getMillis(), sample.getHeapIncrease());
+            }
+            recordMetrics("test", modules, sample);
         }
-
-        if (offline) {
-            args.add("--offline");
+        catch (MojoExecutionException e) {
+            throw e;
         }
+        catch (Throwable e) {
+            throw new MojoExecutionException("The Ceylon runtime returned an unexpected result", e);
+        }
+        finally {
+            closeOutput(output);
+            releaseClassLoader();
+        }
+        return sc;
+    }
+
+    private CeylonInvocation buildInvocation(List<String> modules) throws MojoExecutionException {
+        CeylonInvocation invocation = new CeylonInvocation("test");
+
+        // arguments of --verbose are not handled correctly, see
+        // https://github.com/ceylon/ceylon-runtime/issues/18
+        invocation.verbose(verbose);
 
-        if (sysrep != null) {
-            args.add("--sysrep");
-            args.add(sysrep);
+        invocation.offline(offline);
+        invocation.systemRepository(sysrep);
+
+        List<String> reps = repositories;
+        if (reps == null || reps.isEmpty()) {
+            reps = Collections.singletonList(targetDir);
         }
+        addRepositories(invocation, reps, offline);
+
+        invocation.tests(test);
+        invocation.modules(modules);
+
+        getLog().debug("Command line options to ceylon:");
+        getLog().debug(invocation.toString());
 
-        if (repositories.isEmpty()) {
-            args.add("--rep");
-            args.add(targetDir);
+        return invocation;
+    }
+
+
+    /**
+     * Returns the module repositories which are local directories.
+     */
+    private List<File> getLocalRepositories() {
+        List<String> reps = new ArrayList<String>();
+        if (repositories == null || repositories.isEmpty()) {
+            reps.add(targetDir);
         }
         else {
-            for (String repository : repositories) {
-                args.add("--rep");
-                args.add(repository);
+            reps.addAll(repositories);
+        }
+        if (reactorRepositories) {
+            reps.addAll(ReactorRepositories.getRepositories(session, project));
+        }
+        List<File> result = new ArrayList<File>();
+        for (String rep : reps) {
+            File dir = new File(rep);
+            if (dir.isDirectory()) {
+                result.add(dir);
             }
         }
+        return result;
+    }
 
-        if (test != null) {
-            args.add("--test");
-            args.add(test);
+    private void recordMetrics(String goal, List<String> moduleNames, BuildMetrics.Sample sample) {
+        try {
+            BuildMetrics.record(targetDir, goal, moduleNames, sample, session.getStartTime());
         }
-
-        for (String module : testModules) {
-            args.add(module);
+        catch (IOException e) {
+            getLog().warn("Cannot record build metrics", e);
         }
+    }
 
-        getLog().debug("Command line options to ceylon:");
-        getLog().debug(args.toString());
-
-        return args.toArray(new String[args.size()]);
+    private Integer runRemote(CeylonInvocation invocation, ModuleOutput output) throws MojoExecutionException,
+        InterruptedException {
+        if (workers == null || workers.isEmpty()) {
+            return null;
+        }
+        try {
+            WorkerPool pool = WorkerPool.getInstance(workers, workerToken, home, getLog());
+            Integer sc = pool.run(new RemoteTask(invocation, "UTF-8"), output, getLog());
+            if (sc == null) {
+                getLog().warn("No worker available, running 'ceylon test' locally");
+            }
+            return sc;
+        }
+        catch (IOException e) {
+            getLog().warn("Cannot use workers, running 'ceylon test' locally", e);
+            return null;
+        }
     }
 
 }
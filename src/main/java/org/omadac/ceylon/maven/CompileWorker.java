@@ -0,0 +1,450 @@
+/*
+ * Copyright Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the authors tag. All rights reserved.
+ *
+ * This copyrighted material is made available to anyone wishing to use,
+ * modify, copy, or redistribute it subject to the terms and conditions
+ * of the GNU General Public License version 2.
+ * 
+ * This particular file is subject to the "Classpath" exception as provided in the 
+ * LICENSE file that accompanied this code.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT A
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License,
+ * along with this distribution; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ */
+package org.omadac.ceylon.maven;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.regex.Pattern;
+
+import com.redhat.ceylon.launcher.Launcher;
+
+/**
+ * Worker process running Ceylon tool invocations sent by the {@link WorkerPool} of a build, see
+ * {@link WorkerProtocol}. Input files are kept in a content store in the work directory, so only
+ * files the worker has not seen before are transferred. Tasks run one at a time in the worker
+ * JVM, using the same {@link Launcher} as in-process invocations, and their output is streamed
+ * to the client while they run. Started with
+ * 
+ * <pre>
+ * java -Dceylon.home=... -cp ceylon-maven-plugin.jar org.omadac.ceylon.maven.CompileWorker [--port n] [--dir dir]
+ *     [--bind address] [--token-file file]
+ * </pre>
+ * 
+ * The worker listens on the loopback interface unless another bind address is given. Clients must
+ * present a shared token, read from the token file or the {@value WorkerProtocol#TOKEN_ENV}
+ * environment variable; the worker does not start without one. It only runs the tools
+ * <code>compile</code>, <code>compile-js</code>, <code>test</code> and <code>doc</code>, and
+ * rejects options referring to files outside the task directory, answering such tasks with
+ * {@link WorkerProtocol#WORKER_ERROR} so that the client runs them locally. The connection is not
+ * encrypted, so workers should only be reachable from trusted networks. Runs without the Maven
+ * classes.
+ */
+public class CompileWorker {
+
+    /**
+     * Line printed to the standard output once the worker accepts connections, followed by the
+     * port.
+     */
+    public static final String READY = "Ceylon worker listening on port ";
+
+    private static final Object TASK_LOCK = new Object();
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final Pattern HASH = Pattern.compile("[0-9a-f]{40}");
+
+    private static final Pattern URL = Pattern.compile("[a-zA-Z][a-zA-Z0-9+.-]*://.*");
+
+    private static final Pattern PATH_SEPARATORS = Pattern.compile("[=:]");
+
+    private static final Set<String> TOOLS = new HashSet<String>(Arrays.asList("compile", "compile-js", "test",
+        "doc"));
+
+    private final File blobs;
+
+    private final File tasks;
+
+    private final byte[] token;
+
+    public CompileWorker(File dir, String token) {
+        this.blobs = new File(dir, "blobs");
+        this.tasks = new File(dir, "tasks");
+        this.token = token.getBytes(UTF8);
+        blobs.mkdirs();
+        tasks.mkdirs();
+    }
+
+    public static void main(String[] args) throws IOException {
+        int port = 0;
+        File dir = null;
+        InetAddress bindAddress = InetAddress.getLoopbackAddress();
+        String token = System.getenv(WorkerProtocol.TOKEN_ENV);
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            if ("--port".equals(args[i])) {
+                port = Integer.parseInt(args[i + 1]);
+            }
+            else if ("--dir".equals(args[i])) {
+                dir = new File(args[i + 1]);
+            }
+            else if ("--bind".equals(args[i])) {
+                bindAddress = InetAddress.getByName(args[i + 1]);
+            }
+            else if ("--token-file".equals(args[i])) {
+                token = new String(Files.readAllBytes(new File(args[i + 1]).toPath()), UTF8).trim();
+            }
+        }
+        if (token == null || token.isEmpty()) {
+            System.err.println("A token is required, set " + WorkerProtocol.TOKEN_ENV + " or use --token-file");
+            System.exit(1);
+        }
+        if (dir == null) {
+            dir = Files.createTempDirectory("ceylon-worker").toFile();
+        }
+        final CompileWorker worker = new CompileWorker(dir, token);
+        ServerSocket server = new ServerSocket(port, 50, bindAddress);
+        System.out.println(READY + server.getLocalPort());
+        System.out.flush();
+        while (true) {
+            final Socket socket = server.accept();
+            Thread handler = new Thread("ceylon-worker-" + socket.getPort()) {
+
+                @Override
+                public void run() {
+                    try {
+                        worker.handle(socket);
+                    }
+                    catch (Exception e) {
+                        System.err.println("Task from " + socket.getInetAddress() + " failed: " + e);
+                    }
+                    finally {
+                        try {
+                            socket.close();
+                        }
+                        catch (IOException e) {
+                            // already closed
+                        }
+                    }
+                }
+            };
+            handler.setDaemon(true);
+            handler.start();
+        }
+    }
+
+    void handle(Socket socket) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        int version = in.readInt();
+        if (version != WorkerProtocol.VERSION) {
+            throw new IOException("Unsupported protocol version " + version);
+        }
+        if (!MessageDigest.isEqual(token, in.readUTF().getBytes(UTF8))) {
+            throw new IOException("Invalid token");
+        }
+        String tool = in.readUTF();
+        List<String> options = WorkerProtocol.readStrings(in);
+        List<String> modules = WorkerProtocol.readStrings(in);
+        Map<String, String> manifest = new LinkedHashMap<String, String>();
+        int files = in.readInt();
+        for (int i = 0; i < files; i++) {
+            String path = in.readUTF();
+            String hash = in.readUTF();
+            if (!isValidPath(path) || !HASH.matcher(hash).matches()) {
+                throw new IOException("Invalid manifest entry " + path + " " + hash);
+            }
+            manifest.put(path, hash);
+        }
+
+        String rejection = checkInvocation(tool, options);
+        if (rejection != null) {
+            WorkerProtocol.writeStrings(out, Collections.<String> emptyList());
+            out.writeByte(WorkerProtocol.STDERR);
+            WorkerProtocol.writeText(out, rejection + "\n");
+            out.writeByte(WorkerProtocol.RESULT);
+            out.writeInt(WorkerProtocol.WORKER_ERROR);
+            out.writeInt(0);
+            out.flush();
+            return;
+        }
+
+        List<String> missing = new ArrayList<String>(new LinkedHashSet<String>(manifest.values()));
+        for (int i = missing.size() - 1; i >= 0; i--) {
+            if (getBlob(missing.get(i)).isFile()) {
+                missing.remove(i);
+            }
+        }
+        WorkerProtocol.writeStrings(out, missing);
+        out.flush();
+        for (String hash : missing) {
+            File temp = File.createTempFile("blob", ".tmp", blobs);
+            WorkerProtocol.readFile(in, temp);
+            if (!hash.equals(WorkerProtocol.sha1(temp))) {
+                temp.delete();
+                throw new IOException("Corrupt transfer of " + hash);
+            }
+            Files.move(temp.toPath(), getBlob(hash).toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        synchronized (TASK_LOCK) {
+            File taskDir = Files.createTempDirectory(tasks.toPath(), "task").toFile();
+            try {
+                run(taskDir, tool, options, modules, manifest, out);
+            }
+            finally {
+                delete(taskDir);
+            }
+        }
+        out.flush();
+    }
+
+    private void run(File taskDir, String tool, List<String> options, List<String> modules,
+        Map<String, String> manifest, DataOutputStream out) throws IOException {
+        Set<String> roots = new LinkedHashSet<String>();
+        roots.add(WorkerProtocol.OUT);
+        roots.add(WorkerProtocol.DEPS);
+        for (Map.Entry<String, String> entry : manifest.entrySet()) {
+            File file = new File(taskDir, entry.getKey());
+            file.getParentFile().mkdirs();
+            Files.copy(getBlob(entry.getValue()).toPath(), file.toPath());
+            roots.add(entry.getKey().substring(0, entry.getKey().indexOf('/')));
+        }
+        for (String root : roots) {
+            new File(taskDir, root).mkdirs();
+        }
+
+        List<String> args = new ArrayList<String>();
+        args.add(tool);
+        for (String option : options) {
+            args.add(resolve(option, taskDir, roots));
+        }
+        args.addAll(modules);
+
+        FrameOutputStream stdout = new FrameOutputStream(out, WorkerProtocol.STDOUT, taskDir, roots);
+        FrameOutputStream stderr = new FrameOutputStream(out, WorkerProtocol.STDERR, taskDir, roots);
+        PrintStream originalOut = System.out;
+        PrintStream originalErr = System.err;
+        int exit;
+        System.setOut(new PrintStream(stdout, true, "UTF-8"));
+        System.setErr(new PrintStream(stderr, true, "UTF-8"));
+        try {
+            exit = Launcher.runTool(null, null, args.toArray(new String[args.size()]));
+        }
+        catch (Throwable e) {
+            if (stdout.isClosed() || stderr.isClosed()) {
+                // cancelled by the client
+                return;
+            }
+            StringWriter trace = new StringWriter();
+            e.printStackTrace(new PrintWriter(trace));
+            stderr.write(trace.toString().getBytes("UTF-8"));
+            exit = WorkerProtocol.WORKER_ERROR;
+        }
+        finally {
+            System.setOut(originalOut);
+            System.setErr(originalErr);
+        }
+        try {
+            stdout.flushLine();
+            stderr.flushLine();
+        }
+        catch (CancellationException e) {
+            return;
+        }
+
+        out.writeByte(WorkerProtocol.RESULT);
+        out.writeInt(exit);
+        List<File> produced = new ArrayList<File>();
+        File outDir = new File(taskDir, WorkerProtocol.OUT);
+        listFiles(outDir, produced);
+        out.writeInt(produced.size());
+        for (File file : produced) {
+            out.writeUTF(file.getPath().substring(outDir.getPath().length() + 1).replace(File.separatorChar, '/'));
+            WorkerProtocol.writeFile(out, file);
+        }
+    }
+
+    /**
+     * Returns why the worker does not run the given invocation, or <code>null</code> if it does.
+     * Paths in options must be relative to a root placeholder; absolute paths, <code>..</code>
+     * and <code>file:</code> URLs are rejected, also within values like <code>name=value</code>
+     * or <code>aether:path</code>. URLs of remote repositories are accepted.
+     */
+    static String checkInvocation(String tool, List<String> options) {
+        if (!TOOLS.contains(tool)) {
+            return "The worker does not run 'ceylon " + tool + "'";
+        }
+        for (String option : options) {
+            if (URL.matcher(option).matches() && !option.regionMatches(true, 0, "file:", 0, 5)) {
+                continue;
+            }
+            for (String part : PATH_SEPARATORS.split(option, -1)) {
+                String path = part.replace('\\', '/');
+                if (path.startsWith("/") || path.startsWith("~") || new File(part).isAbsolute()
+                    || ("/" + path + "/").contains("/../")) {
+                    return "The option " + option + " refers to files outside the task directory";
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Checks that a manifest path stays within the task directory: it must be relative, must not
+     * contain <code>..</code>, and must start with a root directory.
+     */
+    private static boolean isValidPath(String path) {
+        return path.indexOf('/') > 0 && !path.startsWith("/") && !path.contains("..") && !path.contains("\\")
+            && !path.contains(":") && !new File(path).isAbsolute();
+    }
+
+    private File getBlob(String hash) {
+        return new File(blobs, hash);
+    }
+
+    private static String resolve(String option, File taskDir, Set<String> roots) {
+        for (String root : roots) {
+            String placeholder = WorkerProtocol.placeholder(root);
+            if (option.equals(placeholder) || option.startsWith(placeholder + "/")) {
+                return new File(taskDir, root).getPath() + option.substring(placeholder.length());
+            }
+        }
+        return option;
+    }
+
+    private static String relativize(String text, File taskDir, Set<String> roots) {
+        for (String root : roots) {
+            text = WorkerProtocol.replace(text, new File(taskDir, root).getPath(), WorkerProtocol.placeholder(root));
+        }
+        return text;
+    }
+
+    private static void listFiles(File dir, List<File> files) {
+        File[] children = dir.listFiles();
+        if (children == null) {
+            return;
+        }
+        for (File child : children) {
+            if (child.isDirectory()) {
+                listFiles(child, files);
+            }
+            else {
+                files.add(child);
+            }
+        }
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    /**
+     * Sends the output of a tool to the client line by line, see {@link WorkerProtocol}. Once the
+     * connection is closed, which is how the client cancels a task, writes throw a
+     * {@link CancellationException} to stop the tool.
+     */
+    private static class FrameOutputStream extends OutputStream {
+
+        private final DataOutputStream out;
+
+        private final int type;
+
+        private final File taskDir;
+
+        private final Set<String> roots;
+
+        private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+
+        private volatile boolean closed;
+
+        FrameOutputStream(DataOutputStream out, int type, File taskDir, Set<String> roots) {
+            this.out = out;
+            this.type = type;
+            this.taskDir = taskDir;
+            this.roots = roots;
+        }
+
+        boolean isClosed() {
+            return closed;
+        }
+
+        @Override
+        public synchronized void write(int b) {
+            line.write(b);
+            if (b == '\n') {
+                flushLine();
+            }
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) {
+            for (int i = off; i < off + len; i++) {
+                write(b[i]);
+            }
+        }
+
+        /**
+         * Sends the buffered bytes as a line.
+         */
+        synchronized void flushLine() {
+            if (closed) {
+                throw new CancellationException("Task cancelled by the client");
+            }
+            if (line.size() == 0) {
+                return;
+            }
+            try {
+                String text = relativize(line.toString("UTF-8"), taskDir, roots);
+                line.reset();
+                // stdout and stderr frames share the connection
+                synchronized (out) {
+                    out.writeByte(type);
+                    WorkerProtocol.writeText(out, text);
+                    out.flush();
+                }
+            }
+            catch (IOException e) {
+                closed = true;
+                throw new CancellationException("Task cancelled by the client");
+            }
+        }
+    }
+}
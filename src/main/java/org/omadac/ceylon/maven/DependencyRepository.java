@@ -0,0 +1,159 @@
+/*
+ * Copyright Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the authors tag. All rights reserved.
+ *
+ * This copyrighted material is made available to anyone wishing to use,
+ * modify, copy, or redistribute it subject to the terms and conditions
+ * of the GNU General Public License version 2.
+ * 
+ * This particular file is subject to the "Classpath" exception as provided in the 
+ * LICENSE file that accompanied this code.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT A
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License,
+ * along with this distribution; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ */
+package org.omadac.ceylon.maven;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.apache.maven.artifact.Artifact;
+import org.apache.maven.plugin.logging.Log;
+import org.codehaus.plexus.util.FileUtils;
+
+/**
+ * Ceylon module repository projecting the resolved Maven dependencies of a project. Each JAR
+ * dependency <code>group:artifact:version</code> becomes a module <code>group.artifact</code>
+ * with the same version. The JAR is linked into the repository (see {@link FileLinker}) and a
+ * <code>module.properties</code> descriptor lists the dependencies of the artifact, as resolved
+ * by Maven.
+ * <p>
+ * The repository is updated incrementally: unchanged links and descriptors are left alone, and
+ * modules no longer among the dependencies are removed.
+ */
+public class DependencyRepository {
+
+    private static final String INDEX_FILE = ".modules";
+
+    private final File repository;
+
+    private final Log log;
+
+    public DependencyRepository(File repository, Log log) {
+        this.repository = repository;
+        this.log = log;
+    }
+
+    public File getRepository() {
+        return repository;
+    }
+
+    /**
+     * Returns the Ceylon module name for the given Maven artifact.
+     */
+    public static String getModuleName(Artifact artifact) {
+        String name = artifact.getGroupId() + "." + artifact.getArtifactId();
+        return name.replaceAll("[^\\w.]", "_");
+    }
+
+    /**
+     * Updates the repository to contain exactly the given artifacts.
+     */
+    public void update(Collection<Artifact> artifacts) throws IOException {
+        Map<String, Artifact> modules = new HashMap<String, Artifact>();
+        for (Artifact artifact : artifacts) {
+            if (isJar(artifact)) {
+                modules.put(artifact.getId(), artifact);
+            }
+        }
+
+        // Maven only tells us how each artifact was reached, so rebuild the dependencies
+        // of each artifact from the dependency trails
+        Map<String, Map<String, String>> dependencies = new HashMap<String, Map<String, String>>();
+        for (Artifact artifact : modules.values()) {
+            dependencies.put(artifact.getId(), new TreeMap<String, String>());
+        }
+        for (Artifact artifact : modules.values()) {
+            List<String> trail = artifact.getDependencyTrail();
+            if (trail == null || trail.size() < 3) {
+                continue;
+            }
+            Map<String, String> parentDependencies = dependencies.get(trail.get(trail.size() - 2));
+            if (parentDependencies != null) {
+                parentDependencies.put(getModuleName(artifact), artifact.getBaseVersion());
+            }
+        }
+
+        Set<String> current = new TreeSet<String>();
+        int linked = 0;
+        for (Artifact artifact : modules.values()) {
+            File versionDir = getVersionDir(artifact);
+            String baseName = getModuleName(artifact) + "-" + artifact.getBaseVersion();
+            current.add(repository.toURI().relativize(versionDir.toURI()).getPath());
+
+            if (FileLinker.link(artifact.getFile(), new File(versionDir, baseName + ".jar")) != FileLinker.LinkType.UNCHANGED) {
+                linked++;
+            }
+            writeIfChanged(new File(versionDir, "module.properties"),
+                buildDescriptor(dependencies.get(artifact.getId())));
+        }
+        removeStaleModules(current);
+        log.debug("Dependency repository " + repository + ": " + modules.size() + " modules, "
+            + linked + " updated");
+    }
+
+    private static boolean isJar(Artifact artifact) {
+        return artifact.getFile() != null && artifact.getFile().isFile()
+            && artifact.getFile().getName().endsWith(".jar");
+    }
+
+    private File getVersionDir(Artifact artifact) {
+        String module = getModuleName(artifact);
+        File moduleDir = new File(repository, module.replace('.', File.separatorChar));
+        return new File(moduleDir, artifact.getBaseVersion());
+    }
+
+    private static String buildDescriptor(Map<String, String> dependencies) {
+        StringBuilder descriptor = new StringBuilder();
+        for (Map.Entry<String, String> entry : dependencies.entrySet()) {
+            descriptor.append(entry.getKey()).append('=').append(entry.getValue()).append('\n');
+        }
+        return descriptor.toString();
+    }
+
+    private static void writeIfChanged(File file, String content) throws IOException {
+        if (file.isFile() && content.equals(FileUtils.fileRead(file, "UTF-8"))) {
+            return;
+        }
+        FileUtils.fileWrite(file.getAbsolutePath(), "UTF-8", content);
+    }
+
+    private void removeStaleModules(Set<String> current) throws IOException {
+        File index = new File(repository, INDEX_FILE);
+        if (index.isFile()) {
+            for (String versionDir : FileUtils.fileRead(index, "UTF-8").split("\n")) {
+                if (!versionDir.isEmpty() && !current.contains(versionDir)) {
+                    log.debug("Removing stale module " + versionDir);
+                    FileUtils.deleteDirectory(new File(repository, versionDir));
+                }
+            }
+        }
+        StringBuilder content = new StringBuilder();
+        for (String versionDir : current) {
+            content.append(versionDir).append('\n');
+        }
+        FileUtils.fileWrite(index.getAbsolutePath(), "UTF-8", content.toString());
+    }
+}
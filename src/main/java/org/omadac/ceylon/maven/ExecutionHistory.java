@@ -0,0 +1,184 @@
+/*
+ * Copyright Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the authors tag. All rights reserved.
+ *
+ * This copyrighted material is made available to anyone wishing to use,
+ * modify, copy, or redistribute it subject to the terms and conditions
+ * of the GNU General Public License version 2.
+ * 
+ * This particular file is subject to the "Classpath" exception as provided in the 
+ * LICENSE file that accompanied this code.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT A
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License,
+ * along with this distribution; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ */
+package org.omadac.ceylon.maven;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.List;
+import java.util.Properties;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.logging.Log;
+
+/**
+ * Durations and heap usages of past Ceylon tool invocations per goal and module, stored as
+ * properties in the build directory, and the choice between in-process and forked execution
+ * based on them.
+ * <p>
+ * In <code>auto</code> mode, an invocation runs forked if the heap it used last time exceeds 75%
+ * of the heap currently available to Maven, or if it took longer than a minute and used more
+ * than half of the available heap. Otherwise, and if there is no history yet, it runs
+ * in-process, avoiding the startup cost of a JVM.
+ * <p>
+ * In-process invocations record the increase of the Maven heap, forked invocations the peak heap
+ * of the forked JVM, which includes the heap of the tool itself. Both are stored under separate
+ * keys, and the peak of a forked run is only used as a conservative estimate until the goal has
+ * run in-process.
+ */
+public class ExecutionHistory {
+
+    public static final String FILE_NAME = "ceylon-execution-history.properties";
+
+    public static final String IN_PROCESS = "inProcess";
+
+    public static final String FORKED = "forked";
+
+    public static final String AUTO = "auto";
+
+    private static final long LONG_RUNNING_MILLIS = 60000;
+
+    private final File file;
+
+    private final Log log;
+
+    public ExecutionHistory(String buildDir, Log log) {
+        this.file = new File(buildDir, FILE_NAME);
+        this.log = log;
+    }
+
+    /**
+     * Returns <code>true</code> if the given goal should run forked for the given modules in the
+     * given execution mode.
+     */
+    public boolean isForked(String mode, String goal, List<String> modules) throws MojoExecutionException {
+        if (mode == null || IN_PROCESS.equals(mode)) {
+            return false;
+        }
+        if (FORKED.equals(mode)) {
+            return true;
+        }
+        if (!AUTO.equals(mode)) {
+            throw new MojoExecutionException("Unknown execution mode " + mode + ", expected " + IN_PROCESS
+                + ", " + FORKED + " or " + AUTO);
+        }
+
+        long millis = getMax(goal, modules, "millis");
+        long heap = getHeap(goal, modules);
+        if (heap < 0) {
+            log.debug("No execution history for " + goal + " of " + modules + ", running in-process");
+            return false;
+        }
+
+        long available = getAvailableHeap();
+        boolean forked = heap > available / 4 * 3 || (millis > LONG_RUNNING_MILLIS && heap > available / 2);
+        String message = String.format("Running %s of %s %s: %d ms and %d MB heap last time, %d MB heap available",
+            goal, modules, forked ? "forked" : "in-process", millis, heap >> 20, available >> 20);
+        if (forked) {
+            log.info(message);
+        }
+        else {
+            log.debug(message);
+        }
+        return forked;
+    }
+
+    /**
+     * Returns the heap not in use by live objects: the maximum heap less the usage after the last
+     * garbage collection, or less the current usage, including garbage, if the memory pools do
+     * not report it.
+     */
+    private static long getAvailableHeap() {
+        long used = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() != MemoryType.HEAP) {
+                continue;
+            }
+            MemoryUsage usage = pool.getCollectionUsage();
+            if (usage == null) {
+                usage = pool.getUsage();
+            }
+            used += usage.getUsed();
+        }
+        return Runtime.getRuntime().maxMemory() - used;
+    }
+
+    /**
+     * Returns the largest heap increase recorded for in-process runs of the given goal and
+     * modules, the largest peak heap of forked runs if there is none, or -1 if there is neither.
+     */
+    public long getHeap(String goal, List<String> modules) {
+        long heap = getMax(goal, modules, "heap.bytes");
+        return heap >= 0 ? heap : getMax(goal, modules, "forkedHeap.bytes");
+    }
+
+    private long getMax(String goal, List<String> modules, String unit) {
+        Properties history;
+        try {
+            history = BuildMetrics.load(file);
+        }
+        catch (IOException e) {
+            log.warn("Cannot read execution history", e);
+            return -1;
+        }
+        long max = -1;
+        for (String module : modules) {
+            max = Math.max(max, Long.parseLong(history.getProperty(goal + "." + module + "." + unit, "-1")));
+        }
+        return max;
+    }
+
+    /**
+     * Records the duration and heap increase of an in-process invocation for each of the given
+     * modules. A negative heap increase is not recorded.
+     */
+    public void record(String goal, List<String> modules, long millis, long heap) {
+        record(goal, modules, millis, "heap.bytes", heap);
+    }
+
+    /**
+     * Records the duration and peak heap of a forked invocation for each of the given modules. A
+     * negative peak heap is not recorded.
+     */
+    public void recordForked(String goal, List<String> modules, long millis, long peakHeap) {
+        record(goal, modules, millis, "forkedHeap.bytes", peakHeap);
+    }
+
+    private void record(String goal, List<String> modules, long millis, String heapUnit, long heap) {
+        synchronized (BuildMetrics.class) {
+            try {
+                Properties history = BuildMetrics.load(file);
+                for (String module : modules) {
+                    history.setProperty(goal + "." + module + ".millis", Long.toString(millis));
+                    if (heap >= 0) {
+                        history.setProperty(goal + "." + module + "." + heapUnit, Long.toString(heap));
+                    }
+                }
+                BuildMetrics.store(file, history);
+            }
+            catch (IOException e) {
+                log.warn("Cannot record execution history", e);
+            }
+        }
+    }
+}
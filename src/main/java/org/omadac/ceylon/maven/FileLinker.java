@@ -0,0 +1,118 @@
+/*
+ * Copyright Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the authors tag. All rights reserved.
+ *
+ * This copyrighted material is made available to anyone wishing to use,
+ * modify, copy, or redistribute it subject to the terms and conditions
+ * of the GNU General Public License version 2.
+ * 
+ * This particular file is subject to the "Classpath" exception as provided in the 
+ * LICENSE file that accompanied this code.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT A
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License,
+ * along with this distribution; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ */
+package org.omadac.ceylon.maven;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Makes files available at another location without copying them where possible. A hard link
+ * is tried first, then a symbolic link, and the file is only copied if the file system supports
+ * neither.
+ */
+public class FileLinker {
+
+    public enum LinkType {
+        UNCHANGED, HARD_LINK, SYMBOLIC_LINK, COPY
+    }
+
+    private FileLinker() {
+    }
+
+    /**
+     * Links the target file to the source file, replacing any existing target which does not
+     * refer to the source file already.
+     * 
+     * @return the kind of link created, or {@link LinkType#UNCHANGED} if the target already
+     *         referred to the source
+     */
+    public static LinkType link(File source, File target) throws IOException {
+        Path sourcePath = source.toPath().toAbsolutePath();
+        Path targetPath = target.toPath();
+        if (isSameFile(sourcePath, targetPath) || isSameCopy(sourcePath, targetPath)) {
+            return LinkType.UNCHANGED;
+        }
+        Files.createDirectories(targetPath.toAbsolutePath().getParent());
+        Files.deleteIfExists(targetPath);
+        try {
+            Files.createLink(targetPath, sourcePath);
+            return LinkType.HARD_LINK;
+        }
+        catch (IOException | UnsupportedOperationException | SecurityException e) {
+            // different file stores, or no hard links on this file system
+        }
+        try {
+            Files.createSymbolicLink(targetPath, sourcePath);
+            return LinkType.SYMBOLIC_LINK;
+        }
+        catch (IOException | UnsupportedOperationException | SecurityException e) {
+            // no symbolic links on this file system, or no privilege to create them
+        }
+        Files.copy(sourcePath, targetPath, StandardCopyOption.COPY_ATTRIBUTES);
+        return LinkType.COPY;
+    }
+
+    /**
+     * Breaks any hard links to the given file by replacing it with a private copy, so that it can
+     * be rewritten in place without modifying the other links. Does nothing if the file has no
+     * other links, or if the file system cannot tell.
+     */
+    public static void detach(File file) throws IOException {
+        Path path = file.toPath();
+        if (!Files.isRegularFile(path, LinkOption.NOFOLLOW_LINKS)) {
+            return;
+        }
+        Object links;
+        try {
+            links = Files.getAttribute(path, "unix:nlink");
+        }
+        catch (UnsupportedOperationException | IllegalArgumentException e) {
+            return;
+        }
+        if (links instanceof Integer && (Integer) links > 1) {
+            Path copy = Files.createTempFile(path.getParent(), file.getName(), ".tmp");
+            Files.copy(path, copy, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.COPY_ATTRIBUTES);
+            Files.move(copy, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+
+    /**
+     * Checks if both paths exist and refer to the same file, following symbolic links.
+     */
+    public static boolean isSameFile(Path source, Path target) throws IOException {
+        if (!Files.exists(target, LinkOption.NOFOLLOW_LINKS)) {
+            return false;
+        }
+        if (!Files.exists(target) || !Files.exists(source)) {
+            return false;
+        }
+        return Files.isSameFile(source, target);
+    }
+
+    private static boolean isSameCopy(Path source, Path target) throws IOException {
+        return Files.isRegularFile(target, LinkOption.NOFOLLOW_LINKS)
+            && Files.size(source) == Files.size(target)
+            && Files.getLastModifiedTime(source).equals(Files.getLastModifiedTime(target));
+    }
+}
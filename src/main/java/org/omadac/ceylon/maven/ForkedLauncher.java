@@ -0,0 +1,226 @@
+/*
+ * Copyright Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the authors tag. All rights reserved.
+ *
+ * This copyrighted material is made available to anyone wishing to use,
+ * modify, copy, or redistribute it subject to the terms and conditions
+ * of the GNU General Public License version 2.
+ * 
+ * This particular file is subject to the "Classpath" exception as provided in the 
+ * LICENSE file that accompanied this code.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT A
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License,
+ * along with this distribution; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ */
+package org.omadac.ceylon.maven;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.maven.plugin.logging.Log;
+import org.codehaus.plexus.util.FileUtils;
+import org.codehaus.plexus.util.IOUtil;
+
+import com.redhat.ceylon.common.Constants;
+import com.redhat.ceylon.launcher.Launcher;
+import com.redhat.ceylon.launcher.LauncherUtil;
+
+/**
+ * Runs the Ceylon {@link Launcher} in a separate JVM. The forked JVM uses the plugin JAR as
+ * class path, so the same launcher code is used in-process and forked.
+ */
+public class ForkedLauncher {
+
+    private final String home;
+
+    private final Log log;
+
+    private final List<String> jvmArgs = new ArrayList<String>();
+
+    private boolean captureOutput;
+
+    private File cdsDirectory;
+
+    private File peakHeapFile;
+
+    private ModuleOutput output;
+
+    private long peakHeap = -1;
+
+    public ForkedLauncher(String home, Log log) {
+        this.home = home;
+        this.log = log;
+    }
+
+    /**
+     * Adds an option to the command line of the forked JVM, before the main class.
+     */
+    public void addJvmArg(String arg) {
+        jvmArgs.add(arg);
+    }
+
+    /**
+     * Makes the forked JVM use a Class Data Sharing archive from the given directory, creating it
+     * if required (see {@link CdsArchive}).
+     */
+    public void setClassDataSharing(File cdsDirectory) {
+        this.cdsDirectory = cdsDirectory;
+    }
+
+    /**
+     * If <code>true</code>, the peak heap usage of the forked JVM is measured, see
+     * {@link #getPeakHeap()}.
+     */
+    public void setMeasurePeakHeap(boolean measurePeakHeap) throws IOException {
+        if (measurePeakHeap && peakHeapFile == null) {
+            peakHeapFile = File.createTempFile("ceylon-heap", ".txt");
+            peakHeapFile.deleteOnExit();
+        }
+        else if (!measurePeakHeap) {
+            peakHeapFile = null;
+        }
+    }
+
+    /**
+     * Returns the peak heap usage in bytes of the JVM forked by the last {@link #run(String...)},
+     * or -1 if it has not been measured.
+     */
+    public long getPeakHeap() {
+        return peakHeap;
+    }
+
+    /**
+     * Passes the standard and error output of the forked JVM to the given output instead of the
+     * console. The forked JVM is killed if the output is cancelled.
+     */
+    public void setOutput(ModuleOutput output) {
+        this.output = output;
+    }
+
+    /**
+     * If <code>true</code>, the standard output of the forked JVM is not passed through, but can be
+     * read from the {@link Process} returned by {@link #start(String...)}.
+     */
+    public void setCaptureOutput(boolean captureOutput) {
+        this.captureOutput = captureOutput;
+    }
+
+    /**
+     * Runs the given "ceylon" command line in a new JVM and waits for its termination.
+     * 
+     * @return exit code of the forked JVM
+     */
+    public int run(String... args) throws IOException, InterruptedException {
+        peakHeap = -1;
+        final Process process = start(args);
+        List<Thread> pumps = new ArrayList<Thread>();
+        if (output != null) {
+            output.setCancellation(new Runnable() {
+
+                public void run() {
+                    process.destroy();
+                }
+            });
+            pumps.add(pump(process.getInputStream(), output.getOut()));
+            pumps.add(pump(process.getErrorStream(), output.getErr()));
+        }
+        try {
+            int exitCode = process.waitFor();
+            for (Thread pump : pumps) {
+                pump.join();
+            }
+            if (peakHeapFile != null && peakHeapFile.length() > 0) {
+                peakHeap = Long.parseLong(FileUtils.fileRead(peakHeapFile, "UTF-8").trim());
+            }
+            return exitCode;
+        }
+        catch (InterruptedException e) {
+            process.destroy();
+            throw e;
+        }
+    }
+
+    public Process start(String... args) throws IOException {
+        List<String> command = buildCommand(args);
+        log.debug("Forking JVM: " + command);
+        ProcessBuilder builder = new ProcessBuilder(command);
+        builder.inheritIO();
+        if (captureOutput || output != null) {
+            builder.redirectOutput(ProcessBuilder.Redirect.PIPE);
+        }
+        if (output != null) {
+            builder.redirectError(ProcessBuilder.Redirect.PIPE);
+        }
+        return builder.start();
+    }
+
+    private static Thread pump(final InputStream is, final OutputStream os) {
+        Thread pump = new Thread("ceylon-fork-output") {
+
+            @Override
+            public void run() {
+                try {
+                    IOUtil.copy(is, os);
+                }
+                catch (IOException e) {
+                    // the process has terminated
+                }
+            }
+        };
+        pump.setDaemon(true);
+        pump.start();
+        return pump;
+    }
+
+    protected List<String> buildCommand(String... args) throws IOException {
+        List<String> command = new ArrayList<String>();
+        command.add(getJavaExecutable());
+        if (cdsDirectory != null) {
+            command.addAll(new CdsArchive(cdsDirectory, home, log).getJvmArgs());
+        }
+        command.addAll(jvmArgs);
+        if (home != null) {
+            command.add("-D" + Constants.PROP_CEYLON_HOME_DIR + "=" + home);
+        }
+        if (peakHeapFile != null) {
+            command.add("-D" + HeapMeasuringLauncher.PEAK_HEAP_FILE + "=" + peakHeapFile.getAbsolutePath());
+        }
+        command.add("-cp");
+        command.add(getLauncherClassPath());
+        if (peakHeapFile != null) {
+            command.add(HeapMeasuringLauncher.class.getName());
+        }
+        else {
+            command.add(Launcher.class.getName());
+        }
+        for (String arg : args) {
+            command.add(arg);
+        }
+        return command;
+    }
+
+    static String getJavaExecutable() {
+        File javaHome = new File(System.getProperty("java.home"));
+        File java = new File(new File(javaHome, "bin"), "java");
+        return java.getPath();
+    }
+
+    static String getLauncherClassPath() throws IOException {
+        try {
+            return LauncherUtil.determineRuntimeJar().getPath();
+        }
+        catch (URISyntaxException e) {
+            throw new IOException("Cannot determine location of Ceylon launcher", e);
+        }
+    }
+}
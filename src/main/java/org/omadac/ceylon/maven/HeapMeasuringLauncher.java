@@ -0,0 +1,61 @@
+/*
+ * Copyright Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the authors tag. All rights reserved.
+ *
+ * This copyrighted material is made available to anyone wishing to use,
+ * modify, copy, or redistribute it subject to the terms and conditions
+ * of the GNU General Public License version 2.
+ * 
+ * This particular file is subject to the "Classpath" exception as provided in the 
+ * LICENSE file that accompanied this code.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT A
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License,
+ * along with this distribution; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ */
+package org.omadac.ceylon.maven;
+
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+
+import com.redhat.ceylon.launcher.Launcher;
+
+/**
+ * Main class of forked JVMs which runs the Ceylon {@link Launcher} and then writes the peak heap
+ * usage of the JVM in bytes to the file given by the system property
+ * <code>ceylon.peakHeapFile</code>. Runs in the forked JVM without the Maven classes.
+ */
+public class HeapMeasuringLauncher {
+
+    public static final String PEAK_HEAP_FILE = "ceylon.peakHeapFile";
+
+    private HeapMeasuringLauncher() {
+    }
+
+    public static void main(String[] args) throws Throwable {
+        int exit = Launcher.run(args);
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.isValid()) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        OutputStream os = new FileOutputStream(System.getProperty(PEAK_HEAP_FILE));
+        try {
+            os.write(Long.toString(peak).getBytes("UTF-8"));
+        }
+        finally {
+            os.close();
+        }
+        if (exit != 0) {
+            System.exit(exit);
+        }
+    }
+}
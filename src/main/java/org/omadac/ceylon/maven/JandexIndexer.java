@@ -0,0 +1,133 @@
+/*
+ * Copyright Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the authors tag. All rights reserved.
+ *
+ * This copyrighted material is made available to anyone wishing to use,
+ * modify, copy, or redistribute it subject to the terms and conditions
+ * of the GNU General Public License version 2.
+ * 
+ * This particular file is subject to the "Classpath" exception as provided in the 
+ * LICENSE file that accompanied this code.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT A
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License,
+ * along with this distribution; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ */
+package org.omadac.ceylon.maven;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+
+import org.codehaus.plexus.util.IOUtil;
+
+import com.redhat.ceylon.launcher.Launcher;
+
+/**
+ * Builds a Jandex annotation index of the class files in a directory and writes it to
+ * <code>META-INF/jandex.idx</code>. Jandex is not a dependency of the plugin, it is loaded from
+ * the Ceylon distribution via the {@link Launcher} class loader, which is held until the indexer
+ * is closed.
+ */
+public class JandexIndexer implements Closeable {
+
+    public static final String INDEX_FILE = "META-INF/jandex.idx";
+
+    private final Object indexer;
+
+    private final Method indexMethod;
+
+    private final Method completeMethod;
+
+    private final ClassLoader loader;
+
+    private int count;
+
+    private boolean closed;
+
+    public JandexIndexer() throws Exception {
+        Thread currentThread = Thread.currentThread();
+        ClassLoader previousLoader = currentThread.getContextClassLoader();
+        try {
+            loader = Launcher.acquireClassLoader();
+        }
+        finally {
+            currentThread.setContextClassLoader(previousLoader);
+        }
+        try {
+            Class<?> indexerClass = loader.loadClass("org.jboss.jandex.Indexer");
+            indexer = indexerClass.newInstance();
+            indexMethod = indexerClass.getMethod("index", InputStream.class);
+            completeMethod = indexerClass.getMethod("complete");
+        }
+        catch (Exception e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Indexes all class files in the given directory and writes the index into it.
+     * 
+     * @return the number of indexed classes
+     */
+    public int createIndex(File classesDir) throws Exception {
+        indexDirectory(classesDir);
+        Object index = completeMethod.invoke(indexer);
+
+        File indexFile = new File(classesDir, INDEX_FILE);
+        indexFile.getParentFile().mkdirs();
+        Class<?> indexClass = loader.loadClass("org.jboss.jandex.Index");
+        Class<?> writerClass = loader.loadClass("org.jboss.jandex.IndexWriter");
+        OutputStream os = new FileOutputStream(indexFile);
+        try {
+            Object writer = writerClass.getConstructor(OutputStream.class).newInstance(os);
+            writerClass.getMethod("write", indexClass).invoke(writer, index);
+        }
+        finally {
+            IOUtil.close(os);
+        }
+        return count;
+    }
+
+    private void indexDirectory(File dir) throws Exception {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (file.isDirectory()) {
+                indexDirectory(file);
+            }
+            else if (file.getName().endsWith(".class")) {
+                InputStream is = new FileInputStream(file);
+                try {
+                    indexMethod.invoke(indexer, is);
+                    count++;
+                }
+                finally {
+                    IOUtil.close(is);
+                }
+            }
+        }
+    }
+
+    /**
+     * Gives back the {@link Launcher} class loader, so that it can be released.
+     */
+    public synchronized void close() throws IOException {
+        if (!closed) {
+            closed = true;
+            Launcher.returnClassLoader();
+        }
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the authors tag. All rights reserved.
+ *
+ * This copyrighted material is made available to anyone wishing to use,
+ * modify, copy, or redistribute it subject to the terms and conditions
+ * of the GNU General Public License version 2.
+ * 
+ * This particular file is subject to the "Classpath" exception as provided in the 
+ * LICENSE file that accompanied this code.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT A
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License,
+ * along with this distribution; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ */
+package org.omadac.ceylon.maven;
+
+import java.io.Closeable;
+import java.io.File;
+import java.lang.reflect.Method;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.maven.plugin.logging.Log;
+
+/**
+ * Summarizes a Java Flight Recorder recording: the methods most often on top of the stack in
+ * execution samples, the allocation sites with the largest allocated size, and the monitors
+ * with the longest contention. The JFR consumer API is only available on Java 11 and later, so
+ * it is accessed reflectively.
+ */
+public class JfrSummary {
+
+    private static final int TOP = 10;
+
+    private final Map<String, Long> hotMethods = new HashMap<String, Long>();
+
+    private final Map<String, Long> allocationSites = new HashMap<String, Long>();
+
+    private final Map<String, Long> contendedLocks = new HashMap<String, Long>();
+
+    /**
+     * Reads the recording and logs the summary. Logs a warning if the recording cannot be read.
+     */
+    public static void log(File recording, Log log) {
+        JfrSummary summary = new JfrSummary();
+        try {
+            summary.read(recording);
+        }
+        catch (ClassNotFoundException e) {
+            log.warn("Flight recording written to " + recording + ", a summary requires Java 11 or later");
+            return;
+        }
+        catch (Exception e) {
+            log.warn("Cannot read flight recording " + recording, e);
+            return;
+        }
+        log.info("Flight recording written to " + recording);
+        logTop(log, "Hot methods (samples)", summary.hotMethods);
+        logTop(log, "Allocation sites (bytes)", summary.allocationSites);
+        logTop(log, "Lock contention (ms)", summary.contendedLocks);
+    }
+
+    /**
+     * Reads the events one by one, the recording may be much larger than the heap.
+     */
+    private void read(File recording) throws Exception {
+        Class<?> recordingFileClass = Class.forName("jdk.jfr.consumer.RecordingFile");
+        Object recordingFile = recordingFileClass.getConstructor(Path.class).newInstance(recording.toPath());
+        try {
+            Method hasMoreEvents = recordingFileClass.getMethod("hasMoreEvents");
+            Method readEvent = recordingFileClass.getMethod("readEvent");
+            while ((Boolean) hasMoreEvents.invoke(recordingFile)) {
+                addEvent(readEvent.invoke(recordingFile));
+            }
+        }
+        finally {
+            ((Closeable) recordingFile).close();
+        }
+    }
+
+    private void addEvent(Object event) throws Exception {
+        Object eventType = invoke(event, "getEventType");
+        String type = (String) invoke(eventType, "getName");
+        if ("jdk.ExecutionSample".equals(type)) {
+            add(hotMethods, getTopFrame(event), 1);
+        }
+        else if ("jdk.ObjectAllocationSample".equals(type)) {
+            add(allocationSites, getTopFrame(event), getLong(event, "weight"));
+        }
+        else if ("jdk.ObjectAllocationInNewTLAB".equals(type)) {
+            add(allocationSites, getTopFrame(event), getLong(event, "tlabSize"));
+        }
+        else if ("jdk.JavaMonitorEnter".equals(type)) {
+            Object monitorClass = event.getClass().getMethod("getClass", String.class).invoke(event, "monitorClass");
+            String name = (monitorClass == null) ? "?" : (String) invoke(monitorClass, "getName");
+            Object duration = invoke(event, "getDuration");
+            add(contendedLocks, name, (Long) invoke(duration, "toMillis"));
+        }
+    }
+
+    private static String getTopFrame(Object event) throws Exception {
+        Object stackTrace = invoke(event, "getStackTrace");
+        if (stackTrace == null) {
+            return "?";
+        }
+        List<?> frames = (List<?>) invoke(stackTrace, "getFrames");
+        if (frames.isEmpty()) {
+            return "?";
+        }
+        Object method = invoke(frames.get(0), "getMethod");
+        Object type = invoke(method, "getType");
+        return invoke(type, "getName") + "." + invoke(method, "getName");
+    }
+
+    private static long getLong(Object event, String field) throws Exception {
+        return (Long) event.getClass().getMethod("getLong", String.class).invoke(event, field);
+    }
+
+    private static Object invoke(Object target, String method) throws Exception {
+        Method m = target.getClass().getMethod(method);
+        return m.invoke(target);
+    }
+
+    private static void add(Map<String, Long> counts, String key, long amount) {
+        Long count = counts.get(key);
+        counts.put(key, (count == null) ? amount : count + amount);
+    }
+
+    private static void logTop(Log log, String title, Map<String, Long> counts) {
+        if (counts.isEmpty()) {
+            return;
+        }
+        List<Map.Entry<String, Long>> entries = new ArrayList<Map.Entry<String, Long>>(counts.entrySet());
+        Collections.sort(entries, new Comparator<Map.Entry<String, Long>>() {
+
+            public int compare(Map.Entry<String, Long> e1, Map.Entry<String, Long> e2) {
+                return e2.getValue().compareTo(e1.getValue());
+            }
+        });
+        log.info(title + ":");
+        for (Map.Entry<String, Long> entry : entries.subList(0, Math.min(TOP, entries.size()))) {
+            log.info(String.format("  %12d  %s", entry.getValue(), entry.getKey()));
+        }
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the authors tag. All rights reserved.
+ *
+ * This copyrighted material is made available to anyone wishing to use,
+ * modify, copy, or redistribute it subject to the terms and conditions
+ * of the GNU General Public License version 2.
+ * 
+ * This particular file is subject to the "Classpath" exception as provided in the 
+ * LICENSE file that accompanied this code.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT A
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License,
+ * along with this distribution; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ */
+package org.omadac.ceylon.maven;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Queue;
+
+import org.apache.maven.plugin.logging.Log;
+
+/**
+ * Admits in-process Ceylon tool invocations only while the estimated heap usage of all running
+ * invocations stays within a budget, so that concurrent goals (e.g. with <code>mvn -T</code>)
+ * queue instead of running out of memory. There is one scheduler per plugin class loader, shared
+ * by all goal executions of a build. Invocations are admitted in the order they arrive, and an
+ * invocation exceeding the budget on its own runs when no other invocation is running.
+ */
+public class MemoryScheduler {
+
+    /**
+     * Heap usage assumed for an invocation without history or sources.
+     */
+    public static final long DEFAULT_ESTIMATE = 128L << 20;
+
+    /**
+     * Estimated heap usage of the compiler per byte of source code, on top of the default.
+     */
+    private static final long HEAP_PER_SOURCE_BYTE = 200;
+
+    private static MemoryScheduler instance;
+
+    private static boolean budgetWarned;
+
+    private final long budget;
+
+    private long reserved;
+
+    private int running;
+
+    private final Queue<Object> queue = new ArrayDeque<Object>();
+
+    MemoryScheduler(long budget) {
+        this.budget = budget;
+    }
+
+    /**
+     * Returns the scheduler of the build. Its budget is set in MB by the first call, where a
+     * budget of 0 selects 75% of the maximum heap. The budget cannot change while invocations
+     * hold reservations, so a different budget requested later is ignored with a warning.
+     */
+    public static synchronized MemoryScheduler getInstance(long budgetMb, Log log) {
+        long budget = getBudget(budgetMb);
+        if (instance == null) {
+            instance = new MemoryScheduler(budget);
+        }
+        else if (budget != instance.budget && !budgetWarned) {
+            budgetWarned = true;
+            log.warn(String.format("Ignoring memory budget of %d MB, the build already uses a budget of %d MB",
+                budget >> 20, instance.budget >> 20));
+        }
+        return instance;
+    }
+
+    private static long getBudget(long budgetMb) {
+        return (budgetMb > 0) ? budgetMb << 20 : Runtime.getRuntime().maxMemory() / 4 * 3;
+    }
+
+    /**
+     * Waits until an invocation with the given estimated heap usage fits into the budget and
+     * reserves its memory. The reservation must be released with {@link #release(long)}.
+     */
+    public synchronized void acquire(long estimate, String name, Log log) throws InterruptedException {
+        Object waiter = new Object();
+        queue.add(waiter);
+        boolean logged = false;
+        try {
+            while (queue.peek() != waiter || (running > 0 && reserved + estimate > budget)) {
+                if (!logged && queue.peek() == waiter) {
+                    log.info(String.format("Waiting for heap: %s needs about %d MB, %d of %d MB reserved", name,
+                        estimate >> 20, reserved >> 20, budget >> 20));
+                    logged = true;
+                }
+                wait();
+            }
+        }
+        finally {
+            queue.remove(waiter);
+            notifyAll();
+        }
+        reserved += estimate;
+        running++;
+    }
+
+    public synchronized void release(long estimate) {
+        reserved -= estimate;
+        running--;
+        notifyAll();
+    }
+
+    /**
+     * Estimates the heap usage of an invocation, from its past heap usage if known, otherwise from
+     * the size of the sources of the given modules in the given source directories. The past heap
+     * usage is only recorded when it was measured without overlapping invocations (see
+     * {@link BuildMetrics.Sample}); as the increase of the heap usage can still be understated by
+     * a garbage collection, an estimate is never below {@link #DEFAULT_ESTIMATE}.
+     */
+    public static long estimate(long pastHeap, List<File> sourceDirs, List<String> modules) {
+        if (pastHeap >= 0) {
+            return Math.max(pastHeap, DEFAULT_ESTIMATE);
+        }
+        long size = 0;
+        for (File sourceDir : sourceDirs) {
+            for (String module : modules) {
+                size += getSize(ModuleGraph.getModuleDir(sourceDir, module));
+            }
+        }
+        return DEFAULT_ESTIMATE + size * HEAP_PER_SOURCE_BYTE;
+    }
+
+    private static long getSize(File file) {
+        File[] children = file.listFiles();
+        if (children == null) {
+            return file.isFile() ? file.length() : 0;
+        }
+        long size = 0;
+        for (File child : children) {
+            size += getSize(child);
+        }
+        return size;
+    }
+}
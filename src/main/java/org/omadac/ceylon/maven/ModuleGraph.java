@@ -0,0 +1,186 @@
+/*
+ * Copyright Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the authors tag. All rights reserved.
+ *
+ * This copyrighted material is made available to anyone wishing to use,
+ * modify, copy, or redistribute it subject to the terms and conditions
+ * of the GNU General Public License version 2.
+ * 
+ * This particular file is subject to the "Classpath" exception as provided in the 
+ * LICENSE file that accompanied this code.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT A
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License,
+ * along with this distribution; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ */
+package org.omadac.ceylon.maven;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.codehaus.plexus.util.FileUtils;
+import org.codehaus.plexus.util.IOUtil;
+
+/**
+ * Import graph of a set of Ceylon modules, built from their <code>module.ceylon</code>
+ * descriptors. Only imports between modules of the set are recorded.
+ */
+public class ModuleGraph {
+
+    private static final Pattern IMPORT = Pattern
+        .compile("(?m)^\\s*(?:shared\\s+)?(?:optional\\s+)?import\\s+([\\w.]+)\\s+\"([^\"]*)\"");
+
+    private static final Pattern MODULE = Pattern.compile("\\bmodule\\s+([\\w.]+)\\s+\"([^\"]+)\"");
+
+    private static final Pattern COMMENT = Pattern.compile("(?s)/\\*.*?\\*/|//[^\\n]*");
+
+    private final Map<String, Set<String>> imports = new LinkedHashMap<String, Set<String>>();
+
+    public ModuleGraph(List<File> sourceDirs, List<String> modules, String encoding)
+        throws IOException {
+        for (String module : modules) {
+            imports.put(module, new LinkedHashSet<String>());
+        }
+        for (String module : modules) {
+            File descriptor = findDescriptor(sourceDirs, module);
+            if (descriptor == null) {
+                continue;
+            }
+            for (String imported : parseImports(FileUtils.fileRead(descriptor, encoding))) {
+                if (imports.containsKey(imported) && !imported.equals(module)) {
+                    imports.get(module).add(imported);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the <code>module.ceylon</code> descriptor of the given module in the first source
+     * directory containing it, or <code>null</code>.
+     */
+    public static File findDescriptor(List<File> sourceDirs, String module) {
+        for (File sourceDir : sourceDirs) {
+            File descriptor = new File(getModuleDir(sourceDir, module), "module.ceylon");
+            if (descriptor.isFile()) {
+                return descriptor;
+            }
+        }
+        return null;
+    }
+
+    public static File getModuleDir(File sourceDir, String module) {
+        return new File(sourceDir, module.replace('.', File.separatorChar));
+    }
+
+    /**
+     * Reads the descriptor of the given module from a <code>.src</code> archive, or returns
+     * <code>null</code> if the archive or the descriptor does not exist.
+     */
+    public static String readSourceDescriptor(File src, String module) throws IOException {
+        if (!src.isFile()) {
+            return null;
+        }
+        ZipFile zip = new ZipFile(src);
+        try {
+            ZipEntry entry = zip.getEntry(module.replace('.', '/') + "/module.ceylon");
+            if (entry == null) {
+                return null;
+            }
+            InputStream is = zip.getInputStream(entry);
+            try {
+                return IOUtil.toString(is, "UTF-8");
+            }
+            finally {
+                IOUtil.close(is);
+            }
+        }
+        finally {
+            zip.close();
+        }
+    }
+
+    static List<String> parseImports(String descriptor) {
+        List<String> result = new ArrayList<String>();
+        Matcher matcher = IMPORT.matcher(COMMENT.matcher(descriptor).replaceAll(""));
+        while (matcher.find()) {
+            result.add(matcher.group(1));
+        }
+        return result;
+    }
+
+    /**
+     * Returns the modules imported by the given module descriptor, mapped to their versions.
+     */
+    public static Map<String, String> parseImportVersions(String descriptor) {
+        Map<String, String> result = new LinkedHashMap<String, String>();
+        Matcher matcher = IMPORT.matcher(COMMENT.matcher(descriptor).replaceAll(""));
+        while (matcher.find()) {
+            result.put(matcher.group(1), matcher.group(2));
+        }
+        return result;
+    }
+
+    /**
+     * Returns the version declared in the given module descriptor, or <code>null</code>.
+     */
+    public static String parseVersion(String descriptor) {
+        Matcher matcher = MODULE.matcher(COMMENT.matcher(descriptor).replaceAll(""));
+        return matcher.find() ? matcher.group(2) : null;
+    }
+
+    /**
+     * Returns the modules of the graph imported by the given module.
+     */
+    public Set<String> getImports(String module) {
+        Set<String> result = imports.get(module);
+        return (result == null) ? Collections.<String> emptySet() : result;
+    }
+
+    public Set<String> getModules() {
+        return imports.keySet();
+    }
+
+    /**
+     * Sorts the modules such that each module follows all modules it imports.
+     * 
+     * @throws IllegalStateException if the imports are cyclic
+     */
+    public List<String> sort() {
+        List<String> sorted = new ArrayList<String>();
+        Set<String> visiting = new LinkedHashSet<String>();
+        for (String module : imports.keySet()) {
+            visit(module, visiting, sorted);
+        }
+        return sorted;
+    }
+
+    private void visit(String module, Set<String> visiting, List<String> sorted) {
+        if (sorted.contains(module)) {
+            return;
+        }
+        if (!visiting.add(module)) {
+            throw new IllegalStateException("Cyclic module imports: " + visiting);
+        }
+        for (String imported : imports.get(module)) {
+            visit(imported, visiting, sorted);
+        }
+        visiting.remove(module);
+        sorted.add(module);
+    }
+}
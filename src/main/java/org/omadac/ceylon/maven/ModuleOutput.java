@@ -0,0 +1,348 @@
+/*
+ * Copyright Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the authors tag. All rights reserved.
+ *
+ * This copyrighted material is made available to anyone wishing to use,
+ * modify, copy, or redistribute it subject to the terms and conditions
+ * of the GNU General Public License version 2.
+ * 
+ * This particular file is subject to the "Classpath" exception as provided in the 
+ * LICENSE file that accompanied this code.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT A
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License,
+ * along with this distribution; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ */
+package org.omadac.ceylon.maven;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.regex.Pattern;
+
+import org.apache.maven.plugin.logging.Log;
+
+/**
+ * Output of one Ceylon tool invocation, passed to the Maven log with the module name as prefix by
+ * the {@link OutputBridge}. If a log file is given, the complete output is written to the file
+ * and only the first lines are logged.
+ * <p>
+ * If a maximum number of errors is set, the error diagnostics are counted as they are written,
+ * and the output is cancelled once the maximum is reached: a tool running in-process is stopped
+ * by a {@link CancellationException} thrown from its next write, a forked or remote tool by the
+ * cancellation action of the {@link ForkedLauncher} or {@link WorkerPool}.
+ */
+public class ModuleOutput {
+
+    private static final Pattern ERROR = Pattern.compile(":\\d+: error\\b");
+
+    private final String name;
+
+    private final Log log;
+
+    private final File logFile;
+
+    private final int consoleLines;
+
+    private final LineOutputStream out = new LineOutputStream(false);
+
+    private final LineOutputStream err = new LineOutputStream(true);
+
+    private final CountDownLatch drained = new CountDownLatch(1);
+
+    private final List<Line> pending = new ArrayList<Line>();
+
+    private boolean scheduled;
+
+    private boolean closed;
+
+    private Writer writer;
+
+    private int lines;
+
+    private int maxErrors;
+
+    private int errors;
+
+    private volatile boolean cancelled;
+
+    private Runnable cancellation;
+
+    /**
+     * @param name prefix of the logged lines
+     * @param logFile file receiving the complete output, or <code>null</code>
+     * @param consoleLines maximum number of lines logged if there is a log file
+     */
+    public ModuleOutput(String name, Log log, File logFile, int consoleLines) throws IOException {
+        this.name = name;
+        this.log = log;
+        this.logFile = logFile;
+        this.consoleLines = consoleLines;
+        if (logFile != null) {
+            logFile.getParentFile().mkdirs();
+            writer = new OutputStreamWriter(new FileOutputStream(logFile), "UTF-8");
+        }
+        OutputBridge.open();
+    }
+
+    /**
+     * Returns the stream receiving the standard output of the tool.
+     */
+    public OutputStream getOut() {
+        return out;
+    }
+
+    /**
+     * Returns the stream receiving the error output of the tool.
+     */
+    public OutputStream getErr() {
+        return err;
+    }
+
+    /**
+     * Cancels the output once the given number of error diagnostics has been written.
+     * <code>0</code> means no limit.
+     */
+    public void setMaxErrors(int maxErrors) {
+        this.maxErrors = maxErrors;
+    }
+
+    /**
+     * Sets the action stopping a tool which does not run in the writing thread, e.g. by killing
+     * its process or closing its connection to a compile worker. The action is run at once if the
+     * output has already been cancelled. <code>null</code> removes the action, e.g. when the tool
+     * falls back to running in-process.
+     */
+    public synchronized void setCancellation(Runnable cancellation) {
+        this.cancellation = cancellation;
+        if (cancelled && cancellation != null) {
+            cancellation.run();
+        }
+    }
+
+    /**
+     * Stops the tool writing to this output.
+     */
+    public synchronized void cancel() {
+        if (cancelled) {
+            return;
+        }
+        cancelled = true;
+        if (cancellation != null) {
+            cancellation.run();
+        }
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Returns the number of error diagnostics written so far.
+     */
+    public synchronized int getErrors() {
+        return errors;
+    }
+
+    private synchronized void countError() {
+        errors++;
+        if (maxErrors > 0 && errors >= maxErrors) {
+            cancel();
+        }
+    }
+
+    /**
+     * Throws a {@link CancellationException} into a tool running in the writing thread.
+     */
+    private void checkCancelled() {
+        if (cancelled && cancellation == null) {
+            throw new CancellationException("Cancelled after " + getErrors() + " errors");
+        }
+    }
+
+    /**
+     * Passes any incomplete last lines on and waits until all output has been logged.
+     */
+    public void close() throws InterruptedException {
+        synchronized (pending) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+        try {
+            out.flushPartialLine();
+            err.flushPartialLine();
+            enqueue(null, false);
+            drained.await();
+        }
+        finally {
+            OutputBridge.close();
+        }
+    }
+
+    /**
+     * Buffers a line and schedules this output for the drainer thread of the
+     * {@link OutputBridge}, without blocking. A <code>null</code> line marks the end of the
+     * output.
+     */
+    private void enqueue(String text, boolean error) {
+        synchronized (pending) {
+            pending.add(new Line(text, error));
+            if (scheduled) {
+                return;
+            }
+            scheduled = true;
+        }
+        OutputBridge.schedule(this);
+    }
+
+    /**
+     * Called by the drainer thread of the {@link OutputBridge} to log the buffered lines.
+     */
+    void drainPending() {
+        while (true) {
+            List<Line> batch;
+            synchronized (pending) {
+                if (pending.isEmpty()) {
+                    scheduled = false;
+                    return;
+                }
+                batch = new ArrayList<Line>(pending);
+                pending.clear();
+            }
+            for (Line line : batch) {
+                try {
+                    drain(line.text, line.error);
+                }
+                catch (RuntimeException e) {
+                    // keep draining the other lines
+                }
+            }
+        }
+    }
+
+    /**
+     * Logs a line, or finishes the output on a <code>null</code> line.
+     */
+    private void drain(String line, boolean error) {
+        if (line == null) {
+            if (writer != null) {
+                try {
+                    writer.close();
+                }
+                catch (IOException e) {
+                    log.warn("Cannot write " + logFile, e);
+                }
+                if (lines > consoleLines) {
+                    log.info("[" + name + "] ... " + (lines - consoleLines) + " more lines in " + logFile);
+                }
+            }
+            drained.countDown();
+            return;
+        }
+        lines++;
+        if (writer != null) {
+            try {
+                writer.write(line);
+                writer.write('\n');
+            }
+            catch (IOException e) {
+                log.warn("Cannot write " + logFile, e);
+                writer = null;
+            }
+            if (lines > consoleLines) {
+                return;
+            }
+        }
+        String message = "[" + name + "] " + line;
+        if (error) {
+            log.warn(message);
+        }
+        else {
+            log.info(message);
+        }
+    }
+
+    private static class Line {
+
+        final String text;
+
+        final boolean error;
+
+        Line(String text, boolean error) {
+            this.text = text;
+            this.error = error;
+        }
+    }
+
+    /**
+     * Splits the bytes written into lines, which are buffered for the drainer thread.
+     */
+    private class LineOutputStream extends OutputStream {
+
+        private final ByteArrayOutputStream line = new ByteArrayOutputStream(256);
+
+        private final boolean error;
+
+        LineOutputStream(boolean error) {
+            this.error = error;
+        }
+
+        @Override
+        public synchronized void write(int b) {
+            if (b == '\n') {
+                endLine();
+            }
+            else {
+                line.write(b);
+            }
+            checkCancelled();
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) {
+            int start = off;
+            for (int i = off; i < off + len; i++) {
+                if (b[i] == '\n') {
+                    line.write(b, start, i - start);
+                    endLine();
+                    start = i + 1;
+                }
+            }
+            line.write(b, start, off + len - start);
+            checkCancelled();
+        }
+
+        synchronized void flushPartialLine() {
+            if (line.size() > 0) {
+                endLine();
+            }
+        }
+
+        private void endLine() {
+            String text = new String(line.toByteArray(), Charset.defaultCharset());
+            line.reset();
+            if (text.endsWith("\r")) {
+                text = text.substring(0, text.length() - 1);
+            }
+            enqueue(text, error);
+            if (maxErrors > 0 && ERROR.matcher(text).find()) {
+                countError();
+            }
+        }
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the authors tag. All rights reserved.
+ *
+ * This copyrighted material is made available to anyone wishing to use,
+ * modify, copy, or redistribute it subject to the terms and conditions
+ * of the GNU General Public License version 2.
+ * 
+ * This particular file is subject to the "Classpath" exception as provided in the 
+ * LICENSE file that accompanied this code.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT A
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License,
+ * along with this distribution; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ */
+package org.omadac.ceylon.maven;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Passes the output of Ceylon tool invocations to the Maven log. While a {@link ModuleOutput} is
+ * open, <code>System.out</code> and <code>System.err</code> route the output of threads attached
+ * to an output (and of threads they start) to it, and the output of other threads to the original
+ * streams, which are restored when the last output is closed. The
+ * {@link com.redhat.ceylon.launcher.Launcher} binds its console log handlers to the current
+ * <code>System.err</code>, so tool logging is routed as well. Each output buffers its lines and
+ * is logged by a single daemon thread, so tools never block on console writes, not even while
+ * holding the lock of a print stream, and their lines do not interleave within a line.
+ */
+public class OutputBridge {
+
+    private static final InheritableThreadLocal<ModuleOutput> CURRENT = new InheritableThreadLocal<ModuleOutput>();
+
+    private static final BlockingQueue<ModuleOutput> READY = new LinkedBlockingQueue<ModuleOutput>();
+
+    private static Thread drainer;
+
+    private static int openOutputs;
+
+    private static PrintStream originalOut;
+
+    private static PrintStream originalErr;
+
+    private static RoutingPrintStream routingOut;
+
+    private static RoutingPrintStream routingErr;
+
+    private OutputBridge() {
+    }
+
+    /**
+     * Routes the standard streams of the current thread and the threads it starts to the given
+     * output, until {@link #detach()} is called.
+     */
+    public static void attach(ModuleOutput output) {
+        CURRENT.set(output);
+    }
+
+    public static void detach() {
+        CURRENT.remove();
+    }
+
+    /**
+     * Called when an output is created: installs the routing streams for the first open output.
+     */
+    static synchronized void open() {
+        if (openOutputs++ > 0) {
+            return;
+        }
+        originalOut = System.out;
+        originalErr = System.err;
+        routingOut = new RoutingPrintStream(originalOut, false);
+        routingErr = new RoutingPrintStream(originalErr, true);
+        System.setOut(routingOut);
+        System.setErr(routingErr);
+
+        if (drainer == null) {
+            drainer = new Thread("ceylon-output") {
+
+                @Override
+                public void run() {
+                    drain();
+                }
+            };
+            drainer.setDaemon(true);
+            drainer.start();
+        }
+    }
+
+    /**
+     * Called when an output is closed: restores the original streams after the last open output,
+     * unless they have been replaced by someone else in the meantime.
+     */
+    static synchronized void close() {
+        if (--openOutputs > 0) {
+            return;
+        }
+        if (System.out == routingOut) {
+            System.setOut(originalOut);
+        }
+        if (System.err == routingErr) {
+            System.setErr(originalErr);
+        }
+        routingOut = null;
+        routingErr = null;
+        originalOut = null;
+        originalErr = null;
+    }
+
+    /**
+     * Schedules the buffered lines of the given output for logging. Never blocks.
+     */
+    static void schedule(ModuleOutput output) {
+        READY.add(output);
+    }
+
+    private static void drain() {
+        while (true) {
+            ModuleOutput output;
+            try {
+                output = READY.take();
+            }
+            catch (InterruptedException e) {
+                return;
+            }
+            output.drainPending();
+        }
+    }
+
+    /**
+     * Writes to the output attached to the current thread, or to the original stream.
+     */
+    private static class RoutingPrintStream extends PrintStream {
+
+        private final boolean error;
+
+        RoutingPrintStream(PrintStream original, boolean error) {
+            super(original, true);
+            this.error = error;
+        }
+
+        private OutputStream getTarget() {
+            ModuleOutput output = CURRENT.get();
+            if (output == null) {
+                return null;
+            }
+            return error ? output.getErr() : output.getOut();
+        }
+
+        @Override
+        public void write(int b) {
+            OutputStream target = getTarget();
+            if (target == null) {
+                super.write(b);
+                return;
+            }
+            try {
+                target.write(b);
+            }
+            catch (IOException e) {
+                setError();
+            }
+        }
+
+        @Override
+        public void write(byte[] buf, int off, int len) {
+            OutputStream target = getTarget();
+            if (target == null) {
+                super.write(buf, off, len);
+                return;
+            }
+            try {
+                target.write(buf, off, len);
+            }
+            catch (IOException e) {
+                setError();
+            }
+        }
+    }
+}
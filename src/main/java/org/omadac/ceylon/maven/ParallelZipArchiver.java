@@ -0,0 +1,544 @@
+/*
+ * Copyright Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the authors tag. All rights reserved.
+ *
+ * This copyrighted material is made available to anyone wishing to use,
+ * modify, copy, or redistribute it subject to the terms and conditions
+ * of the GNU General Public License version 2.
+ * 
+ * This particular file is subject to the "Classpath" exception as provided in the 
+ * LICENSE file that accompanied this code.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT A
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License,
+ * along with this distribution; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ */
+package org.omadac.ceylon.maven;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+import org.codehaus.plexus.util.IOUtil;
+
+/**
+ * Creates ZIP archives, compressing the entries concurrently on a pool of worker threads. The
+ * compressed entries are written in order as soon as they are ready, so the archive content does
+ * not depend on the number of threads.
+ * <p>
+ * Entries are sorted by name, with <code>META-INF/MANIFEST.MF</code> first, and a directory entry
+ * is added for each directory, including empty ones. Files keep their modification time. Large
+ * files are compressed into temporary files instead of memory. ZIP64 is not supported, archives
+ * or entries exceeding the 4 GB limit of the ZIP format are rejected.
+ */
+public class ParallelZipArchiver {
+
+    public static final String MANIFEST = "META-INF/MANIFEST.MF";
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final int LOCAL_HEADER = 0x04034b50;
+
+    private static final int CENTRAL_HEADER = 0x02014b50;
+
+    private static final int END_OF_CENTRAL_DIRECTORY = 0x06054b50;
+
+    private static final int VERSION = 20;
+
+    private static final int FLAG_UTF8 = 0x0800;
+
+    private static final int STORED = 0;
+
+    private static final int DEFLATED = 8;
+
+    private static final int MAX_ENTRIES = 0xffff;
+
+    private static final long MAX_SIZE = 0xffffffffL;
+
+    private static final int LARGE_FILE = 1 << 20;
+
+    private final int threads;
+
+    private final int level;
+
+    private final ExecutorService executor;
+
+    private final Map<String, Object> entries = new TreeMap<String, Object>();
+
+    /**
+     * @param threads
+     *            number of compression threads, or 0 for the number of available processors
+     * @param level
+     *            the compression level (0-9), 0 meaning that entries are stored uncompressed, or
+     *            {@link Deflater#DEFAULT_COMPRESSION}
+     */
+    public ParallelZipArchiver(int threads, int level) {
+        this(null, threads, level);
+    }
+
+    /**
+     * @param executor
+     *            the pool compressing the entries, which may be shared by several archivers, or
+     *            <code>null</code> to create a pool for each archive
+     * @param threads
+     *            number of threads of the pool, or 0 for the number of available processors
+     * @param level
+     *            the compression level (0-9), 0 meaning that entries are stored uncompressed, or
+     *            {@link Deflater#DEFAULT_COMPRESSION}
+     */
+    public ParallelZipArchiver(ExecutorService executor, int threads, int level) {
+        this.executor = executor;
+        this.threads = (threads > 0) ? threads : Runtime.getRuntime().availableProcessors();
+        this.level = level;
+    }
+
+    /**
+     * Adds all files in the given directory, recursively.
+     */
+    public void addDirectory(File dir) {
+        addDirectory(dir, "");
+    }
+
+    private void addDirectory(File dir, String prefix) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            String name = prefix + file.getName();
+            if (file.isDirectory()) {
+                // an explicit entry keeps empty directories
+                entries.put(name + "/", new byte[0]);
+                addDirectory(file, name + "/");
+            }
+            else {
+                addFile(file, name);
+            }
+        }
+    }
+
+    public void addFile(File file, String name) {
+        addParentDirectories(name);
+        entries.put(name, file);
+    }
+
+    public void addEntry(String name, byte[] content) {
+        addParentDirectories(name);
+        entries.put(name, content);
+    }
+
+    public boolean hasEntry(String name) {
+        return entries.containsKey(name);
+    }
+
+    private void addParentDirectories(String name) {
+        int slash = name.indexOf('/');
+        while (slash > 0) {
+            String dir = name.substring(0, slash + 1);
+            if (!entries.containsKey(dir)) {
+                entries.put(dir, new byte[0]);
+            }
+            slash = name.indexOf('/', slash + 1);
+        }
+    }
+
+    /**
+     * Writes the archive. The archive is written to a temporary file first, which then replaces
+     * the destination file.
+     */
+    public void createArchive(File destFile) throws IOException {
+        List<String> names = new ArrayList<String>(entries.keySet());
+        if (names.size() > MAX_ENTRIES) {
+            throw new IOException("Too many entries for " + destFile + ": " + names.size());
+        }
+        if (names.remove(MANIFEST)) {
+            names.add(0, MANIFEST);
+            names.remove("META-INF/");
+            names.add(0, "META-INF/");
+        }
+
+        File tmpDir = destFile.getAbsoluteFile().getParentFile();
+        File tmpFile = File.createTempFile(destFile.getName(), ".tmp", tmpDir);
+        long now = System.currentTimeMillis();
+        ExecutorService executor = (this.executor != null) ? this.executor : Executors.newFixedThreadPool(threads);
+        LinkedList<Future<CompressedEntry>> pending = new LinkedList<Future<CompressedEntry>>();
+        try {
+            ZipWriter writer = new ZipWriter(new FileOutputStream(tmpFile));
+            try {
+                // keep a bounded number of compressed entries in memory
+                int window = threads * 4;
+                for (String name : names) {
+                    pending.add(executor.submit(new Compressor(name, entries.get(name), now, tmpDir)));
+                    if (pending.size() >= window) {
+                        writer.writeEntry(pending.removeFirst().get());
+                    }
+                }
+                while (!pending.isEmpty()) {
+                    writer.writeEntry(pending.removeFirst().get());
+                }
+                writer.finish();
+            }
+            finally {
+                writer.close();
+            }
+            Files.move(tmpFile.toPath(), destFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while creating " + destFile, e);
+        }
+        catch (ExecutionException e) {
+            throw new IOException("Cannot compress entry of " + destFile, e.getCause());
+        }
+        finally {
+            if (executor != this.executor) {
+                executor.shutdownNow();
+            }
+            discard(pending);
+            tmpFile.delete();
+        }
+    }
+
+    /**
+     * Deletes the temporary files of entries which have been compressed but not written.
+     */
+    private static void discard(List<Future<CompressedEntry>> pending) {
+        for (Future<CompressedEntry> future : pending) {
+            if (future.cancel(true)) {
+                continue;
+            }
+            try {
+                CompressedEntry entry = future.get();
+                if (entry.tmpFile != null) {
+                    entry.tmpFile.delete();
+                }
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            catch (ExecutionException e) {
+                // nothing to delete
+            }
+        }
+    }
+
+    static class CompressedEntry {
+
+        String name;
+
+        int method;
+
+        long crc;
+
+        long size;
+
+        long time;
+
+        byte[] data;
+
+        // the entry data if not kept in memory, and whether it is a temporary file
+        File dataFile;
+
+        File tmpFile;
+
+        long compressedSize;
+
+        long offset;
+    }
+
+    private class Compressor implements Callable<CompressedEntry> {
+
+        private final String name;
+
+        private final Object source;
+
+        private final long now;
+
+        private final File tmpDir;
+
+        Compressor(String name, Object source, long now, File tmpDir) {
+            this.name = name;
+            this.source = source;
+            this.now = now;
+            this.tmpDir = tmpDir;
+        }
+
+        public CompressedEntry call() throws IOException {
+            CompressedEntry entry = new CompressedEntry();
+            entry.name = name;
+            entry.method = STORED;
+            entry.time = now;
+            if (source instanceof File) {
+                File file = (File) source;
+                entry.time = file.lastModified();
+                if (file.length() > LARGE_FILE) {
+                    compressFile(file, entry);
+                    return entry;
+                }
+            }
+
+            byte[] content = (source instanceof File) ? Files.readAllBytes(((File) source).toPath())
+                : (byte[]) source;
+            CRC32 crc = new CRC32();
+            crc.update(content);
+            entry.crc = crc.getValue();
+            entry.size = content.length;
+            entry.data = content;
+            if (level != 0 && content.length > 0) {
+                byte[] compressed = deflate(content);
+                if (compressed.length < content.length) {
+                    entry.method = DEFLATED;
+                    entry.data = compressed;
+                }
+            }
+            return entry;
+        }
+
+        private byte[] deflate(byte[] content) {
+            Deflater deflater = new Deflater(level, true);
+            try {
+                deflater.setInput(content);
+                deflater.finish();
+                ByteArrayOutputStream os = new ByteArrayOutputStream(content.length / 2 + 64);
+                byte[] buffer = new byte[65536];
+                while (!deflater.finished()) {
+                    int length = deflater.deflate(buffer);
+                    os.write(buffer, 0, length);
+                }
+                return os.toByteArray();
+            }
+            finally {
+                deflater.end();
+            }
+        }
+
+        /**
+         * Streams a large file through the deflater into a temporary file. The file is stored
+         * as it is if compression does not make it smaller.
+         */
+        private void compressFile(File file, CompressedEntry entry) throws IOException {
+            File compressed = (level != 0) ? File.createTempFile("ceylon-zip", ".tmp", tmpDir) : null;
+            Deflater deflater = (level != 0) ? new Deflater(level, true) : null;
+            CRC32 crc = new CRC32();
+            long size = 0;
+            try {
+                InputStream is = new FileInputStream(file);
+                OutputStream os = (deflater != null)
+                    ? new DeflaterOutputStream(new FileOutputStream(compressed), deflater, 65536)
+                    : null;
+                try {
+                    byte[] buffer = new byte[65536];
+                    int length;
+                    while ((length = is.read(buffer)) > 0) {
+                        crc.update(buffer, 0, length);
+                        size += length;
+                        if (os != null) {
+                            os.write(buffer, 0, length);
+                        }
+                    }
+                    if (os != null) {
+                        os.close();
+                    }
+                }
+                finally {
+                    IOUtil.close(is);
+                    IOUtil.close(os);
+                }
+            }
+            catch (IOException e) {
+                if (compressed != null) {
+                    compressed.delete();
+                }
+                throw e;
+            }
+            finally {
+                if (deflater != null) {
+                    deflater.end();
+                }
+            }
+
+            entry.crc = crc.getValue();
+            entry.size = size;
+            if (compressed != null && compressed.length() < size) {
+                entry.method = DEFLATED;
+                entry.dataFile = compressed;
+                entry.tmpFile = compressed;
+            }
+            else {
+                if (compressed != null) {
+                    compressed.delete();
+                }
+                entry.dataFile = file;
+            }
+        }
+    }
+
+    /**
+     * Writes local headers, entry data and the central directory of a ZIP file.
+     */
+    private static class ZipWriter {
+
+        private final OutputStream os;
+
+        private final List<CompressedEntry> written = new ArrayList<CompressedEntry>();
+
+        private final Calendar calendar = Calendar.getInstance();
+
+        private long offset;
+
+        ZipWriter(OutputStream os) {
+            this.os = new BufferedOutputStream(os, 65536);
+        }
+
+        void writeEntry(CompressedEntry entry) throws IOException {
+            try {
+                byte[] name = entry.name.getBytes(UTF8);
+                entry.compressedSize = (entry.data != null) ? entry.data.length : entry.dataFile.length();
+                if (offset > MAX_SIZE || entry.size > MAX_SIZE || entry.compressedSize > MAX_SIZE) {
+                    throw new IOException("Archive too large at entry " + entry.name + ", ZIP64 is not supported");
+                }
+                entry.offset = offset;
+                writeInt(LOCAL_HEADER);
+                writeShort(VERSION);
+                writeShort(FLAG_UTF8);
+                writeShort(entry.method);
+                writeDateTime(entry.time);
+                writeInt((int) entry.crc);
+                writeInt((int) entry.compressedSize);
+                writeInt((int) entry.size);
+                writeShort(name.length);
+                writeShort(0);
+                write(name);
+                if (entry.data != null) {
+                    write(entry.data);
+                }
+                else {
+                    write(entry.dataFile);
+                }
+                // only the header fields are needed for the central directory
+                entry.data = null;
+                entry.dataFile = null;
+                written.add(entry);
+            }
+            finally {
+                if (entry.tmpFile != null) {
+                    entry.tmpFile.delete();
+                    entry.tmpFile = null;
+                }
+            }
+        }
+
+        void finish() throws IOException {
+            long start = offset;
+            for (CompressedEntry entry : written) {
+                byte[] name = entry.name.getBytes(UTF8);
+                writeInt(CENTRAL_HEADER);
+                writeShort(VERSION);
+                writeShort(VERSION);
+                writeShort(FLAG_UTF8);
+                writeShort(entry.method);
+                writeDateTime(entry.time);
+                writeInt((int) entry.crc);
+                writeInt((int) entry.compressedSize);
+                writeInt((int) entry.size);
+                writeShort(name.length);
+                writeShort(0);
+                writeShort(0);
+                writeShort(0);
+                writeShort(0);
+                writeInt(entry.name.endsWith("/") ? 0x10 : 0);
+                writeInt((int) entry.offset);
+                write(name);
+            }
+            long size = offset - start;
+            if (offset > MAX_SIZE) {
+                throw new IOException("Archive too large, ZIP64 is not supported");
+            }
+            writeInt(END_OF_CENTRAL_DIRECTORY);
+            writeShort(0);
+            writeShort(0);
+            writeShort(written.size());
+            writeShort(written.size());
+            writeInt((int) size);
+            writeInt((int) start);
+            writeShort(0);
+            os.flush();
+        }
+
+        void close() throws IOException {
+            os.close();
+        }
+
+        /**
+         * Writes the given time as MS-DOS time and date, which cannot represent times before 1980.
+         */
+        private void writeDateTime(long millis) throws IOException {
+            calendar.setTimeInMillis(millis);
+            if (calendar.get(Calendar.YEAR) < 1980) {
+                calendar.set(1980, Calendar.JANUARY, 1, 0, 0, 0);
+            }
+            writeShort((calendar.get(Calendar.HOUR_OF_DAY) << 11) | (calendar.get(Calendar.MINUTE) << 5)
+                | (calendar.get(Calendar.SECOND) >> 1));
+            writeShort(((calendar.get(Calendar.YEAR) - 1980) << 9) | ((calendar.get(Calendar.MONTH) + 1) << 5)
+                | calendar.get(Calendar.DAY_OF_MONTH));
+        }
+
+        private void writeShort(int value) throws IOException {
+            os.write(value & 0xff);
+            os.write((value >>> 8) & 0xff);
+            offset += 2;
+        }
+
+        private void writeInt(int value) throws IOException {
+            writeShort(value & 0xffff);
+            writeShort((value >>> 16) & 0xffff);
+        }
+
+        private void write(byte[] bytes) throws IOException {
+            os.write(bytes);
+            offset += bytes.length;
+        }
+
+        private void write(File file) throws IOException {
+            InputStream is = new FileInputStream(file);
+            try {
+                byte[] buffer = new byte[65536];
+                int length;
+                while ((length = is.read(buffer)) > 0) {
+                    os.write(buffer, 0, length);
+                    offset += length;
+                }
+            }
+            finally {
+                IOUtil.close(is);
+            }
+        }
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the authors tag. All rights reserved.
+ *
+ * This copyrighted material is made available to anyone wishing to use,
+ * modify, copy, or redistribute it subject to the terms and conditions
+ * of the GNU General Public License version 2.
+ * 
+ * This particular file is subject to the "Classpath" exception as provided in the 
+ * LICENSE file that accompanied this code.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT A
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License,
+ * along with this distribution; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ */
+package org.omadac.ceylon.maven;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.maven.execution.MavenSession;
+import org.apache.maven.model.Dependency;
+import org.apache.maven.model.Plugin;
+import org.apache.maven.model.PluginExecution;
+import org.apache.maven.project.MavenProject;
+import org.codehaus.plexus.util.xml.Xpp3Dom;
+
+/**
+ * Finds the module repositories of the other <code>car</code> projects in the reactor, so that
+ * modules built in the same reactor can be imported without installing them first.
+ */
+public class ReactorRepositories {
+
+    private static final String PLUGIN_KEY = "org.omadac.ceylon:ceylon-maven-plugin";
+
+    private ReactorRepositories() {
+    }
+
+    /**
+     * Returns the output repositories of the <code>car</code> projects of the session which the
+     * given project depends on, directly or through other reactor projects, in reactor order.
+     * Projects which have not been built yet are skipped.
+     */
+    public static List<String> getRepositories(MavenSession session, MavenProject current) {
+        List<String> repositories = new ArrayList<String>();
+        if (session == null || session.getProjects() == null) {
+            return repositories;
+        }
+        Map<String, MavenProject> carProjects = new HashMap<String, MavenProject>();
+        for (MavenProject project : session.getProjects()) {
+            if ("car".equals(project.getPackaging())) {
+                carProjects.put(project.getGroupId() + ":" + project.getArtifactId(), project);
+            }
+        }
+
+        Set<String> required = new HashSet<String>();
+        Deque<MavenProject> pending = new ArrayDeque<MavenProject>();
+        pending.add(current);
+        while (!pending.isEmpty()) {
+            for (Dependency dependency : pending.remove().getDependencies()) {
+                String key = dependency.getGroupId() + ":" + dependency.getArtifactId();
+                MavenProject project = carProjects.get(key);
+                if (project != null && required.add(key)) {
+                    pending.add(project);
+                }
+            }
+        }
+
+        for (MavenProject project : session.getProjects()) {
+            if (project.getId().equals(current.getId())
+                || !required.contains(project.getGroupId() + ":" + project.getArtifactId())) {
+                continue;
+            }
+            File outputDir = getOutputRepository(project);
+            if (outputDir.isDirectory()) {
+                repositories.add(outputDir.getPath());
+            }
+        }
+        return repositories;
+    }
+
+    /**
+     * Returns the output repository of the given project, as configured by the <code>out</code>
+     * parameter of this plugin or the <code>ceylon.out</code> property.
+     */
+    static File getOutputRepository(MavenProject project) {
+        String out = null;
+        for (Plugin plugin : project.getBuildPlugins()) {
+            if (PLUGIN_KEY.equals(plugin.getKey())) {
+                out = getOut(plugin.getConfiguration());
+                for (PluginExecution execution : plugin.getExecutions()) {
+                    if (out == null && execution.getGoals().contains("compile")) {
+                        out = getOut(execution.getConfiguration());
+                    }
+                }
+            }
+        }
+        if (out == null && project.getProperties() != null) {
+            out = project.getProperties().getProperty("ceylon.out");
+        }
+        if (out == null) {
+            return new File(project.getBuild().getDirectory());
+        }
+        File outputDir = new File(out);
+        return outputDir.isAbsolute() ? outputDir : new File(project.getBasedir(), out);
+    }
+
+    private static String getOut(Object configuration) {
+        if (configuration instanceof Xpp3Dom) {
+            Xpp3Dom out = ((Xpp3Dom) configuration).getChild("out");
+            if (out != null && out.getValue() != null && !out.getValue().trim().isEmpty()) {
+                return out.getValue().trim();
+            }
+        }
+        return null;
+    }
+}
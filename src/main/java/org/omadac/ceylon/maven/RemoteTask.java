@@ -0,0 +1,308 @@
+/*
+ * Copyright Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the authors tag. All rights reserved.
+ *
+ * This copyrighted material is made available to anyone wishing to use,
+ * modify, copy, or redistribute it subject to the terms and conditions
+ * of the GNU General Public License version 2.
+ * 
+ * This particular file is subject to the "Classpath" exception as provided in the 
+ * LICENSE file that accompanied this code.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT A
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License,
+ * along with this distribution; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ */
+package org.omadac.ceylon.maven;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.codehaus.plexus.util.FileUtils;
+
+/**
+ * A Ceylon tool invocation prepared for a {@link CompileWorker}. The paths in the options are
+ * replaced by root placeholders (see {@link WorkerProtocol}): the output repository, each source
+ * or resource directory, and all local module repositories, which are merged into one repository
+ * of the archives of imported modules. The input files are the sources of the invoked modules
+ * and the files of the imported modules found in the local repositories, transitively. Invoked
+ * modules without sources, like the modules of "ceylon test", are sent from the local
+ * repositories with the modules they import, in the version given or else the latest one. Remote
+ * repositories are passed on as they are, except that the URLs of a {@link RepositoryMirror} are
+ * replaced by the repositories they mirror. Absolute paths of missing local repositories are
+ * dropped, since the worker rejects paths outside its task directory.
+ */
+public class RemoteTask {
+
+    private static final Set<String> SOURCE_OPTIONS = new HashSet<String>(Arrays.asList("--source", "--src",
+        "--resource"));
+
+    private final String tool;
+
+    private final List<String> options = new ArrayList<String>();
+
+    private final List<String> modules;
+
+    private final Map<String, File> roots = new LinkedHashMap<String, File>();
+
+    private final Map<String, File> files = new TreeMap<String, File>();
+
+    private final Map<String, String> hashes = new TreeMap<String, String>();
+
+    private final List<File> localRepositories = new ArrayList<File>();
+
+    public RemoteTask(CeylonInvocation invocation, String encoding) throws IOException, MojoExecutionException {
+        this.tool = invocation.getTool();
+        this.modules = invocation.getModules();
+
+        List<File> sourceDirs = new ArrayList<File>();
+        boolean deps = false;
+        List<String> args = invocation.getOptions();
+        for (int i = 0; i < args.size(); i++) {
+            String arg = args.get(i);
+            String value = (i + 1 < args.size()) ? args.get(i + 1) : null;
+            if ("--out".equals(arg) && value != null) {
+                File out = new File(value);
+                roots.put(WorkerProtocol.OUT, out);
+                localRepositories.add(out);
+                options.add(arg);
+                options.add(WorkerProtocol.placeholder(WorkerProtocol.OUT));
+                i++;
+            }
+            else if (SOURCE_OPTIONS.contains(arg) && value != null) {
+                String root = "source" + sourceDirs.size();
+                sourceDirs.add(new File(value));
+                roots.put(root, new File(value));
+                options.add(arg);
+                options.add(WorkerProtocol.placeholder(root));
+                i++;
+            }
+            else if ("--sysrep".equals(arg) && value != null) {
+                // the worker uses its own system repository
+                i++;
+            }
+            else if ("--rep".equals(arg) && value != null && new File(value).isDirectory()) {
+                localRepositories.add(new File(value));
+                if (!deps) {
+                    options.add(arg);
+                    options.add(WorkerProtocol.placeholder(WorkerProtocol.DEPS));
+                    deps = true;
+                }
+                i++;
+            }
+            else if ("--rep".equals(arg) && value != null && new File(value).isAbsolute()) {
+                // a missing local directory, which the worker would look up in its own file system
+                i++;
+            }
+            else if ("--rep".equals(arg) && value != null) {
+                // the repository mirror only listens on the loopback interface of the build
+                options.add(arg);
+                options.add(RepositoryMirror.getRemoteRepository(value));
+                i++;
+            }
+            else {
+                options.add(arg);
+            }
+        }
+
+        Set<String> invoked = new HashSet<String>();
+        for (String module : modules) {
+            invoked.add(getName(module));
+        }
+        Set<String> visited = new HashSet<String>();
+        for (String module : modules) {
+            String name = getName(module);
+            for (int i = 0; i < sourceDirs.size(); i++) {
+                addFiles("source" + i, ModuleGraph.getModuleDir(sourceDirs.get(i), name), "");
+            }
+            if (module.contains("/")) {
+                addModule(name, module.substring(module.indexOf('/') + 1), visited);
+                continue;
+            }
+            File descriptor = ModuleGraph.findDescriptor(sourceDirs, name);
+            if (descriptor == null) {
+                // e.g. the modules of "ceylon test", which are run from their archives
+                String version = findVersion(name);
+                if (version != null) {
+                    addModule(name, version, visited);
+                }
+                continue;
+            }
+            String content = FileUtils.fileRead(descriptor, encoding);
+            for (Map.Entry<String, String> imported : ModuleGraph.parseImportVersions(content).entrySet()) {
+                if (!invoked.contains(imported.getKey())) {
+                    addModule(imported.getKey(), imported.getValue(), visited);
+                }
+            }
+        }
+    }
+
+    private static String getName(String module) {
+        int slash = module.indexOf('/');
+        return (slash < 0) ? module : module.substring(0, slash);
+    }
+
+    /**
+     * Returns the version of the given module in the first local repository containing it, the
+     * most recently built one if there are several, or <code>null</code> if there is none.
+     */
+    private String findVersion(String module) {
+        for (File repository : localRepositories) {
+            File[] versionDirs = ModuleGraph.getModuleDir(repository, module).listFiles();
+            if (versionDirs == null) {
+                continue;
+            }
+            File latest = null;
+            for (File versionDir : versionDirs) {
+                File car = new File(versionDir, module + "-" + versionDir.getName() + ".car");
+                if (car.isFile() && (latest == null || car.lastModified() > latest.lastModified())) {
+                    latest = car;
+                }
+            }
+            if (latest != null) {
+                return latest.getParentFile().getName();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Adds the files of the given module from the first local repository containing it, and of
+     * the modules it imports.
+     */
+    private void addModule(String module, String version, Set<String> visited) throws IOException,
+        MojoExecutionException {
+        if (!visited.add(module + "/" + version)) {
+            return;
+        }
+        for (File repository : localRepositories) {
+            File versionDir = new File(ModuleGraph.getModuleDir(repository, module), version);
+            if (!versionDir.isDirectory()) {
+                continue;
+            }
+            String path = module.replace('.', '/') + "/" + version + "/";
+            addFiles(WorkerProtocol.DEPS, versionDir, path);
+            File src = new File(versionDir, module + "-" + version + ".src");
+            String descriptor = ModuleGraph.readSourceDescriptor(src, module);
+            if (descriptor != null) {
+                for (Map.Entry<String, String> imported : ModuleGraph.parseImportVersions(descriptor).entrySet()) {
+                    addModule(imported.getKey(), imported.getValue(), visited);
+                }
+            }
+            return;
+        }
+    }
+
+    private void addFiles(String root, File dir, String path) throws MojoExecutionException {
+        File[] children = dir.listFiles();
+        if (children == null) {
+            return;
+        }
+        for (File child : children) {
+            if (child.isDirectory()) {
+                addFiles(root, child, path + child.getName() + "/");
+            }
+            else {
+                String name = root + "/" + path + child.getName();
+                files.put(name, child);
+                hashes.put(name, SourceFingerprints.hash(child));
+            }
+        }
+    }
+
+    public String getTool() {
+        return tool;
+    }
+
+    public List<String> getModules() {
+        return modules;
+    }
+
+    /**
+     * Sends the task with the token of the worker, and the input files the worker is missing.
+     */
+    void send(DataInputStream in, DataOutputStream out, String token) throws IOException {
+        out.writeInt(WorkerProtocol.VERSION);
+        out.writeUTF(token);
+        out.writeUTF(tool);
+        WorkerProtocol.writeStrings(out, options);
+        WorkerProtocol.writeStrings(out, modules);
+        out.writeInt(hashes.size());
+        for (Map.Entry<String, String> entry : hashes.entrySet()) {
+            out.writeUTF(entry.getKey());
+            out.writeUTF(entry.getValue());
+        }
+        out.flush();
+
+        Map<String, File> byHash = new TreeMap<String, File>();
+        for (Map.Entry<String, String> entry : hashes.entrySet()) {
+            byHash.put(entry.getValue(), files.get(entry.getKey()));
+        }
+        for (String hash : WorkerProtocol.readStrings(in)) {
+            File file = byHash.get(hash);
+            if (file == null) {
+                throw new IOException("Worker requested unknown file " + hash);
+            }
+            WorkerProtocol.writeFile(out, file);
+        }
+        out.flush();
+    }
+
+    /**
+     * Receives the result frame of the task, writing the produced files to the output repository.
+     * 
+     * @return the exit code of the tool
+     */
+    int receive(DataInputStream in) throws IOException {
+        int exit = in.readInt();
+        int count = in.readInt();
+        File out = roots.get(WorkerProtocol.OUT);
+        for (int i = 0; i < count; i++) {
+            String path = in.readUTF();
+            if (out == null || path.contains("..")) {
+                throw new IOException("Unexpected output file " + path);
+            }
+            File target = new File(out, path);
+            File temp = new File(target.getPath() + ".part");
+            WorkerProtocol.readFile(in, temp);
+            // replaces the file instead of writing through hard links to installed copies
+            Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        return exit;
+    }
+
+    /**
+     * Replaces the root placeholders in the output of the worker by the local directories.
+     */
+    String toLocal(String text) {
+        for (Map.Entry<String, File> root : roots.entrySet()) {
+            if (root.getValue() != null) {
+                text = WorkerProtocol.replace(text, WorkerProtocol.placeholder(root.getKey()), root.getValue()
+                    .getPath());
+            }
+        }
+        return text;
+    }
+
+    @Override
+    public String toString() {
+        return tool + " " + modules + " (" + files.size() + " files)";
+    }
+}
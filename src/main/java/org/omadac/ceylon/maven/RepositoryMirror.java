@@ -0,0 +1,431 @@
+/*
+ * Copyright Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the authors tag. All rights reserved.
+ *
+ * This copyrighted material is made available to anyone wishing to use,
+ * modify, copy, or redistribute it subject to the terms and conditions
+ * of the GNU General Public License version 2.
+ * 
+ * This particular file is subject to the "Classpath" exception as provided in the 
+ * LICENSE file that accompanied this code.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT A
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License,
+ * along with this distribution; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ */
+package org.omadac.ceylon.maven;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.maven.plugin.logging.Log;
+import org.codehaus.plexus.util.IOUtil;
+
+import com.redhat.ceylon.common.Constants;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Local HTTP mirror for remote Ceylon module repositories. Remote repository URLs are replaced
+ * by URLs of a server on the loopback interface, which answers lookups from a disk cache and
+ * only contacts the remote repository when there is no cache entry younger than the TTL.
+ * Missing modules (404 responses) are cached as well, with a separate TTL.
+ * <p>
+ * There is one mirror per cache directory and cache settings, shared by all mojo executions in
+ * the JVM. Mirrors with different settings may share a cache directory. All mirrors are stopped
+ * when the JVM exits.
+ */
+public class RepositoryMirror {
+
+    private static final List<RepositoryMirror> instances = new ArrayList<RepositoryMirror>();
+
+    private static Thread shutdownHook;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final File cacheDir;
+
+    private final List<String> remoteUrls = new ArrayList<String>();
+
+    private final HttpServer server;
+
+    private final ExecutorService executor;
+
+    private final long ttl;
+
+    private final long negativeTtl;
+
+    private final boolean offline;
+
+    private final Log log;
+
+    private RepositoryMirror(File cacheDir, long ttl, long negativeTtl, boolean offline, Log log)
+        throws IOException {
+        this.cacheDir = cacheDir;
+        this.ttl = ttl;
+        this.negativeTtl = negativeTtl;
+        this.offline = offline;
+        this.log = log;
+        cacheDir.mkdirs();
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", new MirrorHandler());
+        executor = Executors.newCachedThreadPool(new ThreadFactory() {
+
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "ceylon-repository-mirror");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    /**
+     * Returns the mirror for the given cache directory and settings, starting it if required.
+     * 
+     * @param ttl
+     *            time in seconds for which a cached module lookup is considered up to date
+     * @param negativeTtl
+     *            time in seconds for which a failed module lookup is considered up to date
+     * @param offline
+     *            if <code>true</code>, lookups are answered from the cache only
+     */
+    public static synchronized RepositoryMirror getInstance(File cacheDir, long ttl,
+        long negativeTtl, boolean offline, Log log) throws IOException {
+        File dir = cacheDir.getAbsoluteFile();
+        for (RepositoryMirror instance : instances) {
+            if (instance.cacheDir.equals(dir) && instance.ttl == ttl * 1000
+                && instance.negativeTtl == negativeTtl * 1000 && instance.offline == offline) {
+                return instance;
+            }
+        }
+        RepositoryMirror mirror = new RepositoryMirror(dir, ttl * 1000, negativeTtl * 1000, offline, log);
+        instances.add(mirror);
+        if (shutdownHook == null) {
+            shutdownHook = new Thread("ceylon-repository-mirror-shutdown") {
+
+                @Override
+                public void run() {
+                    stopAll();
+                }
+            };
+            Runtime.getRuntime().addShutdownHook(shutdownHook);
+        }
+        log.debug("Started repository mirror on port " + mirror.getPort());
+        return mirror;
+    }
+
+    /**
+     * Stops all running mirrors.
+     */
+    static synchronized void stopAll() {
+        for (RepositoryMirror instance : instances) {
+            instance.server.stop(0);
+            instance.executor.shutdownNow();
+        }
+        instances.clear();
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * Returns the URL of the mirror for the given repository, or the repository itself if it is
+     * not a remote HTTP repository.
+     */
+    public synchronized String mirror(String repository) {
+        if (!repository.startsWith("http://") && !repository.startsWith("https://")) {
+            return repository;
+        }
+        String base = repository.endsWith("/") ? repository : repository + "/";
+        int index = remoteUrls.indexOf(base);
+        if (index < 0) {
+            index = remoteUrls.size();
+            remoteUrls.add(base);
+        }
+        return "http://127.0.0.1:" + getPort() + "/" + index + "/";
+    }
+
+    /**
+     * Returns the remote repository mirrored by the given URL of a running mirror, or the given
+     * repository if it is not such a URL, e.g. for tools running on other machines.
+     */
+    public static synchronized String getRemoteRepository(String repository) {
+        for (RepositoryMirror instance : instances) {
+            String base = "http://127.0.0.1:" + instance.getPort();
+            if (repository.startsWith(base + "/")) {
+                String remoteUrl = instance.getRemoteUrl(repository.substring(base.length()));
+                if (remoteUrl != null) {
+                    return remoteUrl;
+                }
+            }
+        }
+        return repository;
+    }
+
+    /**
+     * Builds the repository options for a Ceylon tool, replacing remote repositories by their
+     * mirrors. Unless disabled, the default repositories are replaced by the user repository and
+     * the mirrored Ceylon Herd, since the tools would otherwise query Herd directly.
+     */
+    public List<String> buildRepositoryOptions(List<String> repositories, boolean disableDefaultRepos) {
+        List<String> args = new ArrayList<String>();
+        args.add("--no-default-repositories");
+        if (repositories != null) {
+            for (String repository : repositories) {
+                args.add("--rep");
+                args.add(mirror(repository));
+            }
+        }
+        if (!disableDefaultRepos) {
+            args.add("--rep");
+            args.add(getUserRepository());
+            args.add("--rep");
+            args.add(mirror(Constants.REPO_URL_CEYLON));
+        }
+        return args;
+    }
+
+    private static String getUserRepository() {
+        String userRepo = System.getProperty(Constants.PROP_CEYLON_USER_REPO);
+        if (userRepo == null) {
+            userRepo = new File(new File(System.getProperty("user.home"), ".ceylon"), "repo").getPath();
+        }
+        return userRepo;
+    }
+
+    private synchronized String getRemoteUrl(String path) {
+        // path is "/<index>/<rest>"
+        int slash = path.indexOf('/', 1);
+        if (slash < 0) {
+            return null;
+        }
+        try {
+            int index = Integer.parseInt(path.substring(1, slash));
+            return (index < remoteUrls.size()) ? remoteUrls.get(index) + path.substring(slash + 1) : null;
+        }
+        catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private File getEntry(String url) {
+        String key = Hex.encodeHexString(Digester.getDigester("SHA-1").digest(url.getBytes(UTF8)));
+        return new File(new File(cacheDir, key.substring(0, 2)), key);
+    }
+
+    /**
+     * Returns the cached response for the given URL, fetching it from the remote repository when
+     * the cache entry is missing or expired. A stale entry is used if the repository cannot be
+     * reached.
+     */
+    CacheEntry lookup(String url) throws IOException {
+        File file = getEntry(url);
+        CacheEntry entry = CacheEntry.read(file);
+        long now = System.currentTimeMillis();
+        if (entry != null) {
+            long maxAge = (entry.status == HttpURLConnection.HTTP_OK) ? ttl : negativeTtl;
+            if (offline || now - entry.timestamp < maxAge) {
+                return entry;
+            }
+        }
+        else if (offline) {
+            return new CacheEntry(file, HttpURLConnection.HTTP_NOT_FOUND, null, now);
+        }
+
+        try {
+            return fetch(url, file);
+        }
+        catch (IOException e) {
+            if (entry != null) {
+                log.debug("Using stale cache entry for " + url + ": " + e.getMessage());
+                return entry;
+            }
+            throw e;
+        }
+    }
+
+    private CacheEntry fetch(String url, File file) throws IOException {
+        log.debug("Fetching " + url);
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        int status = connection.getResponseCode();
+        if (status == HttpURLConnection.HTTP_NOT_FOUND || status == HttpURLConnection.HTTP_GONE) {
+            connection.disconnect();
+            CacheEntry entry = new CacheEntry(file, HttpURLConnection.HTTP_NOT_FOUND, null, System.currentTimeMillis());
+            entry.write(null);
+            return entry;
+        }
+        if (status != HttpURLConnection.HTTP_OK) {
+            connection.disconnect();
+            throw new IOException("Unexpected status " + status + " for " + url);
+        }
+        InputStream is = connection.getInputStream();
+        try {
+            CacheEntry entry = new CacheEntry(file, status, connection.getContentType(), System.currentTimeMillis());
+            entry.write(is);
+            return entry;
+        }
+        finally {
+            IOUtil.close(is);
+        }
+    }
+
+    /**
+     * Cached response of the remote repository, stored as a data file and a properties file.
+     */
+    static class CacheEntry {
+
+        final File file;
+
+        final int status;
+
+        final String contentType;
+
+        final long timestamp;
+
+        CacheEntry(File file, int status, String contentType, long timestamp) {
+            this.file = file;
+            this.status = status;
+            this.contentType = contentType;
+            this.timestamp = timestamp;
+        }
+
+        static CacheEntry read(File file) throws IOException {
+            File metaFile = new File(file.getPath() + ".properties");
+            if (!metaFile.isFile()) {
+                return null;
+            }
+            Properties props = new Properties();
+            InputStream is = new FileInputStream(metaFile);
+            try {
+                props.load(is);
+            }
+            finally {
+                IOUtil.close(is);
+            }
+            int status = Integer.parseInt(props.getProperty("status"));
+            if (status == HttpURLConnection.HTTP_OK && !file.isFile()) {
+                return null;
+            }
+            return new CacheEntry(file, status, props.getProperty("contentType"),
+                Long.parseLong(props.getProperty("timestamp")));
+        }
+
+        void write(InputStream data) throws IOException {
+            file.getParentFile().mkdirs();
+            if (data != null) {
+                // write to a temporary file first, concurrent readers must never see partial data
+                File tmpFile = File.createTempFile(file.getName(), ".tmp", file.getParentFile());
+                OutputStream os = new FileOutputStream(tmpFile);
+                try {
+                    IOUtil.copy(data, os);
+                }
+                finally {
+                    IOUtil.close(os);
+                }
+                move(tmpFile, file);
+            }
+            Properties props = new Properties();
+            props.setProperty("status", Integer.toString(status));
+            props.setProperty("timestamp", Long.toString(timestamp));
+            if (contentType != null) {
+                props.setProperty("contentType", contentType);
+            }
+            File metaFile = new File(file.getPath() + ".properties");
+            File tmpFile = File.createTempFile(metaFile.getName(), ".tmp", file.getParentFile());
+            OutputStream os = new FileOutputStream(tmpFile);
+            try {
+                props.store(os, null);
+            }
+            finally {
+                IOUtil.close(os);
+            }
+            move(tmpFile, metaFile);
+        }
+
+        private static void move(File tmpFile, File target) throws IOException {
+            try {
+                Files.move(tmpFile.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            }
+            catch (IOException e) {
+                tmpFile.delete();
+                throw new IOException("Cannot write " + target, e);
+            }
+        }
+    }
+
+    private class MirrorHandler implements HttpHandler {
+
+        public void handle(HttpExchange exchange) throws IOException {
+            try {
+                String method = exchange.getRequestMethod();
+                String url = getRemoteUrl(exchange.getRequestURI().getRawPath());
+                if (url != null && exchange.getRequestURI().getRawQuery() != null) {
+                    url += "?" + exchange.getRequestURI().getRawQuery();
+                }
+                if (url == null || !("GET".equals(method) || "HEAD".equals(method))) {
+                    exchange.sendResponseHeaders(HttpURLConnection.HTTP_BAD_METHOD, -1);
+                    return;
+                }
+
+                CacheEntry entry;
+                try {
+                    entry = lookup(url);
+                }
+                catch (IOException e) {
+                    log.warn("Cannot fetch " + url + ": " + e.getMessage());
+                    exchange.sendResponseHeaders(HttpURLConnection.HTTP_BAD_GATEWAY, -1);
+                    return;
+                }
+
+                if (entry.status != HttpURLConnection.HTTP_OK) {
+                    exchange.sendResponseHeaders(entry.status, -1);
+                    return;
+                }
+                if (entry.contentType != null) {
+                    exchange.getResponseHeaders().set("Content-Type", entry.contentType);
+                }
+                if ("HEAD".equals(method)) {
+                    exchange.getResponseHeaders().set("Content-Length", Long.toString(entry.file.length()));
+                    exchange.sendResponseHeaders(HttpURLConnection.HTTP_OK, -1);
+                    return;
+                }
+                exchange.sendResponseHeaders(HttpURLConnection.HTTP_OK, entry.file.length());
+                InputStream is = new FileInputStream(entry.file);
+                try {
+                    IOUtil.copy(is, exchange.getResponseBody());
+                }
+                finally {
+                    IOUtil.close(is);
+                }
+            }
+            finally {
+                exchange.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,248 @@
+/*
+ * Copyright Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the authors tag. All rights reserved.
+ *
+ * This copyrighted material is made available to anyone wishing to use,
+ * modify, copy, or redistribute it subject to the terms and conditions
+ * of the GNU General Public License version 2.
+ * 
+ * This particular file is subject to the "Classpath" exception as provided in the 
+ * LICENSE file that accompanied this code.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT A
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License,
+ * along with this distribution; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ */
+package org.omadac.ceylon.maven;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.codehaus.plexus.util.FileUtils;
+
+/**
+ * Fingerprints of the sources of Ceylon modules, used by the compile and doc goals to skip modules
+ * which have not changed since they were last compiled by a backend or documented. The fingerprint
+ * of a module covers the files in its source and resource directories (excluding nested modules),
+ * the fingerprints of the modules it imports from the same source directories, and the size and
+ * modification time of the archives of other imported modules found in the local repositories. The
+ * fingerprints recorded per backend and module are stored as properties in the build directory.
+ * <p>
+ * File hashes are cached by path, size and modification time for the lifetime of the JVM, so the
+ * sources are only read once when several backends compile the same modules.
+ */
+public class SourceFingerprints {
+
+    public static final String FILE_NAME = "ceylon-source-fingerprints.properties";
+
+    public static final String JVM = "jvm";
+
+    public static final String JS = "js";
+
+    public static final String DOC = "doc";
+
+    private static final Map<String, String> FILE_HASHES = new ConcurrentHashMap<String, String>();
+
+    private final File file;
+
+    private final List<File> sourceDirs;
+
+    private final List<File> repositories;
+
+    private final String encoding;
+
+    private final Properties recorded;
+
+    private final Map<String, String> fingerprints = new HashMap<String, String>();
+
+    /**
+     * @param sourceDirs the source and resource directories of the modules
+     * @param repositories local repositories searched for imported modules
+     */
+    public SourceFingerprints(String buildDir, List<File> sourceDirs, List<File> repositories, String encoding)
+        throws IOException {
+        this.file = new File(buildDir, FILE_NAME);
+        this.sourceDirs = sourceDirs;
+        this.repositories = repositories;
+        this.encoding = encoding;
+        this.recorded = BuildMetrics.load(file);
+    }
+
+    /**
+     * Returns the modules which the given backend has to compile: those whose fingerprint or
+     * compiler options differ from the last successful compilation, or whose archive is missing
+     * from the output repository.
+     * 
+     * @param options the compiler options, without the modules
+     */
+    public synchronized List<String> getChangedModules(String backend, List<String> modules, List<String> options,
+        File out) throws IOException, MojoExecutionException {
+        List<String> changed = new ArrayList<String>();
+        for (String module : modules) {
+            String key = getKey(module, options);
+            if (key == null || !key.equals(recorded.getProperty(backend + "." + module))
+                || !getOutputArchive(backend, module, out).isFile()) {
+                changed.add(module);
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Records the successful compilation of the given modules by the given backend.
+     */
+    public synchronized void record(String backend, List<String> modules, List<String> options)
+        throws IOException, MojoExecutionException {
+        for (String module : modules) {
+            String key = getKey(module, options);
+            if (key == null) {
+                recorded.remove(backend + "." + module);
+            }
+            else {
+                recorded.setProperty(backend + "." + module, key);
+            }
+        }
+    }
+
+    /**
+     * Forgets the given modules, e.g. after a failed compilation, so they are compiled again.
+     */
+    public synchronized void forget(String backend, List<String> modules) {
+        for (String module : modules) {
+            recorded.remove(backend + "." + module);
+        }
+    }
+
+    public synchronized void store() throws IOException {
+        BuildMetrics.store(file, recorded);
+    }
+
+    private String getKey(String module, List<String> options) throws IOException, MojoExecutionException {
+        String fingerprint = getFingerprint(module, new HashSet<String>());
+        if (fingerprint == null) {
+            return null;
+        }
+        StringBuilder key = new StringBuilder(fingerprint);
+        for (String option : options) {
+            key.append('\n').append(option);
+        }
+        return sha1(key.toString());
+    }
+
+    /**
+     * Returns the fingerprint of the given module, or <code>null</code> if its descriptor cannot
+     * be found.
+     */
+    String getFingerprint(String module, Set<String> visiting) throws IOException, MojoExecutionException {
+        String fingerprint = fingerprints.get(module);
+        if (fingerprint != null) {
+            return fingerprint;
+        }
+        File descriptor = ModuleGraph.findDescriptor(sourceDirs, module);
+        if (descriptor == null || !visiting.add(module)) {
+            return null;
+        }
+        StringBuilder content = new StringBuilder();
+        for (File sourceDir : sourceDirs) {
+            File moduleDir = ModuleGraph.getModuleDir(sourceDir, module);
+            addFiles(content, moduleDir, moduleDir.getPath().length() + 1, true);
+        }
+        Map<String, String> imports = ModuleGraph.parseImportVersions(FileUtils.fileRead(descriptor, encoding));
+        for (Map.Entry<String, String> imported : imports.entrySet()) {
+            String importedFingerprint = getFingerprint(imported.getKey(), visiting);
+            if (importedFingerprint == null) {
+                importedFingerprint = getArchiveStamp(imported.getKey(), imported.getValue());
+            }
+            content.append("import ").append(imported.getKey()).append('=').append(importedFingerprint).append('\n');
+        }
+        visiting.remove(module);
+        fingerprint = sha1(content.toString());
+        fingerprints.put(module, fingerprint);
+        return fingerprint;
+    }
+
+    private static void addFiles(StringBuilder content, File dir, int prefixLength, boolean moduleRoot)
+        throws MojoExecutionException {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        if (!moduleRoot && new File(dir, "module.ceylon").isFile()) {
+            // a nested module
+            return;
+        }
+        Arrays.sort(files);
+        for (File child : files) {
+            if (child.isDirectory()) {
+                addFiles(content, child, prefixLength, false);
+            }
+            else {
+                content.append(child.getPath().substring(prefixLength)).append('=').append(hash(child)).append('\n');
+            }
+        }
+    }
+
+    static String hash(File file) throws MojoExecutionException {
+        String stamp = file.getAbsolutePath() + "|" + file.length() + "|" + file.lastModified();
+        String hash = FILE_HASHES.get(stamp);
+        if (hash == null) {
+            Digester digester = new Digester();
+            digester.calculate(file);
+            hash = digester.getSha1();
+            FILE_HASHES.put(stamp, hash);
+        }
+        return hash;
+    }
+
+    /**
+     * Identifies an imported module which is not compiled from source by the size and
+     * modification time of its archive in the local repositories, or by its version only.
+     */
+    private String getArchiveStamp(String module, String version) {
+        for (File repository : repositories) {
+            File versionDir = new File(ModuleGraph.getModuleDir(repository, module), version);
+            for (String suffix : new String[] { ".car", ".js", ".jar" }) {
+                File archive = new File(versionDir, module + "-" + version + suffix);
+                if (archive.isFile()) {
+                    return version + "|" + archive.length() + "|" + archive.lastModified();
+                }
+            }
+        }
+        return version;
+    }
+
+    /**
+     * Returns the archive which the given backend writes for a module to the output repository, or
+     * the index page of the module documentation.
+     */
+    File getOutputArchive(String backend, String module, File out) throws IOException {
+        File descriptor = ModuleGraph.findDescriptor(sourceDirs, module);
+        String version = (descriptor == null) ? null : ModuleGraph.parseVersion(FileUtils.fileRead(descriptor,
+            encoding));
+        File versionDir = new File(ModuleGraph.getModuleDir(out, module), String.valueOf(version));
+        if (DOC.equals(backend)) {
+            return new File(new File(versionDir, "module-doc"), "index.html");
+        }
+        String suffix = JS.equals(backend) ? ".js" : ".car";
+        return new File(versionDir, module + "-" + version + suffix);
+    }
+
+    private static String sha1(String text) throws IOException {
+        return Hex.encodeHexString(Digester.getDigester("SHA-1").digest(text.getBytes("UTF-8")));
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the authors tag. All rights reserved.
+ *
+ * This copyrighted material is made available to anyone wishing to use,
+ * modify, copy, or redistribute it subject to the terms and conditions
+ * of the GNU General Public License version 2.
+ * 
+ * This particular file is subject to the "Classpath" exception as provided in the 
+ * LICENSE file that accompanied this code.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT A
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License,
+ * along with this distribution; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ */
+package org.omadac.ceylon.maven;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.logging.Log;
+
+/**
+ * Results of previous test runs, stored as properties in the build directory. The key of a test
+ * module is a hash of its archive, of the archives of all modules it imports (transitively, as
+ * resolved from the local module repositories), of the test filter, the Ceylon version and the
+ * system repository. Modules imported from other repositories are identified by name and version
+ * only. The imports are read from the source archives, so modules without one are not cached.
+ */
+public class TestResultCache {
+
+    public static final String FILE_NAME = "ceylon-test-cache.properties";
+
+    private static final String PASSED = "passed";
+
+    private final File file;
+
+    private final List<File> repositories;
+
+    private final String filter;
+
+    private final String ceylonVersion;
+
+    private final String systemRepository;
+
+    private final Log log;
+
+    private final Properties results;
+
+    private final Map<File, String> hashes = new HashMap<File, String>();
+
+    /**
+     * @param systemRepository
+     *            the system repository of the tests, or <code>null</code> for the one of the
+     *            Ceylon distribution
+     */
+    public TestResultCache(String buildDir, List<File> repositories, String filter, String ceylonVersion,
+        String systemRepository, Log log) throws IOException {
+        this.file = new File(buildDir, FILE_NAME);
+        this.repositories = repositories;
+        this.filter = filter;
+        this.ceylonVersion = ceylonVersion;
+        this.systemRepository = systemRepository;
+        this.log = log;
+        this.results = BuildMetrics.load(file);
+    }
+
+    /**
+     * Computes the key of the given test module, or returns <code>null</code> if the module or the
+     * descriptor of one of its imports cannot be found in the local repositories. The reason is
+     * logged at debug level.
+     */
+    public String computeKey(String module) throws IOException, MojoExecutionException {
+        SortedMap<String, String> entries = new TreeMap<String, String>();
+        Deque<String[]> pending = new ArrayDeque<String[]>();
+        for (File repository : repositories) {
+            File[] versionDirs = ModuleGraph.getModuleDir(repository, module).listFiles();
+            if (versionDirs == null) {
+                continue;
+            }
+            for (File versionDir : versionDirs) {
+                if (getArchive(versionDir, module, versionDir.getName(), ".car").isFile()) {
+                    pending.add(new String[] { module, versionDir.getName() });
+                }
+            }
+        }
+        if (pending.isEmpty()) {
+            log.debug(module + ": not cached, no archive in the local repositories");
+            return null;
+        }
+
+        while (!pending.isEmpty()) {
+            String[] moduleVersion = pending.remove();
+            String name = moduleVersion[0] + "/" + moduleVersion[1];
+            if (entries.containsKey(name)) {
+                continue;
+            }
+            File car = findArchive(moduleVersion[0], moduleVersion[1], ".car");
+            if (car != null) {
+                String descriptor = readDescriptor(car, moduleVersion[0], moduleVersion[1]);
+                if (descriptor == null) {
+                    log.debug(module + ": not cached, no source archive with the descriptor of " + name);
+                    return null;
+                }
+                entries.put(name, hash(car));
+                for (Map.Entry<String, String> imported : ModuleGraph.parseImportVersions(descriptor).entrySet()) {
+                    pending.add(new String[] { imported.getKey(), imported.getValue() });
+                }
+                continue;
+            }
+            File jar = findArchive(moduleVersion[0], moduleVersion[1], ".jar");
+            entries.put(name, (jar == null) ? "external" : hash(jar));
+        }
+
+        StringBuilder key = new StringBuilder("test=").append((filter == null) ? "" : filter).append('\n');
+        key.append("ceylon=").append(ceylonVersion).append('\n');
+        key.append("sysrep=").append((systemRepository == null) ? "" : systemRepository).append('\n');
+        for (Map.Entry<String, String> entry : entries.entrySet()) {
+            key.append(entry.getKey()).append('=').append(entry.getValue()).append('\n');
+        }
+        return Hex.encodeHexString(Digester.getDigester("SHA-1").digest(key.toString().getBytes("UTF-8")));
+    }
+
+    /**
+     * Returns <code>true</code> if the tests of the given module passed with the same key.
+     */
+    public boolean isPassed(String module, String key) {
+        return key != null && key.equals(results.getProperty(module + ".key"))
+            && PASSED.equals(results.getProperty(module + ".outcome"));
+    }
+
+    public void record(String module, String key, boolean passed) {
+        if (key == null) {
+            results.remove(module + ".key");
+            results.remove(module + ".outcome");
+            return;
+        }
+        results.setProperty(module + ".key", key);
+        results.setProperty(module + ".outcome", passed ? PASSED : "failed");
+    }
+
+    public void store() throws IOException {
+        BuildMetrics.store(file, results);
+    }
+
+    private File findArchive(String module, String version, String suffix) {
+        for (File repository : repositories) {
+            File archive = getArchive(new File(ModuleGraph.getModuleDir(repository, module), version), module,
+                version, suffix);
+            if (archive.isFile()) {
+                return archive;
+            }
+        }
+        return null;
+    }
+
+    private static File getArchive(File versionDir, String module, String version, String suffix) {
+        return new File(versionDir, module + "-" + version + suffix);
+    }
+
+    /**
+     * Reads the module descriptor from the source archive next to the given module archive.
+     */
+    private static String readDescriptor(File car, String module, String version) throws IOException {
+        return ModuleGraph.readSourceDescriptor(getArchive(car.getParentFile(), module, version, ".src"), module);
+    }
+
+    private String hash(File archive) throws MojoExecutionException {
+        String hash = hashes.get(archive);
+        if (hash == null) {
+            Digester digester = new Digester();
+            digester.calculate(archive);
+            hash = digester.getSha1();
+            hashes.put(archive, hash);
+        }
+        return hash;
+    }
+}
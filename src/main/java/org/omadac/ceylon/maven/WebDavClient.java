@@ -0,0 +1,165 @@
+/*
+ * Copyright Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the authors tag. All rights reserved.
+ *
+ * This copyrighted material is made available to anyone wishing to use,
+ * modify, copy, or redistribute it subject to the terms and conditions
+ * of the GNU General Public License version 2.
+ * 
+ * This particular file is subject to the "Classpath" exception as provided in the 
+ * LICENSE file that accompanied this code.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT A
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License,
+ * along with this distribution; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ */
+package org.omadac.ceylon.maven;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.codehaus.plexus.util.IOUtil;
+
+import com.redhat.ceylon.launcher.Launcher;
+
+/**
+ * Minimal WebDAV client for remote Ceylon repositories. It uses the Sardine library bundled with
+ * the Ceylon distribution (which "ceylon compile" uses for HTTP output repositories), loaded via
+ * the {@link Launcher} class loader, which is held until the client is closed. Sardine keeps a pool
+ * of persistent connections and may be used by several threads at once.
+ */
+public class WebDavClient implements Closeable {
+
+    private final Object sardine;
+
+    private final Method existsMethod;
+
+    private final Method createDirectoryMethod;
+
+    private final Method putMethod;
+
+    private final Method getMethod;
+
+    private final Set<String> knownDirectories = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    private final ConcurrentMap<String, Object> directoryLocks = new ConcurrentHashMap<String, Object>();
+
+    private boolean closed;
+
+    public WebDavClient(String username, String password) throws Exception {
+        Thread currentThread = Thread.currentThread();
+        ClassLoader previousLoader = currentThread.getContextClassLoader();
+        ClassLoader loader;
+        try {
+            loader = Launcher.acquireClassLoader();
+        }
+        finally {
+            currentThread.setContextClassLoader(previousLoader);
+        }
+        try {
+            Class<?> factoryClass = loader.loadClass("com.googlecode.sardine.SardineFactory");
+            Class<?> sardineClass = loader.loadClass("com.googlecode.sardine.Sardine");
+            sardine = factoryClass.getMethod("begin", String.class, String.class).invoke(null, username, password);
+            existsMethod = sardineClass.getMethod("exists", String.class);
+            createDirectoryMethod = sardineClass.getMethod("createDirectory", String.class);
+            putMethod = sardineClass.getMethod("put", String.class, InputStream.class);
+            getMethod = sardineClass.getMethod("get", String.class);
+        }
+        catch (Exception e) {
+            close();
+            throw e;
+        }
+    }
+
+    public boolean exists(String url) throws IOException {
+        return (Boolean) invoke(existsMethod, url);
+    }
+
+    /**
+     * Creates the collection with the given URL and any missing parent collections below the
+     * given base URL.
+     */
+    public void createDirectories(String baseUrl, String url) throws IOException {
+        if (!url.startsWith(baseUrl) || url.length() <= baseUrl.length() || knownDirectories.contains(url)) {
+            return;
+        }
+        String parent = url.substring(0, url.lastIndexOf('/', url.length() - 2) + 1);
+        createDirectories(baseUrl, parent);
+        // only uploads to the same directory wait for each other
+        Object lock = new Object();
+        Object existing = directoryLocks.putIfAbsent(url, lock);
+        synchronized (existing != null ? existing : lock) {
+            if (!knownDirectories.contains(url)) {
+                if (!exists(url)) {
+                    invoke(createDirectoryMethod, url);
+                }
+                knownDirectories.add(url);
+            }
+        }
+    }
+
+    public void put(String url, File file) throws IOException {
+        InputStream is = new FileInputStream(file);
+        try {
+            invoke(putMethod, url, is);
+        }
+        finally {
+            IOUtil.close(is);
+        }
+    }
+
+    /**
+     * Returns the content of the given URL as a string, or <code>null</code> if it does not exist.
+     */
+    public String getString(String url) throws IOException {
+        if (!exists(url)) {
+            return null;
+        }
+        InputStream is = (InputStream) invoke(getMethod, url);
+        try {
+            return IOUtil.toString(is, "UTF-8");
+        }
+        finally {
+            IOUtil.close(is);
+        }
+    }
+
+    private Object invoke(Method method, Object... args) throws IOException {
+        try {
+            return method.invoke(sardine, args);
+        }
+        catch (InvocationTargetException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException(method.getName() + " failed: " + cause, cause);
+        }
+        catch (IllegalAccessException e) {
+            throw new IOException(method.getName() + " failed", e);
+        }
+    }
+
+    /**
+     * Gives back the {@link Launcher} class loader, so that it can be released.
+     */
+    public synchronized void close() throws IOException {
+        if (!closed) {
+            closed = true;
+            Launcher.returnClassLoader();
+        }
+    }
+}
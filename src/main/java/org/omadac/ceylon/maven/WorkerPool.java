@@ -0,0 +1,270 @@
+/*
+ * Copyright Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the authors tag. All rights reserved.
+ *
+ * This copyrighted material is made available to anyone wishing to use,
+ * modify, copy, or redistribute it subject to the terms and conditions
+ * of the GNU General Public License version 2.
+ * 
+ * This particular file is subject to the "Classpath" exception as provided in the 
+ * LICENSE file that accompanied this code.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT A
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License,
+ * along with this distribution; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ */
+package org.omadac.ceylon.maven;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.maven.plugin.logging.Log;
+
+import com.redhat.ceylon.common.Constants;
+
+/**
+ * Pool of {@link CompileWorker} processes to which the goals send Ceylon tool invocations, see
+ * {@link RemoteTask}. Each worker runs one task at a time. Workers are given as
+ * <code>host:port</code>, or as <code>local:n</code> to start n worker processes on this machine,
+ * which stand in for remote workers, e.g. for testing. Workers given as <code>host:port</code>
+ * require a shared token; local workers get a random token from the pool. A worker which cannot
+ * be reached is removed from the pool. If no worker is left or a worker fails, the caller runs the
+ * task locally.
+ * <p>
+ * There is one pool per plugin class loader, shared by all goal executions of a build.
+ */
+public class WorkerPool {
+
+    private static final int CONNECT_TIMEOUT = 5000;
+
+    private static WorkerPool instance;
+
+    private final List<String> config;
+
+    private final String token;
+
+    private final String localToken;
+
+    private final Set<String> localWorkers = new HashSet<String>();
+
+    private final Queue<String> idle = new ArrayDeque<String>();
+
+    private final List<Process> processes = new ArrayList<Process>();
+
+    private int alive;
+
+    WorkerPool(List<String> config, String token, String home, Log log) throws IOException {
+        this.config = new ArrayList<String>(config);
+        this.token = token;
+        byte[] random = new byte[20];
+        new SecureRandom().nextBytes(random);
+        this.localToken = Hex.encodeHexString(random);
+        for (String worker : config) {
+            if (worker.startsWith("local:")) {
+                int count = Integer.parseInt(worker.substring("local:".length()));
+                for (int i = 0; i < count; i++) {
+                    String local = "localhost:" + startLocalWorker(home, log);
+                    localWorkers.add(local);
+                    idle.add(local);
+                }
+            }
+            else if (token == null || token.isEmpty()) {
+                throw new IOException("A worker token is required for worker " + worker);
+            }
+            else {
+                idle.add(worker);
+            }
+        }
+        alive = idle.size();
+    }
+
+    /**
+     * Returns the worker pool of the build for the given workers, replacing a pool with other
+     * workers.
+     * 
+     * @param token token shared with the workers given as <code>host:port</code>
+     */
+    public static synchronized WorkerPool getInstance(List<String> workers, String token, String home, Log log)
+        throws IOException {
+        if (instance == null || !instance.config.equals(workers)
+            || !(token == null ? instance.token == null : token.equals(instance.token))) {
+            if (instance != null) {
+                instance.shutdown();
+            }
+            instance = new WorkerPool(workers, token, home, log);
+            final WorkerPool pool = instance;
+            Runtime.getRuntime().addShutdownHook(new Thread() {
+
+                @Override
+                public void run() {
+                    pool.shutdown();
+                }
+            });
+        }
+        return instance;
+    }
+
+    private int startLocalWorker(String home, Log log) throws IOException {
+        List<String> command = new ArrayList<String>();
+        command.add(ForkedLauncher.getJavaExecutable());
+        if (home != null) {
+            command.add("-D" + Constants.PROP_CEYLON_HOME_DIR + "=" + home);
+        }
+        command.add("-cp");
+        command.add(ForkedLauncher.getLauncherClassPath());
+        command.add(CompileWorker.class.getName());
+        log.debug("Starting compile worker: " + command);
+        ProcessBuilder builder = new ProcessBuilder(command);
+        // passed in the environment, as command lines are visible to other users
+        builder.environment().put(WorkerProtocol.TOKEN_ENV, localToken);
+        builder.redirectError(ProcessBuilder.Redirect.INHERIT);
+        final Process process = builder.start();
+        processes.add(process);
+        BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), "UTF-8"));
+        String line = reader.readLine();
+        if (line == null || !line.startsWith(CompileWorker.READY)) {
+            process.destroy();
+            throw new IOException("Compile worker did not start: " + line);
+        }
+        return Integer.parseInt(line.substring(CompileWorker.READY.length()).trim());
+    }
+
+    /**
+     * Runs the given task on an idle worker, waiting for one if all are busy. The output of the
+     * tool is passed to the given output as the worker sends it, or logged if the output is
+     * <code>null</code>. Cancelling the output closes the connection, which stops the task on
+     * the worker.
+     * 
+     * @return the exit code of the tool, <code>1</code> if the output has been cancelled, or
+     *         <code>null</code> if no worker could run the task
+     */
+    public Integer run(RemoteTask task, ModuleOutput output, Log log) throws InterruptedException {
+        while (true) {
+            String worker = acquire();
+            if (worker == null) {
+                return null;
+            }
+            int exitCode;
+            try {
+                log.debug("Sending " + task + " to worker " + worker);
+                exitCode = exchange(worker, task, output, log);
+            }
+            catch (IOException e) {
+                if (output != null && output.isCancelled()) {
+                    release(worker);
+                    return 1;
+                }
+                log.warn("Compile worker " + worker + " failed, removing it: " + e);
+                remove();
+                continue;
+            }
+            release(worker);
+            if (exitCode == WorkerProtocol.WORKER_ERROR) {
+                log.warn("Compile worker " + worker + " could not run " + task);
+                return null;
+            }
+            return exitCode;
+        }
+    }
+
+    private int exchange(String worker, RemoteTask task, ModuleOutput output, Log log) throws IOException {
+        int colon = worker.lastIndexOf(':');
+        if (colon < 0) {
+            throw new IOException("Worker address without port");
+        }
+        final Socket socket = new Socket();
+        if (output != null) {
+            output.setCancellation(new Runnable() {
+
+                public void run() {
+                    try {
+                        socket.close();
+                    }
+                    catch (IOException e) {
+                        // already closed
+                    }
+                }
+            });
+        }
+        try {
+            socket.connect(new InetSocketAddress(worker.substring(0, colon),
+                Integer.parseInt(worker.substring(colon + 1))), CONNECT_TIMEOUT);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            task.send(in, out, localWorkers.contains(worker) ? localToken : token);
+            while (true) {
+                int type = in.readByte();
+                if (type == WorkerProtocol.RESULT) {
+                    return task.receive(in);
+                }
+                boolean error = type == WorkerProtocol.STDERR;
+                String line = task.toLocal(WorkerProtocol.readText(in));
+                if (output == null) {
+                    log(line, log, error);
+                }
+                else {
+                    (error ? output.getErr() : output.getOut()).write(line.getBytes("UTF-8"));
+                }
+            }
+        }
+        finally {
+            if (output != null) {
+                output.setCancellation(null);
+            }
+            socket.close();
+        }
+    }
+
+    private synchronized String acquire() throws InterruptedException {
+        while (idle.isEmpty() && alive > 0) {
+            wait();
+        }
+        return idle.poll();
+    }
+
+    private synchronized void release(String worker) {
+        idle.add(worker);
+        notifyAll();
+    }
+
+    private synchronized void remove() {
+        alive--;
+        notifyAll();
+    }
+
+    private static void log(String line, Log log, boolean error) {
+        line = line.replaceFirst("\\r?\\n$", "");
+        if (error) {
+            log.warn(line);
+        }
+        else {
+            log.info(line);
+        }
+    }
+
+    synchronized void shutdown() {
+        for (Process process : processes) {
+            process.destroy();
+        }
+        processes.clear();
+    }
+}
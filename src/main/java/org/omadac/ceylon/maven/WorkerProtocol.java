@@ -0,0 +1,213 @@
+/*
+ * Copyright Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the authors tag. All rights reserved.
+ *
+ * This copyrighted material is made available to anyone wishing to use,
+ * modify, copy, or redistribute it subject to the terms and conditions
+ * of the GNU General Public License version 2.
+ * 
+ * This particular file is subject to the "Classpath" exception as provided in the 
+ * LICENSE file that accompanied this code.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT A
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License,
+ * along with this distribution; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ */
+package org.omadac.ceylon.maven;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Wire format of the exchange between a {@link WorkerPool} and a {@link CompileWorker}. One task is
+ * exchanged per connection:
+ * <ol>
+ * <li>the client sends the protocol version, the token shared with the worker, the tool, its
+ * options and modules, and a manifest of the input files as relative paths with their SHA-1
+ * hashes,</li>
+ * <li>the worker replies with the hashes it does not have in its content store,</li>
+ * <li>the client sends the contents of these files,</li>
+ * <li>while the tool runs, the worker streams its standard and error output line by line, each
+ * line as a {@link #STDOUT} or {@link #STDERR} frame,</li>
+ * <li>the worker sends a {@link #RESULT} frame with the exit code of the tool and the files it
+ * has written to the output repository.</li>
+ * </ol>
+ * The client cancels a task by closing the connection; the tool is then stopped by a
+ * {@link java.util.concurrent.CancellationException} thrown from its next write.
+ * The first segment of a manifest path names a root directory, e.g. <code>source0</code>,
+ * {@link #DEPS} or {@link #OUT}. Options and output refer to root directories by
+ * <code>@name</code>, which each side replaces by its own directory; a placeholder or directory
+ * is only replaced where it is not followed by another character of a name, so that
+ * <code>@source1</code> does not match within <code>@source10</code>. Runs in worker JVMs without
+ * the Maven classes.
+ */
+public final class WorkerProtocol {
+
+    public static final int VERSION = 3;
+
+    /**
+     * Environment variable holding the token a worker requires from its clients.
+     */
+    public static final String TOKEN_ENV = "CEYLON_WORKER_TOKEN";
+
+    /**
+     * Frame type of a line of standard output.
+     */
+    public static final int STDOUT = 1;
+
+    /**
+     * Frame type of a line of error output.
+     */
+    public static final int STDERR = 2;
+
+    /**
+     * Frame type of the result, the last frame of a task.
+     */
+    public static final int RESULT = 0;
+
+    /**
+     * Root of the output repository.
+     */
+    public static final String OUT = "out";
+
+    /**
+     * Root of the repository holding the archives of imported modules.
+     */
+    public static final String DEPS = "deps";
+
+    /**
+     * Exit code reported if the worker itself failed, in which case the task runs locally.
+     */
+    public static final int WORKER_ERROR = -1;
+
+    private static final int BUFFER_SIZE = 65536;
+
+    private WorkerProtocol() {
+    }
+
+    public static String placeholder(String root) {
+        return "@" + root;
+    }
+
+    /**
+     * Replaces the occurrences of a placeholder or directory in the given text which are not
+     * followed by a letter, digit, <code>_</code> or <code>-</code>.
+     */
+    public static String replace(String text, String target, String replacement) {
+        return Pattern.compile(Pattern.quote(target) + "(?![\\w-])").matcher(text)
+            .replaceAll(Matcher.quoteReplacement(replacement));
+    }
+
+    static void writeStrings(DataOutputStream out, List<String> strings) throws IOException {
+        out.writeInt(strings.size());
+        for (String string : strings) {
+            out.writeUTF(string);
+        }
+    }
+
+    static List<String> readStrings(DataInputStream in) throws IOException {
+        int size = in.readInt();
+        List<String> strings = new ArrayList<String>(size);
+        for (int i = 0; i < size; i++) {
+            strings.add(in.readUTF());
+        }
+        return strings;
+    }
+
+    /**
+     * Writes a text of any length, unlike {@link DataOutputStream#writeUTF(String)}.
+     */
+    static void writeText(DataOutputStream out, String text) throws IOException {
+        byte[] bytes = text.getBytes("UTF-8");
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    static String readText(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    static void writeFile(DataOutputStream out, File file) throws IOException {
+        out.writeLong(file.length());
+        InputStream is = new FileInputStream(file);
+        try {
+            copy(is, out, file.length());
+        }
+        finally {
+            is.close();
+        }
+    }
+
+    /**
+     * Reads a file written by {@link #writeFile(DataOutputStream, File)} into the given file.
+     */
+    static void readFile(DataInputStream in, File file) throws IOException {
+        long length = in.readLong();
+        file.getParentFile().mkdirs();
+        OutputStream os = new FileOutputStream(file);
+        try {
+            copy(in, os, length);
+        }
+        finally {
+            os.close();
+        }
+    }
+
+    private static void copy(InputStream in, OutputStream out, long length) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        long remaining = length;
+        while (remaining > 0) {
+            int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+            if (read < 0) {
+                throw new EOFException();
+            }
+            out.write(buffer, 0, read);
+            remaining -= read;
+        }
+    }
+
+    static String sha1(File file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        InputStream is = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = is.read(buffer)) >= 0) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        finally {
+            is.close();
+        }
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest()) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+}
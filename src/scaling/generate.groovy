@@ -0,0 +1,168 @@
+// Generates a reactor of Ceylon modules into the project directory (basedir). The size is read
+// from scaling.properties and can be overridden by system properties with the same names and a
+// "scaling." prefix, e.g. -Dscaling.modules=200:
+//
+//   modules          number of module projects
+//   filesPerModule   number of source files per module
+//   fanOut           number of preceding modules imported by each module
+//   resourceFiles    number of resource files per module
+//   resourceKb       size of each resource file in KB
+//
+// The generated projects use the plugin version being built (the pluginVersion variable set by
+// the scaling profile) and the Ceylon home given by -Dceylon.home or CEYLON_HOME, which is
+// required.
+
+def settings = new Properties()
+new File(basedir, "scaling.properties").withInputStream { settings.load(it) }
+def setting = { String name -> Integer.parseInt(System.getProperty("scaling." + name, settings.getProperty(name))) }
+
+int modules = setting("modules")
+int filesPerModule = setting("filesPerModule")
+int fanOut = setting("fanOut")
+int resourceFiles = setting("resourceFiles")
+int resourceKb = setting("resourceKb")
+
+def name = { int i -> String.format("m%03d", i) }
+def imports = { int i -> (Math.max(0, i - fanOut)..<i).toList().reverse() }
+
+def ceylonHome = System.getProperty("ceylon.home") ?: System.getenv("CEYLON_HOME")
+if (!ceylonHome) {
+    throw new IllegalStateException("The Ceylon home is required, set -Dceylon.home or CEYLON_HOME")
+}
+
+new File(basedir, "pom.xml").text = """<project xmlns="http://maven.apache.org/POM/4.0.0" xmlns:xsi="http://www.w3.org/2001/XMLSchema-instance"
+    xsi:schemaLocation="http://maven.apache.org/POM/4.0.0 http://maven.apache.org/xsd/maven-4.0.0.xsd">
+    <modelVersion>4.0.0</modelVersion>
+    <groupId>org.omadac.ceylon.scaling</groupId>
+    <artifactId>${basedir.name}</artifactId>
+    <version>1.0.0</version>
+    <packaging>pom</packaging>
+
+    <properties>
+        <ceylon.home>${ceylonHome}</ceylon.home>
+    </properties>
+
+    <modules>
+${(0..<modules).collect { "        <module>${name(it)}</module>" }.join("\n")}
+    </modules>
+
+    <build>
+        <plugins>
+            <plugin>
+                <groupId>org.omadac.ceylon</groupId>
+                <artifactId>ceylon-maven-plugin</artifactId>
+                <version>${pluginVersion}</version>
+                <extensions>true</extensions>
+                <configuration>
+                    <source>source</source>
+                    <testSource>test-source</testSource>
+                </configuration>
+            </plugin>
+        </plugins>
+    </build>
+</project>
+"""
+
+def random = new Random(modules)
+for (int i = 0; i < modules; i++) {
+    def module = name(i)
+    def moduleDir = new File(basedir, module)
+    def sourceDir = new File(moduleDir, "source/scale/${module}")
+    def testDir = new File(moduleDir, "test-source/test/scale/${module}")
+    def resourceDir = new File(moduleDir, "src/main/resources/scale/${module}")
+    [sourceDir, testDir, resourceDir]*.mkdirs()
+
+    new File(moduleDir, "pom.xml").text = """<project xmlns="http://maven.apache.org/POM/4.0.0" xmlns:xsi="http://www.w3.org/2001/XMLSchema-instance"
+    xsi:schemaLocation="http://maven.apache.org/POM/4.0.0 http://maven.apache.org/xsd/maven-4.0.0.xsd">
+    <modelVersion>4.0.0</modelVersion>
+    <parent>
+        <groupId>org.omadac.ceylon.scaling</groupId>
+        <artifactId>${basedir.name}</artifactId>
+        <version>1.0.0</version>
+    </parent>
+    <artifactId>${module}</artifactId>
+    <packaging>car</packaging>
+
+    <dependencies>
+${imports(i).collect { """        <dependency>
+            <groupId>org.omadac.ceylon.scaling</groupId>
+            <artifactId>${name(it)}</artifactId>
+            <version>1.0.0</version>
+            <type>car</type>
+        </dependency>""" }.join("\n")}
+    </dependencies>
+
+    <build>
+        <plugins>
+            <plugin>
+                <groupId>org.omadac.ceylon</groupId>
+                <artifactId>ceylon-maven-plugin</artifactId>
+                <configuration>
+                    <modules>
+                        <module>scale.${module}</module>
+                    </modules>
+                    <testModules>
+                        <testModule>test.scale.${module}</testModule>
+                    </testModules>
+                </configuration>
+            </plugin>
+        </plugins>
+    </build>
+</project>
+"""
+
+    new File(sourceDir, "module.ceylon").text = """module scale.${module} "1.0.0" {
+${imports(i).collect { "    shared import scale.${name(it)} \"1.0.0\";" }.join("\n")}
+}
+"""
+    new File(sourceDir, "package.ceylon").text = "shared package scale.${module};\n"
+    for (int j = 0; j < filesPerModule; j++) {
+        new File(sourceDir, "Unit${j}.ceylon").text = """${(j == 0) ? imports(i).collect { "import scale.${name(it)} { value_${name(it)}_0 }" }.join("\n") : ""}
+
+"A generated class."
+shared class Unit_${module}_${j}(shared String name, shared Integer size) {
+    shared String describe() => "``name``: ``size``";
+    shared Unit_${module}_${j} resize(Integer factor) => Unit_${module}_${j}(name, size * factor);
+}
+
+"A generated function."
+shared Integer value_${module}_${j}(Integer x) {
+    variable Integer sum = x;
+    for (i in 0..10) {
+        sum += i * x;
+    }
+    return sum${(j == 0) ? imports(i).collect { " + value_${name(it)}_0(x)" }.join("") : " + value_${module}_${j - 1}(x)"};
+}
+"""
+    }
+
+    new File(testDir, "module.ceylon").text = """module test.scale.${module} "1.0.0" {
+    import ceylon.test "1.0.0";
+    import scale.${module} "1.0.0";
+}
+"""
+    new File(testDir, "package.ceylon").text = "shared package test.scale.${module};\n"
+    new File(testDir, "UnitTest.ceylon").text = """import ceylon.test { test, assertEquals }
+import scale.${module} { Unit_${module}_0 }
+
+class UnitTest() {
+
+    shared test void testDescribe() {
+        assertEquals(Unit_${module}_0("a", 2).resize(3).describe(), "a: 6");
+    }
+}
+"""
+
+    def chars = ('a'..'z').join("") + "\n"
+    for (int k = 0; k < resourceFiles; k++) {
+        def text = new StringBuilder()
+        for (int n = 0; n < resourceKb * 1024; n++) {
+            text.append(chars.charAt(random.nextInt(chars.length())))
+        }
+        new File(resourceDir, "resource${k}.txt").text = text.toString()
+    }
+}
+
+new File(basedir, "scaling-start.txt").text = Long.toString(System.currentTimeMillis())
+println "Generated ${modules} modules with ${filesPerModule} files each into ${basedir}"
+return true
@@ -0,0 +1 @@
+evaluate(new File(basedir.parentFile, "report.groovy"))
@@ -0,0 +1,44 @@
+// Aggregates the build metrics of the modules generated by generate.groovy and appends them to
+// scaling-report.csv next to the generated projects: the total build time, and per goal the sum
+// of the durations and CPU times over all modules and the maximum peak heap usage.
+
+def settings = new Properties()
+new File(basedir, "scaling.properties").withInputStream { settings.load(it) }
+def setting = { String name -> System.getProperty("scaling." + name, settings.getProperty(name)) }
+
+def buildMillis = System.currentTimeMillis() - Long.parseLong(new File(basedir, "scaling-start.txt").text.trim())
+def totals = new TreeMap()
+basedir.eachDir { moduleDir ->
+    def file = new File(moduleDir, "target/ceylon-metrics.properties")
+    if (!file.isFile()) {
+        return
+    }
+    def metrics = new Properties()
+    file.withInputStream { metrics.load(it) }
+    metrics.each { key, value ->
+        def goal = key.substring(0, key.indexOf('.'))
+        def total = totals.get(goal, [millis: 0L, cpuMillis: 0L, peakHeap: 0L])
+        if (key.endsWith(".cpu.millis")) {
+            total.cpuMillis += Long.parseLong(value)
+        }
+        else if (key.endsWith(".millis")) {
+            total.millis += Long.parseLong(value)
+        }
+        else if (key.endsWith(".peakHeap.bytes")) {
+            total.peakHeap = Math.max(total.peakHeap, Long.parseLong(value))
+        }
+    }
+}
+
+def report = new File(basedir.parentFile, "scaling-report.csv")
+if (!report.exists()) {
+    report.text = "project,modules,filesPerModule,fanOut,resourceFiles,resourceKb,goal,wallMillis,cpuMillis,peakHeapMB\n"
+}
+def prefix = [basedir.name, setting("modules"), setting("filesPerModule"), setting("fanOut"),
+    setting("resourceFiles"), setting("resourceKb")].join(",")
+report << "${prefix},build,${buildMillis},,\n"
+totals.each { goal, total ->
+    report << "${prefix},${goal},${total.millis},${total.cpuMillis},${total.peakHeap >> 20}\n"
+}
+println "Build of ${setting('modules')} modules took ${buildMillis} ms, see ${report}"
+return true
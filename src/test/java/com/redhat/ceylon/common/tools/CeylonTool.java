@@ -0,0 +1,133 @@
+/*
+ * Copyright Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the authors tag. All rights reserved.
+ *
+ * This copyrighted material is made available to anyone wishing to use,
+ * modify, copy, or redistribute it subject to the terms and conditions
+ * of the GNU General Public License version 2.
+ * 
+ * This particular file is subject to the "Classpath" exception as provided in the 
+ * LICENSE file that accompanied this code.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT A
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License,
+ * along with this distribution; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ */
+package com.redhat.ceylon.common.tools;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+
+/**
+ * Stand-in for the entry point of the Ceylon tools, which the
+ * {@link com.redhat.ceylon.launcher.Launcher} finds on the test class path when the Ceylon home
+ * has no libraries. For each module it prints a line to the standard and to the error output and
+ * writes <code>module.car</code> to the output repository. The module <code>fail</code> makes the
+ * tool throw, the module <code>block</code> makes it print lines until it is cancelled, and the
+ * module <code>list</code> prints the files of the repositories.
+ */
+public class CeylonTool {
+
+    private static final Set<String> OPTIONS_WITH_VALUE = new HashSet<String>(Arrays.asList("--out", "--rep",
+        "--source", "--src", "--resource", "--encoding", "--user", "--pass"));
+
+    /**
+     * Set when a blocked tool has been stopped by a {@link CancellationException}.
+     */
+    public static volatile boolean cancelled;
+
+    private String out;
+
+    private final List<String> repositories = new ArrayList<String>();
+
+    private final List<String> modules = new ArrayList<String>();
+
+    public int setup(String[] args) {
+        for (int i = 1; i < args.length; i++) {
+            if (OPTIONS_WITH_VALUE.contains(args[i])) {
+                if ("--out".equals(args[i])) {
+                    out = args[i + 1];
+                }
+                else if ("--rep".equals(args[i])) {
+                    repositories.add(args[i + 1]);
+                }
+                i++;
+            }
+            else if (!args[i].startsWith("-")) {
+                modules.add(args[i]);
+            }
+        }
+        return 0;
+    }
+
+    public Object getTool() {
+        return this;
+    }
+
+    public int execute() throws IOException, InterruptedException {
+        for (String module : modules) {
+            if ("fail".equals(module)) {
+                throw new IllegalStateException("Tool failure");
+            }
+            if ("block".equals(module)) {
+                block();
+            }
+            if ("list".equals(module)) {
+                for (String repository : repositories) {
+                    list(new File(repository), "");
+                }
+            }
+            System.out.println("Compiled " + module + " into " + out);
+            System.err.println("warning: " + module);
+            if (out != null) {
+                FileOutputStream car = new FileOutputStream(new File(out, module + ".car"));
+                try {
+                    car.write(module.getBytes("UTF-8"));
+                }
+                finally {
+                    car.close();
+                }
+            }
+        }
+        return 0;
+    }
+
+    private static void block() throws InterruptedException {
+        try {
+            while (true) {
+                System.out.println("working");
+                Thread.sleep(10);
+            }
+        }
+        catch (CancellationException e) {
+            cancelled = true;
+            throw e;
+        }
+    }
+
+    private static void list(File dir, String path) {
+        File[] children = dir.listFiles();
+        if (children == null) {
+            return;
+        }
+        for (File child : children) {
+            if (child.isDirectory()) {
+                list(child, path + child.getName() + "/");
+            }
+            else {
+                System.out.println("file " + path + child.getName());
+            }
+        }
+    }
+}
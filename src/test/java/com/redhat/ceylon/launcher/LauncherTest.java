@@ -0,0 +1,154 @@
+/*
+ * Copyright Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the authors tag. All rights reserved.
+ *
+ * This copyrighted material is made available to anyone wishing to use,
+ * modify, copy, or redistribute it subject to the terms and conditions
+ * of the GNU General Public License version 2.
+ * 
+ * This particular file is subject to the "Classpath" exception as provided in the 
+ * LICENSE file that accompanied this code.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT A
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License,
+ * along with this distribution; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ */
+package com.redhat.ceylon.launcher;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+import org.codehaus.plexus.util.FileUtils;
+import org.codehaus.plexus.util.IOUtil;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.redhat.ceylon.common.Constants;
+
+public class LauncherTest {
+
+    private static final String PROBE = Probe.class.getName();
+
+    private File home;
+
+    private Properties savedProperties;
+
+    private ClassLoader savedContextLoader;
+
+    /**
+     * A class which the {@link CeylonClassLoader} loads itself from the library directory of the
+     * test home, like the classes of the Ceylon tools.
+     */
+    public static class Probe {
+    }
+
+    @Before
+    public void createHome() throws IOException {
+        savedProperties = (Properties) System.getProperties().clone();
+        savedContextLoader = Thread.currentThread().getContextClassLoader();
+        Launcher.releaseClassLoader();
+
+        home = File.createTempFile("ceylon-home", "");
+        home.delete();
+        new File(home, "repo").mkdirs();
+        File lib = new File(home, "lib");
+        lib.mkdirs();
+
+        String entry = PROBE.replace('.', '/') + ".class";
+        JarOutputStream jar = new JarOutputStream(new FileOutputStream(new File(lib, "probe.jar")));
+        InputStream is = getClass().getClassLoader().getResourceAsStream(entry);
+        try {
+            jar.putNextEntry(new JarEntry(entry));
+            IOUtil.copy(is, jar);
+            jar.closeEntry();
+        }
+        finally {
+            IOUtil.close(is);
+            jar.close();
+        }
+        System.clearProperty(Constants.PROP_CEYLON_SYSTEM_REPO);
+        System.clearProperty(Constants.PROP_CEYLON_SYSLIBS_DIR);
+        System.setProperty(Constants.PROP_CEYLON_HOME_DIR, home.getAbsolutePath());
+    }
+
+    @After
+    public void deleteHome() throws IOException {
+        Launcher.releaseClassLoader();
+        Thread.currentThread().setContextClassLoader(savedContextLoader);
+        System.setProperties(savedProperties);
+        FileUtils.deleteDirectory(home);
+    }
+
+    @Test
+    public void defersReleaseWhileAcquired() throws Exception {
+        CeylonClassLoader loader = Launcher.acquireClassLoader();
+        Launcher.releaseClassLoader();
+
+        // still open: a closed URLClassLoader cannot load any new class
+        assertSame(loader, loader.loadClass(PROBE).getClassLoader());
+        assertSame(loader, Launcher.getClassLoader());
+
+        Launcher.returnClassLoader();
+        assertNotSame(loader, Launcher.getClassLoader());
+    }
+
+    @Test
+    public void repeatedBuildsDoNotKeepClassLoaders() throws Exception {
+        List<WeakReference<ClassLoader>> loaders = new ArrayList<WeakReference<ClassLoader>>();
+        for (int i = 0; i < 20; i++) {
+            loaders.add(build());
+        }
+
+        // unreachable class loaders let their classes be unloaded, so the metaspace stays flat
+        for (int i = 0; i < 50 && countReachable(loaders) > 0; i++) {
+            System.gc();
+            Thread.sleep(20);
+        }
+        assertEquals(0, countReachable(loaders));
+    }
+
+    /**
+     * Runs one build: a tool using the shared class loader, then the release at the end of the
+     * build.
+     */
+    private WeakReference<ClassLoader> build() throws Exception {
+        CeylonClassLoader loader = Launcher.acquireClassLoader();
+        try {
+            Object probe = loader.loadClass(PROBE).newInstance();
+            assertNotSame(Probe.class, probe.getClass());
+        }
+        finally {
+            Launcher.returnClassLoader();
+        }
+        Launcher.releaseClassLoader();
+        Thread.currentThread().setContextClassLoader(savedContextLoader);
+        return new WeakReference<ClassLoader>(loader);
+    }
+
+    private static int countReachable(List<WeakReference<ClassLoader>> loaders) {
+        int count = 0;
+        for (WeakReference<ClassLoader> loader : loaders) {
+            if (loader.get() != null) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
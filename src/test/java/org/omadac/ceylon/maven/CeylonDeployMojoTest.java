@@ -0,0 +1,307 @@
+/*
+ * Copyright Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the authors tag. All rights reserved.
+ *
+ * This copyrighted material is made available to anyone wishing to use,
+ * modify, copy, or redistribute it subject to the terms and conditions
+ * of the GNU General Public License version 2.
+ * 
+ * This particular file is subject to the "Classpath" exception as provided in the 
+ * LICENSE file that accompanied this code.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT A
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License,
+ * along with this distribution; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ */
+package org.omadac.ceylon.maven;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Field;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.maven.project.MavenProject;
+import org.codehaus.plexus.util.FileUtils;
+import org.codehaus.plexus.util.IOUtil;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.redhat.ceylon.launcher.Launcher;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Deploys to a WebDAV repository served by a local HttpServer. The Sardine classes come from the
+ * test class path, the Ceylon home is empty.
+ */
+public class CeylonDeployMojoTest {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final String CAR = "/repo/foo/1.0/foo-1.0.car";
+
+    private static final String SRC = "/repo/foo/1.0/foo-1.0.src";
+
+    private final Map<String, byte[]> files = new ConcurrentHashMap<String, byte[]>();
+
+    private final Set<String> collections = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    private final List<String> requests = new CopyOnWriteArrayList<String>();
+
+    private final AtomicInteger failingPuts = new AtomicInteger();
+
+    private HttpServer remote;
+
+    private File dir;
+
+    private File target;
+
+    private Properties savedProperties;
+
+    @Before
+    public void startRemote() throws IOException {
+        savedProperties = (Properties) System.getProperties().clone();
+        remote = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        remote.createContext("/", new WebDavHandler());
+        remote.start();
+        collections.add("/repo/");
+
+        dir = File.createTempFile("ceylon-deploy", "");
+        dir.delete();
+        new File(dir, "home/repo").mkdirs();
+        new File(dir, "home/lib").mkdirs();
+        target = new File(dir, "target");
+        File moduleDir = new File(target, "modules/foo/1.0");
+        moduleDir.mkdirs();
+        FileUtils.fileWrite(new File(moduleDir, "foo-1.0.car"), "UTF-8", "car content");
+        FileUtils.fileWrite(new File(moduleDir, "foo-1.0.car.sha1"), "UTF-8", sha1("car content"));
+        FileUtils.fileWrite(new File(moduleDir, "foo-1.0.src"), "UTF-8", "src content");
+    }
+
+    @After
+    public void stopRemote() throws IOException {
+        remote.stop(0);
+        Launcher.releaseClassLoader();
+        System.setProperties(savedProperties);
+        FileUtils.deleteDirectory(dir);
+    }
+
+    @Test
+    public void uploadsFilesAndChecksums() throws Exception {
+        createMojo().execute();
+
+        assertArrayEquals("car content".getBytes(UTF8), files.get(CAR));
+        assertArrayEquals(sha1("car content").getBytes(UTF8), files.get(CAR + ".sha1"));
+        assertArrayEquals("src content".getBytes(UTF8), files.get(SRC));
+        assertTrue(collections.contains("/repo/foo/"));
+        assertTrue(collections.contains("/repo/foo/1.0/"));
+        assertFalse(collections.contains("/"));
+    }
+
+    @Test
+    public void skipsFilesWithMatchingRemoteChecksum() throws Exception {
+        files.put(CAR + ".sha1", (sha1("car content") + "\n").getBytes(UTF8));
+
+        createMojo().execute();
+
+        assertFalse(requests.contains("PUT " + CAR));
+        assertFalse(requests.contains("PUT " + CAR + ".sha1"));
+        assertTrue(requests.contains("PUT " + SRC));
+    }
+
+    @Test
+    public void retriesAfterServerErrors() throws Exception {
+        failingPuts.set(1);
+
+        CeylonDeployMojo mojo = createMojo();
+        mojo.threads = 1;
+        mojo.execute();
+
+        assertEquals(0, failingPuts.get());
+        assertArrayEquals("car content".getBytes(UTF8), files.get(CAR));
+        assertArrayEquals("src content".getBytes(UTF8), files.get(SRC));
+        assertEquals(4, count("PUT "));
+    }
+
+    @Test
+    public void resumesFromStateFile() throws Exception {
+        createMojo().execute();
+        File stateFile = new File(target, "ceylon-deploy.properties");
+        assertTrue(stateFile.isFile());
+
+        // nothing is repeated, not even checksum lookups
+        requests.clear();
+        createMojo().execute();
+        assertEquals(Collections.emptyList(), requests);
+
+        // an interrupted run only recorded the CAR
+        Properties state = new Properties();
+        InputStream is = new FileInputStream(stateFile);
+        try {
+            state.load(is);
+        }
+        finally {
+            IOUtil.close(is);
+        }
+        state.remove("http://127.0.0.1:" + remote.getAddress().getPort() + SRC);
+        OutputStream os = new FileOutputStream(stateFile);
+        try {
+            state.store(os, null);
+        }
+        finally {
+            IOUtil.close(os);
+        }
+        files.remove(SRC);
+        createMojo().execute();
+        assertEquals(Arrays.asList("PUT " + SRC), filter("PUT "));
+        assertArrayEquals("src content".getBytes(UTF8), files.get(SRC));
+    }
+
+    private CeylonDeployMojo createMojo() throws Exception {
+        CeylonDeployMojo mojo = new CeylonDeployMojo();
+        mojo.home = new File(dir, "home").getAbsolutePath();
+        mojo.out = new File(target, "modules").getAbsolutePath();
+        mojo.modules = Arrays.asList("foo");
+        mojo.repository = "http://127.0.0.1:" + remote.getAddress().getPort() + "/repo";
+        mojo.username = "user";
+        mojo.password = "secret";
+        mojo.threads = 2;
+        mojo.retries = 2;
+        MavenProject project = new MavenProject();
+        project.setVersion("1.0");
+        project.getBuild().setDirectory(target.getAbsolutePath());
+        Field field = CeylonDeployMojo.class.getDeclaredField("project");
+        field.setAccessible(true);
+        field.set(mojo, project);
+        return mojo;
+    }
+
+    private int count(String prefix) {
+        return filter(prefix).size();
+    }
+
+    private List<String> filter(String prefix) {
+        List<String> matching = new ArrayList<String>();
+        for (String request : requests) {
+            if (request.startsWith(prefix)) {
+                matching.add(request);
+            }
+        }
+        return matching;
+    }
+
+    private static String sha1(String content) {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : Digester.getDigester("SHA-1").digest(content.getBytes(UTF8))) {
+            hex.append(String.format("%02x", b & 0xff));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * Minimal WebDAV repository keeping the files in memory. The first PUT requests fail with a
+     * server error while {@link #failingPuts} is positive.
+     */
+    private class WebDavHandler implements HttpHandler {
+
+        public void handle(HttpExchange exchange) throws IOException {
+            String method = exchange.getRequestMethod();
+            String path = exchange.getRequestURI().getPath();
+            requests.add(method + " " + path);
+            try {
+                byte[] content = files.get(path);
+                boolean exists = content != null || collections.contains(path)
+                    || collections.contains(path + "/");
+                if ("HEAD".equals(method) || "PROPFIND".equals(method)) {
+                    if (!exists) {
+                        exchange.sendResponseHeaders(HttpURLConnection.HTTP_NOT_FOUND, -1);
+                    }
+                    else if ("PROPFIND".equals(method)) {
+                        byte[] body = ("<?xml version=\"1.0\" encoding=\"utf-8\"?><D:multistatus xmlns:D=\"DAV:\">"
+                            + "<D:response><D:href>" + path + "</D:href><D:propstat><D:prop/>"
+                            + "<D:status>HTTP/1.1 200 OK</D:status></D:propstat></D:response></D:multistatus>")
+                            .getBytes(UTF8);
+                        exchange.getResponseHeaders().set("Content-Type", "application/xml; charset=utf-8");
+                        exchange.sendResponseHeaders(207, body.length);
+                        exchange.getResponseBody().write(body);
+                    }
+                    else {
+                        exchange.sendResponseHeaders(HttpURLConnection.HTTP_OK, -1);
+                    }
+                }
+                else if ("GET".equals(method)) {
+                    if (content == null) {
+                        exchange.sendResponseHeaders(HttpURLConnection.HTTP_NOT_FOUND, -1);
+                    }
+                    else {
+                        exchange.sendResponseHeaders(HttpURLConnection.HTTP_OK, content.length);
+                        exchange.getResponseBody().write(content);
+                    }
+                }
+                else if ("MKCOL".equals(method)) {
+                    String parent = path.substring(0, path.lastIndexOf('/', path.length() - 2) + 1);
+                    if (exists) {
+                        exchange.sendResponseHeaders(HttpURLConnection.HTTP_BAD_METHOD, -1);
+                    }
+                    else if (!collections.contains(parent)) {
+                        exchange.sendResponseHeaders(HttpURLConnection.HTTP_CONFLICT, -1);
+                    }
+                    else {
+                        collections.add(path.endsWith("/") ? path : path + "/");
+                        exchange.sendResponseHeaders(HttpURLConnection.HTTP_CREATED, -1);
+                    }
+                }
+                else if ("PUT".equals(method)) {
+                    ByteArrayOutputStream body = new ByteArrayOutputStream();
+                    IOUtil.copy(exchange.getRequestBody(), body);
+                    String parent = path.substring(0, path.lastIndexOf('/') + 1);
+                    if (failingPuts.get() > 0) {
+                        failingPuts.decrementAndGet();
+                        exchange.sendResponseHeaders(HttpURLConnection.HTTP_INTERNAL_ERROR, -1);
+                    }
+                    else if (!collections.contains(parent)) {
+                        exchange.sendResponseHeaders(HttpURLConnection.HTTP_CONFLICT, -1);
+                    }
+                    else {
+                        files.put(path, body.toByteArray());
+                        exchange.sendResponseHeaders(HttpURLConnection.HTTP_CREATED, -1);
+                    }
+                }
+                else {
+                    exchange.sendResponseHeaders(HttpURLConnection.HTTP_BAD_METHOD, -1);
+                }
+            }
+            finally {
+                exchange.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,454 @@
+/*
+ * Copyright Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the authors tag. All rights reserved.
+ *
+ * This copyrighted material is made available to anyone wishing to use,
+ * modify, copy, or redistribute it subject to the terms and conditions
+ * of the GNU General Public License version 2.
+ * 
+ * This particular file is subject to the "Classpath" exception as provided in the 
+ * LICENSE file that accompanied this code.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT A
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License,
+ * along with this distribution; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ */
+package org.omadac.ceylon.maven;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.maven.plugin.logging.SystemStreamLog;
+import org.codehaus.plexus.util.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.redhat.ceylon.common.Constants;
+import com.redhat.ceylon.common.tools.CeylonTool;
+import com.redhat.ceylon.launcher.Launcher;
+
+/**
+ * Runs a {@link CompileWorker} on a loopback socket, with the stand-in {@link CeylonTool} as the
+ * Ceylon tools, and talks to it through the {@link WorkerPool} or frame by frame.
+ */
+public class CompileWorkerTest {
+
+    private static final String TOKEN = "secret";
+
+    private static final List<String> COMPILE_OPTIONS = Arrays.asList("--out", "@out", "--source", "@source0");
+
+    private final BlockingQueue<Exception> handled = new LinkedBlockingQueue<Exception>();
+
+    private final List<String> logged = Collections.synchronizedList(new ArrayList<String>());
+
+    private Properties savedProperties;
+
+    private File dir;
+
+    private ServerSocket server;
+
+    @Before
+    public void startWorker() throws IOException {
+        savedProperties = (Properties) System.getProperties().clone();
+        Launcher.releaseClassLoader();
+        CeylonTool.cancelled = false;
+
+        dir = File.createTempFile("ceylon-worker-test", "");
+        dir.delete();
+        // without libraries, the Ceylon class loader finds the tools on the test class path
+        File home = new File(dir, "home");
+        new File(home, "lib").mkdirs();
+        new File(home, "repo").mkdirs();
+        System.clearProperty(Constants.PROP_CEYLON_SYSTEM_REPO);
+        System.clearProperty(Constants.PROP_CEYLON_SYSLIBS_DIR);
+        System.setProperty(Constants.PROP_CEYLON_HOME_DIR, home.getAbsolutePath());
+        // the launcher exits on Java versions the Ceylon tools do not support
+        System.setProperty("java.version", "1.8.0");
+
+        final CompileWorker worker = new CompileWorker(new File(dir, "worker"), TOKEN);
+        server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        Thread acceptor = new Thread("worker-test") {
+
+            @Override
+            public void run() {
+                while (true) {
+                    Socket socket;
+                    try {
+                        socket = server.accept();
+                    }
+                    catch (IOException e) {
+                        return;
+                    }
+                    Exception failure = null;
+                    try {
+                        worker.handle(socket);
+                    }
+                    catch (Exception e) {
+                        failure = e;
+                    }
+                    finally {
+                        try {
+                            socket.close();
+                        }
+                        catch (IOException e) {
+                            // already closed
+                        }
+                    }
+                    handled.add(failure == null ? new Exception("handled") : failure);
+                }
+            }
+        };
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    @After
+    public void stopWorker() throws IOException {
+        server.close();
+        Launcher.releaseClassLoader();
+        System.setProperties(savedProperties);
+        FileUtils.deleteDirectory(dir);
+    }
+
+    @Test
+    public void transfersEachBlobOnce() throws Exception {
+        File a = createFile("a.ceylon", "shared void a() {}");
+        File b = createFile("b.ceylon", "shared void b() {}");
+        File copyOfA = createFile("copy.ceylon", "shared void a() {}");
+        File c = createFile("c.ceylon", "shared void c() {}");
+
+        Map<String, File> first = new LinkedHashMap<String, File>();
+        first.put("source0/m/a.ceylon", a);
+        first.put("source0/m/b.ceylon", b);
+        first.put("source0/m/copy.ceylon", copyOfA);
+        assertEquals(Arrays.asList(WorkerProtocol.sha1(a), WorkerProtocol.sha1(b)), runTask(first));
+
+        Map<String, File> second = new LinkedHashMap<String, File>();
+        second.put("source0/m/a.ceylon", a);
+        second.put("source0/n/c.ceylon", c);
+        assertEquals(Collections.singletonList(WorkerProtocol.sha1(c)), runTask(second));
+    }
+
+    @Test
+    public void rejectsInvalidToken() throws Exception {
+        Socket socket = connect();
+        try {
+            DataOutputStream out = output(socket);
+            sendTask(out, "wrong", "compile", COMPILE_OPTIONS, Arrays.asList("m"),
+                Collections.<String, File> emptyMap());
+            expectClosed(socket);
+        }
+        finally {
+            socket.close();
+        }
+        assertFailure("Invalid token");
+    }
+
+    @Test
+    public void rejectsManifestPathsOutsideTaskDirectory() throws Exception {
+        File file = createFile("evil", "evil");
+        for (String path : Arrays.asList("source0/../../evil", "/etc/evil", "source0/m/../../../evil", "evil")) {
+            Socket socket = connect();
+            try {
+                sendTask(output(socket), TOKEN, "compile", COMPILE_OPTIONS, Arrays.asList("m"),
+                    Collections.singletonMap(path, file));
+                expectClosed(socket);
+            }
+            finally {
+                socket.close();
+            }
+            assertFailure("Invalid manifest entry " + path);
+        }
+    }
+
+    @Test
+    public void rejectsToolsAndOptionsOutsideTaskDirectory() throws Exception {
+        assertRejected("run", COMPILE_OPTIONS, "'ceylon run'");
+        assertRejected("compile", Arrays.asList("--out", "/tmp/out"), "/tmp/out");
+        assertRejected("compile", Arrays.asList("--out", "@out/../.."), "@out/../..");
+        assertRejected("test", Arrays.asList("--rep", "/etc"), "/etc");
+        assertRejected("test", Arrays.asList("--rep", "aether:/etc/settings.xml"), "aether:/etc/settings.xml");
+        assertRejected("test", Arrays.asList("--rep", "file:///etc"), "file:///etc");
+        assertRejected("test", Arrays.asList("-D", "key=/etc/passwd"), "key=/etc/passwd");
+    }
+
+    @Test
+    public void streamsOutputFrames() throws Exception {
+        Socket socket = connect();
+        try {
+            DataInputStream in = input(socket);
+            DataOutputStream out = output(socket);
+            File descriptor = createFile("module.ceylon", "module m \"1.0\" {}");
+            sendTask(out, TOKEN, "compile", COMPILE_OPTIONS, Arrays.asList("m"),
+                Collections.singletonMap("source0/m/module.ceylon", descriptor));
+            sendMissing(in, out, Collections.singletonMap("source0/m/module.ceylon", descriptor));
+
+            // the worker directories are replaced by their placeholders
+            assertEquals(WorkerProtocol.STDOUT, in.readByte());
+            assertEquals("Compiled m into @out\n", WorkerProtocol.readText(in));
+            assertEquals(WorkerProtocol.STDERR, in.readByte());
+            assertEquals("warning: m\n", WorkerProtocol.readText(in));
+            assertEquals(WorkerProtocol.RESULT, in.readByte());
+            assertEquals(0, in.readInt());
+            assertEquals(1, in.readInt());
+            assertEquals("m.car", in.readUTF());
+            File car = new File(dir, "m.car");
+            WorkerProtocol.readFile(in, car);
+            assertEquals("m", FileUtils.fileRead(car, "UTF-8"));
+        }
+        finally {
+            socket.close();
+        }
+    }
+
+    @Test
+    public void stopsToolWhenClientDisconnects() throws Exception {
+        Socket socket = connect();
+        try {
+            DataInputStream in = input(socket);
+            sendTask(output(socket), TOKEN, "compile", COMPILE_OPTIONS, Arrays.asList("block"),
+                Collections.<String, File> emptyMap());
+            assertEquals(Collections.<String> emptyList(), WorkerProtocol.readStrings(in));
+            assertEquals(WorkerProtocol.STDOUT, in.readByte());
+            assertEquals("working\n", WorkerProtocol.readText(in));
+        }
+        finally {
+            socket.close();
+        }
+        assertTrue("task still running", handled.poll(10, TimeUnit.SECONDS) != null);
+        assertTrue(CeylonTool.cancelled);
+
+        // the next task is not blocked by the cancelled one
+        Map<String, File> manifest = Collections.singletonMap("source0/m/a.ceylon", createFile("a.ceylon", "a"));
+        runTask(manifest);
+    }
+
+    @Test
+    public void fallsBackOnWorkerError() throws Exception {
+        File source = new File(dir, "source");
+        File out = new File(dir, "out");
+        out.mkdirs();
+        for (String module : Arrays.asList("fail", "m")) {
+            File moduleDir = new File(source, module);
+            moduleDir.mkdirs();
+            FileUtils.fileWrite(new File(moduleDir, "module.ceylon"), "UTF-8", "module " + module + " \"1.0\" {}");
+        }
+        WorkerPool pool = createPool();
+
+        assertNull(pool.run(createTask("fail", source, out), null, new SystemStreamLog()));
+
+        // the worker stays in the pool
+        assertEquals(Integer.valueOf(0), pool.run(createTask("m", source, out), null, new CapturingLog()));
+        assertEquals("m", FileUtils.fileRead(new File(out, "m.car"), "UTF-8"));
+        assertTrue(logged.contains("Compiled m into " + out.getPath()));
+    }
+
+    @Test
+    public void sendsTestModulesFromLocalRepositories() throws Exception {
+        File repository = new File(dir, "repository");
+        createModule(repository, "list", "1.0", "module list \"1.0\" {\n    import dep \"2.0\";\n}");
+        createModule(repository, "dep", "1.0", "module dep \"1.0\" {}");
+        createModule(repository, "dep", "2.0", "module dep \"2.0\" {}");
+        CeylonInvocation invocation = new CeylonInvocation("test").repository(repository.getPath())
+            .modules(Arrays.asList("list"));
+
+        assertEquals(Integer.valueOf(0), createPool().run(new RemoteTask(invocation, "UTF-8"), null,
+            new CapturingLog()));
+        assertTrue(logged.contains("file list/1.0/list-1.0.car"));
+        assertTrue(logged.contains("file list/1.0/list-1.0.src"));
+        assertTrue(logged.contains("file dep/2.0/dep-2.0.car"));
+        assertTrue(!logged.contains("file dep/1.0/dep-1.0.car"));
+    }
+
+    private WorkerPool createPool() throws IOException {
+        return new WorkerPool(Collections.singletonList("127.0.0.1:" + server.getLocalPort()), TOKEN, null,
+            new SystemStreamLog());
+    }
+
+    private static RemoteTask createTask(String module, File source, File out) throws Exception {
+        CeylonInvocation invocation = new CeylonInvocation("compile").out(out.getPath()).source(source)
+            .modules(Collections.singletonList(module));
+        return new RemoteTask(invocation, "UTF-8");
+    }
+
+    /**
+     * Creates a module archive with a <code>.src</code> archive holding its descriptor.
+     */
+    private static void createModule(File repository, String module, String version, String descriptor)
+        throws IOException {
+        File versionDir = new File(new File(repository, module), version);
+        versionDir.mkdirs();
+        FileUtils.fileWrite(new File(versionDir, module + "-" + version + ".car"), "UTF-8", module);
+        ZipOutputStream src = new ZipOutputStream(new FileOutputStream(new File(versionDir, module + "-" + version
+            + ".src")));
+        try {
+            src.putNextEntry(new ZipEntry(module + "/module.ceylon"));
+            src.write(descriptor.getBytes("UTF-8"));
+            src.closeEntry();
+        }
+        finally {
+            src.close();
+        }
+    }
+
+    private File createFile(String name, String content) throws IOException {
+        File file = new File(new File(dir, "files"), name);
+        file.getParentFile().mkdirs();
+        FileUtils.fileWrite(file, "UTF-8", content);
+        return file;
+    }
+
+    private Socket connect() throws IOException {
+        return new Socket(InetAddress.getLoopbackAddress(), server.getLocalPort());
+    }
+
+    private static DataInputStream input(Socket socket) throws IOException {
+        return new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+    }
+
+    private static DataOutputStream output(Socket socket) throws IOException {
+        return new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+    }
+
+    private static void sendTask(DataOutputStream out, String token, String tool, List<String> options,
+        List<String> modules, Map<String, File> manifest) throws IOException {
+        out.writeInt(WorkerProtocol.VERSION);
+        out.writeUTF(token);
+        out.writeUTF(tool);
+        WorkerProtocol.writeStrings(out, options);
+        WorkerProtocol.writeStrings(out, modules);
+        out.writeInt(manifest.size());
+        for (Map.Entry<String, File> entry : manifest.entrySet()) {
+            out.writeUTF(entry.getKey());
+            out.writeUTF(WorkerProtocol.sha1(entry.getValue()));
+        }
+        out.flush();
+    }
+
+    /**
+     * Reads the hashes requested by the worker and sends the files.
+     * 
+     * @return the requested hashes
+     */
+    private static List<String> sendMissing(DataInputStream in, DataOutputStream out, Map<String, File> manifest)
+        throws IOException {
+        Map<String, File> byHash = new LinkedHashMap<String, File>();
+        for (File file : manifest.values()) {
+            byHash.put(WorkerProtocol.sha1(file), file);
+        }
+        List<String> missing = WorkerProtocol.readStrings(in);
+        for (String hash : missing) {
+            WorkerProtocol.writeFile(out, byHash.get(hash));
+        }
+        out.flush();
+        return missing;
+    }
+
+    /**
+     * Runs a compilation of module <code>m</code> with the given input files, skipping its
+     * output.
+     * 
+     * @return the hashes requested by the worker
+     */
+    private List<String> runTask(Map<String, File> manifest) throws IOException {
+        Socket socket = connect();
+        try {
+            DataInputStream in = input(socket);
+            DataOutputStream out = output(socket);
+            sendTask(out, TOKEN, "compile", COMPILE_OPTIONS, Arrays.asList("m"), manifest);
+            List<String> missing = sendMissing(in, out, manifest);
+            while (in.readByte() != WorkerProtocol.RESULT) {
+                WorkerProtocol.readText(in);
+            }
+            assertEquals(0, in.readInt());
+            for (int count = in.readInt(); count > 0; count--) {
+                in.readUTF();
+                WorkerProtocol.readFile(in, new File(dir, "result"));
+            }
+            return missing;
+        }
+        finally {
+            socket.close();
+        }
+    }
+
+    private void assertRejected(String tool, List<String> options, String message) throws IOException {
+        Socket socket = connect();
+        try {
+            DataInputStream in = input(socket);
+            sendTask(output(socket), TOKEN, tool, options, Arrays.asList("m"), Collections.<String, File> emptyMap());
+            assertEquals(Collections.<String> emptyList(), WorkerProtocol.readStrings(in));
+            assertEquals(WorkerProtocol.STDERR, in.readByte());
+            String error = WorkerProtocol.readText(in);
+            assertTrue(error, error.contains(message));
+            assertEquals(WorkerProtocol.RESULT, in.readByte());
+            assertEquals(WorkerProtocol.WORKER_ERROR, in.readInt());
+            assertEquals(0, in.readInt());
+        }
+        finally {
+            socket.close();
+        }
+    }
+
+    private static void expectClosed(Socket socket) {
+        try {
+            input(socket).readByte();
+            fail("Connection not closed");
+        }
+        catch (IOException e) {
+            // rejected
+        }
+    }
+
+    private void assertFailure(String message) throws InterruptedException {
+        Exception failure = handled.poll(10, TimeUnit.SECONDS);
+        assertTrue("not handled", failure != null);
+        assertTrue(failure.getMessage(), failure.getMessage().startsWith(message));
+    }
+
+    /**
+     * Collects the lines logged by the worker pool.
+     */
+    private class CapturingLog extends SystemStreamLog {
+
+        @Override
+        public void info(CharSequence content) {
+            logged.add(content.toString());
+        }
+
+        @Override
+        public void warn(CharSequence content) {
+            logged.add(content.toString());
+        }
+    }
+}
@@ -0,0 +1,237 @@
+/*
+ * Copyright Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the authors tag. All rights reserved.
+ *
+ * This copyrighted material is made available to anyone wishing to use,
+ * modify, copy, or redistribute it subject to the terms and conditions
+ * of the GNU General Public License version 2.
+ * 
+ * This particular file is subject to the "Classpath" exception as provided in the 
+ * LICENSE file that accompanied this code.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT A
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License,
+ * along with this distribution; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ */
+package org.omadac.ceylon.maven;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.codehaus.plexus.util.FileUtils;
+import org.codehaus.plexus.util.IOUtil;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ParallelZipArchiverTest {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    // a fixed time, on an even second since ZIP files store times with a resolution of 2 seconds
+    private static final long TIME = 1400000000000L;
+
+    private File dir;
+
+    private File classesDir;
+
+    @Before
+    public void createDirectory() throws IOException {
+        dir = File.createTempFile("ceylon-zip", "");
+        dir.delete();
+        classesDir = new File(dir, "classes");
+        classesDir.mkdirs();
+    }
+
+    @After
+    public void deleteDirectory() throws IOException {
+        FileUtils.deleteDirectory(dir);
+    }
+
+    @Test
+    public void readsBackAllEntries() throws IOException {
+        write("foo/bar/Baz.class", repeat("compressible content ", 1000));
+        write("foo/Empty.class", new byte[0]);
+        write("foo/Random.class", random(1000, 1));
+        new File(classesDir, "foo/empty").mkdirs();
+        new File(classesDir, "resources/empty/nested").mkdirs();
+
+        ParallelZipArchiver archiver = new ParallelZipArchiver(2, Deflater.DEFAULT_COMPRESSION);
+        archiver.addDirectory(classesDir);
+        archiver.addEntry(ParallelZipArchiver.MANIFEST, "Manifest-Version: 1.0\r\n".getBytes(UTF8));
+        archiver.addEntry("\u00e4/\u00f6.txt", "umlauts".getBytes(UTF8));
+        File archive = new File(dir, "test.car");
+        archiver.createArchive(archive);
+
+        ZipFile zip = new ZipFile(archive);
+        try {
+            List<String> names = getNames(zip);
+            assertEquals("META-INF/", names.get(0));
+            assertEquals(ParallelZipArchiver.MANIFEST, names.get(1));
+            List<String> sorted = new ArrayList<String>(names.subList(2, names.size()));
+            Collections.sort(sorted);
+            assertEquals(sorted, names.subList(2, names.size()));
+
+            assertTrue(names.contains("foo/"));
+            assertTrue(names.contains("foo/bar/"));
+            assertTrue(zip.getEntry("foo/empty/").isDirectory());
+            assertTrue(zip.getEntry("resources/empty/").isDirectory());
+            assertTrue(zip.getEntry("resources/empty/nested/").isDirectory());
+
+            assertEquals(ZipEntry.DEFLATED, zip.getEntry("foo/bar/Baz.class").getMethod());
+            assertEquals(ZipEntry.STORED, zip.getEntry("foo/Random.class").getMethod());
+            assertEntry(zip, "foo/bar/Baz.class");
+            assertEntry(zip, "foo/Empty.class");
+            assertEntry(zip, "foo/Random.class");
+            assertTrue(zip.getEntry("\u00e4/").isDirectory());
+            assertArrayEquals("umlauts".getBytes(UTF8), read(zip, "\u00e4/\u00f6.txt"));
+            assertArrayEquals("Manifest-Version: 1.0\r\n".getBytes(UTF8), read(zip, ParallelZipArchiver.MANIFEST));
+        }
+        finally {
+            zip.close();
+        }
+    }
+
+    @Test
+    public void streamsLargeFiles() throws IOException {
+        write("large/Compressible.bin", repeat("large compressible content ", 100000));
+        write("large/Random.bin", random(3 << 20, 2));
+        assertTrue(new File(classesDir, "large/Random.bin").length() > 1 << 20);
+
+        for (int level : new int[] { Deflater.DEFAULT_COMPRESSION, 0 }) {
+            ParallelZipArchiver archiver = new ParallelZipArchiver(4, level);
+            archiver.addDirectory(classesDir);
+            File archive = new File(dir, "large-" + level + ".car");
+            archiver.createArchive(archive);
+
+            ZipFile zip = new ZipFile(archive);
+            try {
+                int method = (level == 0) ? ZipEntry.STORED : ZipEntry.DEFLATED;
+                assertEquals(method, zip.getEntry("large/Compressible.bin").getMethod());
+                assertEquals(ZipEntry.STORED, zip.getEntry("large/Random.bin").getMethod());
+                assertEntry(zip, "large/Compressible.bin");
+                assertEntry(zip, "large/Random.bin");
+            }
+            finally {
+                zip.close();
+            }
+        }
+        // no temporary files are left behind
+        assertEquals(3, dir.list().length);
+    }
+
+    @Test
+    public void replacesExistingArchive() throws IOException {
+        write("Foo.class", "foo".getBytes(UTF8));
+        File archive = new File(dir, "test.car");
+        write(archive, "old content".getBytes(UTF8));
+
+        ParallelZipArchiver archiver = new ParallelZipArchiver(1, 9);
+        archiver.addDirectory(classesDir);
+        archiver.createArchive(archive);
+
+        ZipFile zip = new ZipFile(archive);
+        try {
+            assertEquals(1, getNames(zip).size());
+            assertEntry(zip, "Foo.class");
+            assertFalse(zip.getEntry("Foo.class").isDirectory());
+        }
+        finally {
+            zip.close();
+        }
+    }
+
+    /**
+     * Checks the content, size, CRC and time of the entry against the file it was created from.
+     */
+    private void assertEntry(ZipFile zip, String name) throws IOException {
+        ZipEntry entry = zip.getEntry(name);
+        assertNotNull(name, entry);
+        File file = new File(classesDir, name);
+        byte[] expected = FileUtils.fileRead(file, "ISO-8859-1").getBytes("ISO-8859-1");
+        CRC32 crc = new CRC32();
+        crc.update(expected);
+
+        assertEquals(name, expected.length, entry.getSize());
+        assertEquals(name, crc.getValue(), entry.getCrc());
+        assertEquals(name, TIME, entry.getTime());
+        // reading the entry also verifies the CRC
+        assertArrayEquals(expected, read(zip, name));
+    }
+
+    private static List<String> getNames(ZipFile zip) {
+        List<String> names = new ArrayList<String>();
+        Enumeration<? extends ZipEntry> entries = zip.entries();
+        while (entries.hasMoreElements()) {
+            names.add(entries.nextElement().getName());
+        }
+        return names;
+    }
+
+    private static byte[] read(ZipFile zip, String name) throws IOException {
+        InputStream is = zip.getInputStream(zip.getEntry(name));
+        try {
+            ByteArrayOutputStream os = new ByteArrayOutputStream();
+            IOUtil.copy(is, os);
+            return os.toByteArray();
+        }
+        finally {
+            IOUtil.close(is);
+        }
+    }
+
+    private void write(String name, byte[] content) throws IOException {
+        File file = new File(classesDir, name);
+        file.getParentFile().mkdirs();
+        write(file, content);
+        assertTrue(file.setLastModified(TIME));
+    }
+
+    private static void write(File file, byte[] content) throws IOException {
+        OutputStream os = new FileOutputStream(file);
+        try {
+            os.write(content);
+        }
+        finally {
+            os.close();
+        }
+    }
+
+    private static byte[] repeat(String text, int count) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            builder.append(text).append(i);
+        }
+        return builder.toString().getBytes(UTF8);
+    }
+
+    private static byte[] random(int length, long seed) {
+        byte[] bytes = new byte[length];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the authors tag. All rights reserved.
+ *
+ * This copyrighted material is made available to anyone wishing to use,
+ * modify, copy, or redistribute it subject to the terms and conditions
+ * of the GNU General Public License version 2.
+ * 
+ * This particular file is subject to the "Classpath" exception as provided in the 
+ * LICENSE file that accompanied this code.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT A
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License,
+ * along with this distribution; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ */
+package org.omadac.ceylon.maven;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.maven.plugin.logging.SystemStreamLog;
+import org.codehaus.plexus.util.FileUtils;
+import org.codehaus.plexus.util.IOUtil;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class RepositoryMirrorTest {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final AtomicInteger requests = new AtomicInteger();
+
+    private HttpServer remote;
+
+    private File cacheDir;
+
+    private String remoteUrl;
+
+    @Before
+    public void startRemote() throws IOException {
+        remote = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        remote.createContext("/", new HttpHandler() {
+
+            public void handle(HttpExchange exchange) throws IOException {
+                requests.incrementAndGet();
+                try {
+                    if (!exchange.getRequestURI().getPath().endsWith("/foo-1.0.car")) {
+                        exchange.sendResponseHeaders(HttpURLConnection.HTTP_NOT_FOUND, -1);
+                        return;
+                    }
+                    byte[] body = "module foo".getBytes(UTF8);
+                    exchange.getResponseHeaders().set("Content-Type", "application/java-archive");
+                    exchange.sendResponseHeaders(HttpURLConnection.HTTP_OK, body.length);
+                    OutputStream os = exchange.getResponseBody();
+                    os.write(body);
+                    os.close();
+                }
+                finally {
+                    exchange.close();
+                }
+            }
+        });
+        remote.start();
+        remoteUrl = "http://127.0.0.1:" + remote.getAddress().getPort() + "/repo";
+        cacheDir = File.createTempFile("ceylon-mirror", "");
+        cacheDir.delete();
+    }
+
+    @After
+    public void stopRemote() throws IOException {
+        RepositoryMirror.stopAll();
+        remote.stop(0);
+        FileUtils.deleteDirectory(cacheDir);
+    }
+
+    @Test
+    public void servesFoundModulesFromCache() throws IOException {
+        RepositoryMirror mirror = RepositoryMirror.getInstance(cacheDir, 3600, 600, false, new SystemStreamLog());
+        String url = mirror.mirror(remoteUrl) + "foo/1.0/foo-1.0.car";
+
+        assertEquals("module foo", get(url));
+        assertEquals("module foo", get(url));
+        assertEquals(1, requests.get());
+    }
+
+    @Test
+    public void cachesMissingModules() throws IOException {
+        RepositoryMirror mirror = RepositoryMirror.getInstance(cacheDir, 3600, 600, false, new SystemStreamLog());
+        String url = mirror.mirror(remoteUrl) + "bar/1.0/bar-1.0.car";
+
+        assertEquals(HttpURLConnection.HTTP_NOT_FOUND, getStatus(url));
+        assertEquals(HttpURLConnection.HTTP_NOT_FOUND, getStatus(url));
+        assertEquals(1, requests.get());
+    }
+
+    @Test
+    public void refetchesExpiredEntries() throws IOException {
+        RepositoryMirror mirror = RepositoryMirror.getInstance(cacheDir, 0, 0, false, new SystemStreamLog());
+        String url = mirror.mirror(remoteUrl) + "foo/1.0/foo-1.0.car";
+
+        assertEquals("module foo", get(url));
+        assertEquals("module foo", get(url));
+        assertEquals(2, requests.get());
+    }
+
+    @Test
+    public void answersFromCacheWhenOffline() throws IOException {
+        RepositoryMirror mirror = RepositoryMirror.getInstance(cacheDir, 0, 0, false, new SystemStreamLog());
+        String url = mirror.mirror(remoteUrl) + "foo/1.0/foo-1.0.car";
+        assertEquals("module foo", get(url));
+
+        RepositoryMirror offline = RepositoryMirror.getInstance(cacheDir, 0, 0, true, new SystemStreamLog());
+        assertEquals("module foo", get(offline.mirror(remoteUrl) + "foo/1.0/foo-1.0.car"));
+        assertEquals(HttpURLConnection.HTTP_NOT_FOUND, getStatus(offline.mirror(remoteUrl) + "baz/1.0/baz-1.0.car"));
+        assertEquals(1, requests.get());
+    }
+
+    @Test
+    public void sharesMirrorsWithEqualSettingsOnly() throws IOException {
+        RepositoryMirror mirror = RepositoryMirror.getInstance(cacheDir, 3600, 600, false, new SystemStreamLog());
+
+        assertSame(mirror, RepositoryMirror.getInstance(cacheDir, 3600, 600, false, new SystemStreamLog()));
+        assertNotSame(mirror, RepositoryMirror.getInstance(cacheDir, 3600, 600, true, new SystemStreamLog()));
+        assertNotSame(mirror, RepositoryMirror.getInstance(cacheDir, 0, 600, false, new SystemStreamLog()));
+    }
+
+    private static int getStatus(String url) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        try {
+            return connection.getResponseCode();
+        }
+        finally {
+            connection.disconnect();
+        }
+    }
+
+    private static String get(String url) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        assertEquals(HttpURLConnection.HTTP_OK, connection.getResponseCode());
+        InputStream is = connection.getInputStream();
+        try {
+            ByteArrayOutputStream os = new ByteArrayOutputStream();
+            IOUtil.copy(is, os);
+            return new String(os.toByteArray(), UTF8);
+        }
+        finally {
+            IOUtil.close(is);
+        }
+    }
+}